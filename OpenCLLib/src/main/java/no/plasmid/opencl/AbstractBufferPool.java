@@ -0,0 +1,184 @@
+package no.plasmid.opencl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of buffers in size classes. Requests are rounded up to a size class, and released buffers are
+ * kept and handed out again for later requests of the same class and kind, so repeated jobs and frames
+ * reuse their allocations.
+ *
+ * Buffers are handed out as reference counted {@link BufferLease}s. The pool holds at most budget bytes,
+ * counting both leased and free buffers. When a new allocation does not fit, the least recently released
+ * free buffers are freed first.
+ *
+ * @param <T> the buffer type.
+ */
+public abstract class AbstractBufferPool<T> {
+
+	//Smallest size class, in bytes
+	private static final long MIN_SIZE = 256;
+
+	private final long budget;
+
+	//Free buffers, least recently released first
+	private final List<BufferLease<T>> freeList = new ArrayList<BufferLease<T>>();
+	private long allocatedBytes = 0;
+	private long freeBytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param budget the maximum number of bytes the pool may hold.
+	 */
+	protected AbstractBufferPool(long budget) {
+		if (budget <= 0) {
+			throw new IllegalArgumentException("Pool budget must be positive, was " + budget);
+		}
+		this.budget = budget;
+	}
+
+	/**
+	 * Allocate a new buffer.
+	 * @param size the size in bytes, always a size class.
+	 * @param kind the kind of buffer, for instance the memory flags.
+	 * @return the buffer.
+	 */
+	protected abstract T allocate(long size, int kind);
+
+	/**
+	 * Free a buffer allocated by {@link #allocate(long, int)}.
+	 * @param buffer the buffer.
+	 */
+	protected abstract void free(T buffer);
+
+	/**
+	 * Prepare a buffer before it is handed out. Does nothing by default.
+	 * @param buffer the buffer.
+	 * @param requestedSize the size requested by the caller.
+	 */
+	protected void prepare(T buffer, long requestedSize) {
+	}
+
+	/**
+	 * Lease a buffer of at least the given size.
+	 * @param size the size in bytes.
+	 * @param kind the kind of buffer, only buffers of the same kind are reused.
+	 * @return the lease, release it when done.
+	 */
+	protected synchronized BufferLease<T> acquireBuffer(long size, int kind) {
+		if (closed) {
+			throw new IllegalStateException("Buffer pool is closed");
+		}
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative buffer size " + size);
+		}
+		long sizeClass = sizeClassFor(size);
+
+		//Reuse the most recently released buffer of the class, it is the most likely to be warm
+		for (int i = freeList.size() - 1; i >= 0; i--) {
+			BufferLease<T> lease = freeList.get(i);
+			if (lease.getSize() == sizeClass && lease.getKind() == kind) {
+				freeList.remove(i);
+				freeBytes -= sizeClass;
+				hits++;
+				lease.reuse(size);
+				prepare(lease.getBuffer(), size);
+				return lease;
+			}
+		}
+
+		misses++;
+		trim(budget - sizeClass - (allocatedBytes - freeBytes));
+		if (allocatedBytes + sizeClass > budget) {
+			throw new IllegalStateException("Buffer pool budget of " + budget + " bytes exceeded, "
+					+ (allocatedBytes - freeBytes) + " bytes leased, " + sizeClass + " bytes requested");
+		}
+		T buffer = allocate(sizeClass, kind);
+		allocatedBytes += sizeClass;
+		BufferLease<T> lease = new BufferLease<T>(this, buffer, sizeClass, kind);
+		lease.reuse(size);
+		prepare(buffer, size);
+		return lease;
+	}
+
+	/**
+	 * Called by the lease when its last reference is released.
+	 */
+	synchronized void recycle(BufferLease<T> lease) {
+		if (closed) {
+			allocatedBytes -= lease.getSize();
+			free(lease.getBuffer());
+			return;
+		}
+		freeList.add(lease);
+		freeBytes += lease.getSize();
+	}
+
+	/**
+	 * Free the least recently released buffers until at most maxFreeBytes bytes are kept free.
+	 * @param maxFreeBytes the number of free bytes to keep.
+	 */
+	public synchronized void trim(long maxFreeBytes) {
+		while (freeBytes > Math.max(maxFreeBytes, 0) && !freeList.isEmpty()) {
+			BufferLease<T> lease = freeList.remove(0);
+			freeBytes -= lease.getSize();
+			allocatedBytes -= lease.getSize();
+			free(lease.getBuffer());
+		}
+	}
+
+	/**
+	 * Free all free buffers. Leased buffers are freed when they are released, and no new buffers can be
+	 * leased.
+	 */
+	public synchronized void close() {
+		trim(0);
+		closed = true;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return the bytes held by the pool, leased and free.
+	 */
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	public synchronized long getFreeBytes() {
+		return freeBytes;
+	}
+
+	/**
+	 * @return the number of requests served by reusing a free buffer.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of requests that needed a new allocation.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Get the size class for a size. There are four classes per power of two, so at most a fifth of a
+	 * buffer is unused.
+	 * @param size the size in bytes.
+	 * @return the size class in bytes.
+	 */
+	public static long sizeClassFor(long size) {
+		if (size <= MIN_SIZE) {
+			return MIN_SIZE;
+		}
+		long step = Long.highestOneBit(size) / 4;
+		return (size + step - 1) / step * step;
+	}
+
+}
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.util.Collections;
 import java.util.List;
 import java.util.Scanner;
 
@@ -17,6 +18,7 @@ import org.lwjgl.opencl.CLCommandQueue;
 import org.lwjgl.opencl.CLContext;
 import org.lwjgl.opencl.CLDevice;
 import org.lwjgl.opencl.CLPlatform;
+import org.lwjgl.opencl.CLProgram;
 
 public abstract class AbstractCLController {
 
@@ -27,20 +29,28 @@ public abstract class AbstractCLController {
 	protected CLContext context = null;
 	protected CLCommandQueue commandQueue = null;
 	
+	protected CLProgramCache programCache = new CLProgramCache();
+	protected CLProfiler profiler = new CLProfiler();
+	//Device buffer pool, created with the context
+	protected CLBufferPool bufferPool = null;
+	protected HostBufferPool hostBufferPool = new HostBufferPool();
+	
 	protected void initializeOpenCL() throws LWJGLException {
 		errorCodeBuffer = BufferUtils.createIntBuffer(1);
 
 		CL.create();
-		//Prepare platform
-		platform = CLPlatform.getPlatforms().get(0);
-		//Get list of devices
-		deviceList = platform.getDevices(CL10.CL_DEVICE_TYPE_GPU);
+		//Select platform and device
+		CLDeviceSelector.Candidate candidate = CLDeviceSelector.select(getDeviceSelector());
+		platform = candidate.getPlatform();
+		deviceList = Collections.singletonList(candidate.getDevice());
+		System.out.println("Using OpenCL device " + candidate);
 		//Get context
 		context = CLContext.create(platform, deviceList, null, null, errorCodeBuffer);
 		checkErrorCodeBuffer(errorCodeBuffer);
 		//Create command queue
 		commandQueue = CL10.clCreateCommandQueue(context, deviceList.get(0), CL10.CL_QUEUE_PROFILING_ENABLE, errorCodeBuffer);
 		checkErrorCodeBuffer(errorCodeBuffer);
+		bufferPool = new CLBufferPool(context, CLBufferPool.getDefaultBudget(deviceList.get(0)));
 			
 		ByteBuffer buffer = BufferUtils.createByteBuffer(100);
 		CL10.clGetPlatformInfo(platform, CL10.CL_PLATFORM_NAME, buffer, null);
@@ -50,7 +60,32 @@ public abstract class AbstractCLController {
 		printChars(buffer);
 	}
 	
+	/**
+	 * Get the selector string used to pick the OpenCL device, see {@link CLDeviceSelector}.
+	 * @return the selector string, or null to use the best ranked device.
+	 */
+	protected String getDeviceSelector() {
+		return System.getProperty(CLDeviceSelector.SELECTOR_PROPERTY);
+	}
+	
+	/**
+	 * Build a program for the selected device, using the binary from the program cache when possible.
+	 * @param source the program source.
+	 * @param options the build options.
+	 * @return the built program.
+	 */
+	protected CLProgram buildProgram(String source, String options) {
+		return programCache.buildProgram(context, deviceList.get(0), source, options);
+	}
+	
 	protected void cleanupOpenCL() {
+		//Report profiling, this releases any outstanding events
+		profiler.finish();
+		//Free pooled buffers, device buffers still leased are freed when released
+		if (null != bufferPool) {
+			bufferPool.close();
+		}
+		hostBufferPool.trim(0);
 		//Clean up OpenCL resources
 		if (null != commandQueue) {
 			CL10.clReleaseCommandQueue(commandQueue);
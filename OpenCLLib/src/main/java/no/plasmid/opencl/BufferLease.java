@@ -0,0 +1,93 @@
+package no.plasmid.opencl;
+
+/**
+ * A buffer leased from an {@link AbstractBufferPool}. The lease starts with one reference, every
+ * {@link #retain()} has to be matched by a {@link #release()}. The buffer goes back to the pool when the
+ * last reference is released, and must not be used after that.
+ *
+ * @param <T> the buffer type.
+ */
+public class BufferLease<T> {
+
+	private final AbstractBufferPool<T> pool;
+	private final T buffer;
+	private final long size;
+	private final int kind;
+	private long requestedSize;
+	private int references;
+
+	BufferLease(AbstractBufferPool<T> pool, T buffer, long size, int kind) {
+		this.pool = pool;
+		this.buffer = buffer;
+		this.size = size;
+		this.kind = kind;
+	}
+
+	/**
+	 * Hand the buffer out again, with a single reference.
+	 */
+	synchronized void reuse(long requestedSize) {
+		this.requestedSize = requestedSize;
+		references = 1;
+	}
+
+	/**
+	 * @return the buffer.
+	 */
+	public synchronized T get() {
+		if (references <= 0) {
+			throw new IllegalStateException("Buffer lease is released");
+		}
+		return buffer;
+	}
+
+	/**
+	 * Get the buffer without checking the references, for the pool.
+	 */
+	T getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return the size of the buffer in bytes, at least the requested size.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	public synchronized long getRequestedSize() {
+		return requestedSize;
+	}
+
+	int getKind() {
+		return kind;
+	}
+
+	/**
+	 * Add a reference, for instance when the buffer is shared with another owner.
+	 * @return this lease.
+	 */
+	public synchronized BufferLease<T> retain() {
+		if (references <= 0) {
+			throw new IllegalStateException("Buffer lease is released");
+		}
+		references++;
+		return this;
+	}
+
+	/**
+	 * Remove a reference. The buffer goes back to the pool when the last reference is removed.
+	 */
+	public void release() {
+		synchronized (this) {
+			if (references <= 0) {
+				throw new IllegalStateException("Buffer lease is already released");
+			}
+			if (--references > 0) {
+				return;
+			}
+		}
+		pool.recycle(this);
+	}
+
+}
@@ -0,0 +1,74 @@
+package no.plasmid.opencl;
+
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opencl.CL10;
+import org.lwjgl.opencl.CLContext;
+import org.lwjgl.opencl.CLDevice;
+import org.lwjgl.opencl.CLMem;
+import org.lwjgl.opencl.Util;
+
+/**
+ * Pool of device buffers for one context. Buffers are reused for requests with the same memory flags and
+ * size class. The contents of a reused buffer are undefined, so data has to be written with
+ * clEnqueueWriteBuffer instead of CL_MEM_COPY_HOST_PTR.
+ */
+public class CLBufferPool extends AbstractBufferPool<CLMem> {
+
+	/**
+	 * System property holding the pool budget in bytes. Defaults to half the global memory of the device.
+	 */
+	public static final String BUDGET_PROPERTY = "opencl.pool.budget";
+
+	private final CLContext context;
+	private final IntBuffer errorCodeBuffer = BufferUtils.createIntBuffer(1);
+
+	/**
+	 * @param context the context to allocate buffers in.
+	 * @param budget the maximum number of bytes the pool may hold.
+	 */
+	public CLBufferPool(CLContext context, long budget) {
+		super(budget);
+		this.context = context;
+	}
+
+	/**
+	 * Get the budget from the budget property, or half the global memory of the device.
+	 * @param device the device the buffers are used on.
+	 * @return the budget in bytes.
+	 */
+	public static long getDefaultBudget(CLDevice device) {
+		String value = System.getProperty(BUDGET_PROPERTY);
+		if (null != value) {
+			return Long.parseLong(value);
+		}
+		return device.getInfoLong(CL10.CL_DEVICE_GLOBAL_MEM_SIZE) / 2;
+	}
+
+	/**
+	 * Lease a device buffer.
+	 * @param size the size in bytes.
+	 * @param flags the memory flags, CL_MEM_USE_HOST_PTR and CL_MEM_COPY_HOST_PTR are not allowed.
+	 * @return the lease, release it when done.
+	 */
+	public BufferLease<CLMem> acquire(long size, long flags) {
+		if ((flags & (CL10.CL_MEM_USE_HOST_PTR | CL10.CL_MEM_COPY_HOST_PTR)) != 0) {
+			throw new IllegalArgumentException("Pooled buffers can not use or copy a host pointer");
+		}
+		return acquireBuffer(size, (int)flags);
+	}
+
+	@Override
+	protected CLMem allocate(long size, int kind) {
+		CLMem rc = CL10.clCreateBuffer(context, kind, size, errorCodeBuffer);
+		Util.checkCLError(errorCodeBuffer.get(0));
+		return rc;
+	}
+
+	@Override
+	protected void free(CLMem buffer) {
+		CL10.clReleaseMemObject(buffer);
+	}
+
+}
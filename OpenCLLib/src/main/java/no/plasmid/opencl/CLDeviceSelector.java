@@ -0,0 +1,312 @@
+package no.plasmid.opencl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.lwjgl.opencl.CL10;
+import org.lwjgl.opencl.CLDevice;
+import org.lwjgl.opencl.CLPlatform;
+
+/**
+ * Lists every OpenCL device on every platform, ranks them and picks the one to run on.
+ *
+ * A selector string can be used to pin a device. It is a comma separated list of criteria, where each
+ * criterion is one of:
+ * <ul>
+ * <li><code>gpu</code>, <code>cpu</code>, <code>accelerator</code> or <code>type=...</code>: the device type</li>
+ * <li><code>platform=...</code>: platform index, or part of the platform name</li>
+ * <li><code>device=...</code>: device index within the platform, or part of the device name</li>
+ * <li><code>p:d</code>: shorthand for platform index p and device index d</li>
+ * <li>anything else: part of the device name</li>
+ * </ul>
+ * The best ranked device matching all criteria is selected. CL.create() must have been called first.
+ */
+public class CLDeviceSelector {
+
+	/**
+	 * System property holding the selector string used by initializeOpenCL().
+	 */
+	public static final String SELECTOR_PROPERTY = "opencl.device";
+
+	private static final long MEGABYTE = 1024L * 1024L;
+
+	/**
+	 * List all available devices on all platforms, best ranked first.
+	 * @return the list of device candidates, never null.
+	 */
+	public static List<Candidate> listCandidates() {
+		List<Candidate> rc = new ArrayList<Candidate>();
+
+		List<CLPlatform> platforms = CLPlatform.getPlatforms();
+		if (null == platforms) {
+			return rc;
+		}
+		for (int platformIndex = 0; platformIndex < platforms.size(); platformIndex++) {
+			CLPlatform platform = platforms.get(platformIndex);
+			List<CLDevice> devices = platform.getDevices(CL10.CL_DEVICE_TYPE_ALL);
+			if (null == devices) {
+				continue;
+			}
+			for (int deviceIndex = 0; deviceIndex < devices.size(); deviceIndex++) {
+				CLDevice device = devices.get(deviceIndex);
+				if (device.getInfoBoolean(CL10.CL_DEVICE_AVAILABLE)) {
+					rc.add(new Candidate(platform, platformIndex, device, deviceIndex));
+				}
+			}
+		}
+
+		Collections.sort(rc, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate o1, Candidate o2) {
+				return Double.compare(o2.getScore(), o1.getScore());
+			}
+		});
+		return rc;
+	}
+
+	/**
+	 * Select the best ranked device matching the selector.
+	 * @param selector the selector string, null or empty to select the best device available.
+	 * @return the selected device.
+	 */
+	public static Candidate select(String selector) {
+		List<Candidate> candidates = listCandidates();
+		if (candidates.isEmpty()) {
+			throw new IllegalStateException("No OpenCL devices available");
+		}
+
+		for (Candidate candidate : candidates) {
+			if (matches(candidate, selector)) {
+				return candidate;
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("No OpenCL device matches selector \"").append(selector).append("\". Available devices:");
+		for (Candidate candidate : candidates) {
+			sb.append(System.getProperty("line.separator")).append("  ").append(candidate);
+		}
+		throw new IllegalStateException(sb.toString());
+	}
+
+	private static boolean matches(Candidate candidate, String selector) {
+		if (null == selector || selector.trim().isEmpty()) {
+			return true;
+		}
+
+		for (String token : selector.split(",")) {
+			String criterion = token.trim().toLowerCase(Locale.ENGLISH);
+			if (criterion.isEmpty()) {
+				continue;
+			}
+
+			String key = null;
+			String value = criterion;
+			int separator = criterion.indexOf('=');
+			if (separator >= 0) {
+				key = criterion.substring(0, separator).trim();
+				value = criterion.substring(separator + 1).trim();
+			} else if (criterion.matches("\\d+:\\d+")) {
+				String[] indexes = criterion.split(":");
+				if (!matchesIndexOrName(candidate.getPlatformIndex(), candidate.getPlatformName(), indexes[0])
+						|| !matchesIndexOrName(candidate.getDeviceIndex(), candidate.getName(), indexes[1])) {
+					return false;
+				}
+				continue;
+			} else if (isTypeName(criterion)) {
+				key = "type";
+			} else {
+				key = "device";
+			}
+
+			boolean match;
+			switch (key) {
+			case "type":
+				match = value.equals("all") || value.equals(candidate.getTypeName());
+				break;
+			case "platform":
+				match = matchesIndexOrName(candidate.getPlatformIndex(), candidate.getPlatformName(), value);
+				break;
+			case "device":
+				match = matchesIndexOrName(candidate.getDeviceIndex(), candidate.getName(), value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown OpenCL device selector criterion: " + token);
+			}
+			if (!match) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isTypeName(String value) {
+		return value.equals("gpu") || value.equals("cpu") || value.equals("accelerator") || value.equals("all");
+	}
+
+	private static boolean matchesIndexOrName(int index, String name, String value) {
+		if (value.matches("\\d+")) {
+			return index == Integer.parseInt(value);
+		}
+		return name.toLowerCase(Locale.ENGLISH).contains(value);
+	}
+
+	/**
+	 * One device on one platform, with the properties used to rank it.
+	 */
+	public static class Candidate {
+
+		private final CLPlatform platform;
+		private final int platformIndex;
+		private final String platformName;
+		private final CLDevice device;
+		private final int deviceIndex;
+		private final String name;
+		private final long type;
+		private final int computeUnits;
+		private final int clockFrequency;
+		private final long globalMemSize;
+		private final long localMemSize;
+		private final boolean dedicatedLocalMem;
+		private final String extensions;
+		private final double score;
+
+		Candidate(CLPlatform platform, int platformIndex, CLDevice device, int deviceIndex) {
+			this.platform = platform;
+			this.platformIndex = platformIndex;
+			this.platformName = platform.getInfoString(CL10.CL_PLATFORM_NAME).trim();
+			this.device = device;
+			this.deviceIndex = deviceIndex;
+			this.name = device.getInfoString(CL10.CL_DEVICE_NAME).trim();
+			this.type = device.getInfoLong(CL10.CL_DEVICE_TYPE);
+			this.computeUnits = device.getInfoInt(CL10.CL_DEVICE_MAX_COMPUTE_UNITS);
+			this.clockFrequency = device.getInfoInt(CL10.CL_DEVICE_MAX_CLOCK_FREQUENCY);
+			this.globalMemSize = device.getInfoLong(CL10.CL_DEVICE_GLOBAL_MEM_SIZE);
+			this.localMemSize = device.getInfoLong(CL10.CL_DEVICE_LOCAL_MEM_SIZE);
+			this.dedicatedLocalMem = device.getInfoInt(CL10.CL_DEVICE_LOCAL_MEM_TYPE) == CL10.CL_LOCAL;
+			this.extensions = device.getInfoString(CL10.CL_DEVICE_EXTENSIONS);
+			this.score = calculateScore();
+		}
+
+		/**
+		 * Rough estimate of the throughput of the device. Compute units times clock gives the raw rate,
+		 * weighted by how many lanes a compute unit of this device type usually has. Memory and extensions
+		 * only adjust the score by a few percent, to break ties between otherwise similar devices.
+		 */
+		private double calculateScore() {
+			double typeWeight;
+			if ((type & CL10.CL_DEVICE_TYPE_GPU) != 0) {
+				typeWeight = 8.0;
+			} else if ((type & CL10.CL_DEVICE_TYPE_ACCELERATOR) != 0) {
+				typeWeight = 4.0;
+			} else {
+				typeWeight = 1.0;
+			}
+			double rc = Math.max(computeUnits, 1) * Math.max(clockFrequency, 1) * typeWeight;
+
+			//Larger global memory lets us run larger jobs
+			rc *= 1.0 + Math.log(1.0 + globalMemSize / MEGABYTE) / Math.log(2.0) / 100.0;
+			//Local memory emulated in global memory makes tiled kernels slow
+			if (dedicatedLocalMem) {
+				rc *= 1.0 + Math.min(localMemSize, 64L * 1024L) / (64.0 * 1024.0) * 0.1;
+			} else {
+				rc *= 0.9;
+			}
+			if (hasExtension("cl_khr_fp64")) {
+				rc *= 1.02;
+			}
+			if (hasExtension("cl_khr_global_int32_base_atomics")) {
+				rc *= 1.02;
+			}
+			if (hasExtension("cl_khr_local_int32_base_atomics")) {
+				rc *= 1.02;
+			}
+			return rc;
+		}
+
+		public boolean hasExtension(String extension) {
+			return (" " + extensions + " ").contains(" " + extension + " ");
+		}
+
+		public String getTypeName() {
+			if ((type & CL10.CL_DEVICE_TYPE_GPU) != 0) {
+				return "gpu";
+			} else if ((type & CL10.CL_DEVICE_TYPE_ACCELERATOR) != 0) {
+				return "accelerator";
+			} else if ((type & CL10.CL_DEVICE_TYPE_CPU) != 0) {
+				return "cpu";
+			}
+			return "other";
+		}
+
+		public CLPlatform getPlatform() {
+			return platform;
+		}
+
+		public int getPlatformIndex() {
+			return platformIndex;
+		}
+
+		public String getPlatformName() {
+			return platformName;
+		}
+
+		public CLDevice getDevice() {
+			return device;
+		}
+
+		public int getDeviceIndex() {
+			return deviceIndex;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getType() {
+			return type;
+		}
+
+		public int getComputeUnits() {
+			return computeUnits;
+		}
+
+		public int getClockFrequency() {
+			return clockFrequency;
+		}
+
+		public long getGlobalMemSize() {
+			return globalMemSize;
+		}
+
+		public long getLocalMemSize() {
+			return localMemSize;
+		}
+
+		public String getExtensions() {
+			return extensions;
+		}
+
+		public double getScore() {
+			return score;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(platformIndex).append(':').append(deviceIndex);
+			sb.append(" [").append(getTypeName()).append("] ");
+			sb.append(name).append(" (").append(platformName).append(")");
+			sb.append(", ").append(computeUnits).append(" CU @ ").append(clockFrequency).append(" MHz");
+			sb.append(", ").append(globalMemSize / MEGABYTE).append(" MB global");
+			sb.append(", ").append(localMemSize / 1024).append(" KB local");
+			sb.append(", score ").append((long)score);
+			return sb.toString();
+		}
+
+	}
+
+}
@@ -0,0 +1,131 @@
+package no.plasmid.opencl;
+
+import org.lwjgl.opencl.CLMem;
+
+/**
+ * Element-wise expression over float device arrays, evaluated by {@link CLExpressionEngine} as one
+ * generated kernel. Expressions are immutable trees, built from inputs and constants:
+ *
+ * CLExpression a = CLExpression.input(aMem);
+ * CLExpression e = a.add(CLExpression.input(bMem)).fmod(CLExpression.constant(3.0f));
+ *
+ * Constant values are kernel arguments, so expressions differing only in constants and inputs share
+ * the same kernel. An expression used more than once in a tree is computed once per element.
+ */
+public class CLExpression {
+
+	enum Op {
+		INPUT, CONSTANT, ADD, SUB, MUL, DIV, FMOD, MIN, MAX, ABS, SQRT, LESS, GREATER, EQUAL, SELECT;
+	}
+
+	final Op op;
+	final CLExpression[] operands;
+	final CLMem input;
+	final float value;
+
+	private CLExpression(Op op, CLMem input, float value, CLExpression... operands) {
+		this.op = op;
+		this.input = input;
+		this.value = value;
+		this.operands = operands;
+	}
+
+	private static CLExpression operation(Op op, CLExpression... operands) {
+		for (CLExpression operand : operands) {
+			if (null == operand) {
+				throw new IllegalArgumentException("Operand of " + op + " can not be null");
+			}
+		}
+		return new CLExpression(op, null, 0, operands);
+	}
+
+	/**
+	 * @param mem a device array of floats, at least as long as the evaluated range.
+	 * @return an expression reading the array.
+	 */
+	public static CLExpression input(CLMem mem) {
+		if (null == mem) {
+			throw new IllegalArgumentException("Input can not be null");
+		}
+		return new CLExpression(Op.INPUT, mem, 0);
+	}
+
+	/**
+	 * @param value the value.
+	 * @return an expression with the same value for all elements.
+	 */
+	public static CLExpression constant(float value) {
+		return new CLExpression(Op.CONSTANT, null, value);
+	}
+
+	public CLExpression add(CLExpression other) {
+		return operation(Op.ADD, this, other);
+	}
+
+	public CLExpression sub(CLExpression other) {
+		return operation(Op.SUB, this, other);
+	}
+
+	public CLExpression mul(CLExpression other) {
+		return operation(Op.MUL, this, other);
+	}
+
+	public CLExpression div(CLExpression other) {
+		return operation(Op.DIV, this, other);
+	}
+
+	/**
+	 * @return the remainder of this divided by other, with the sign of this, like the C fmod function.
+	 */
+	public CLExpression fmod(CLExpression other) {
+		return operation(Op.FMOD, this, other);
+	}
+
+	public CLExpression min(CLExpression other) {
+		return operation(Op.MIN, this, other);
+	}
+
+	public CLExpression max(CLExpression other) {
+		return operation(Op.MAX, this, other);
+	}
+
+	public CLExpression abs() {
+		return operation(Op.ABS, this);
+	}
+
+	public CLExpression sqrt() {
+		return operation(Op.SQRT, this);
+	}
+
+	/**
+	 * @return 1 where this is less than other, otherwise 0.
+	 */
+	public CLExpression less(CLExpression other) {
+		return operation(Op.LESS, this, other);
+	}
+
+	/**
+	 * @return 1 where this is greater than other, otherwise 0.
+	 */
+	public CLExpression greater(CLExpression other) {
+		return operation(Op.GREATER, this, other);
+	}
+
+	/**
+	 * @return 1 where this equals other, otherwise 0.
+	 */
+	public CLExpression equal(CLExpression other) {
+		return operation(Op.EQUAL, this, other);
+	}
+
+	/**
+	 * @param condition the condition, true where it is not 0.
+	 * @param ifTrue the value where the condition is true.
+	 * @param ifFalse the value where the condition is false.
+	 * @return an expression selecting between the two values per element.
+	 */
+	public static CLExpression select(CLExpression condition, CLExpression ifTrue, CLExpression ifFalse) {
+		return operation(Op.SELECT, condition, ifTrue, ifFalse);
+	}
+
+}
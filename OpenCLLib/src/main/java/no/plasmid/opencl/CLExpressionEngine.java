@@ -0,0 +1,240 @@
+package no.plasmid.opencl;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opencl.CL10;
+import org.lwjgl.opencl.CLCommandQueue;
+import org.lwjgl.opencl.CLContext;
+import org.lwjgl.opencl.CLDevice;
+import org.lwjgl.opencl.CLKernel;
+import org.lwjgl.opencl.CLMem;
+import org.lwjgl.opencl.CLProgram;
+import org.lwjgl.opencl.Util;
+
+/**
+ * Evaluates {@link CLExpression}s by generating one fused kernel per expression, so a chain of operations
+ * reads its inputs and writes its output once, with no intermediate buffers or extra launches.
+ *
+ * Kernels are cached by the generated source, which only depends on the shape of the expression: the
+ * operations, and which inputs and constants are used where. Evaluating the same shape with other
+ * arrays or constant values reuses the kernel.
+ */
+public class CLExpressionEngine {
+
+	private static final String KERNEL_NAME = "expression";
+
+	private final CLContext context;
+	private final CLDevice device;
+	private final CLCommandQueue queue;
+	private final CLProgramCache programCache;
+
+	private final Map<String, CLKernel> kernels = new HashMap<String, CLKernel>();
+	private final List<CLProgram> programs = new ArrayList<CLProgram>();
+	private final IntBuffer errorCodeBuffer = BufferUtils.createIntBuffer(1);
+	private final PointerBuffer globalWorkSize = BufferUtils.createPointerBuffer(1);
+
+	/**
+	 * @param context the context.
+	 * @param device the device to build kernels for.
+	 * @param queue the queue to evaluate on.
+	 * @param programCache the cache to build programs with.
+	 */
+	public CLExpressionEngine(CLContext context, CLDevice device, CLCommandQueue queue, CLProgramCache programCache) {
+		this.context = context;
+		this.device = device;
+		this.queue = queue;
+		this.programCache = programCache;
+	}
+
+	/**
+	 * Enqueue the evaluation of an expression for elements 0 to count - 1.
+	 * @param expression the expression.
+	 * @param output the device array to write the result to.
+	 * @param count the number of elements.
+	 */
+	public void evaluate(CLExpression expression, CLMem output, int count) {
+		evaluate(expression, output, count, null);
+	}
+
+	/**
+	 * Enqueue the evaluation of an expression for elements 0 to count - 1.
+	 * @param expression the expression.
+	 * @param output the device array to write the result to.
+	 * @param count the number of elements.
+	 * @param event event buffer for the kernel, may be null.
+	 */
+	public void evaluate(CLExpression expression, CLMem output, int count, PointerBuffer event) {
+		Generator generator = new Generator();
+		String source = generator.generate(expression);
+		CLKernel kernel = getKernel(source);
+
+		int arg = 0;
+		for (CLMem input : generator.inputs) {
+			kernel.setArg(arg++, input);
+		}
+		for (float constant : generator.constants) {
+			kernel.setArg(arg++, constant);
+		}
+		kernel.setArg(arg++, output);
+		kernel.setArg(arg, count);
+		globalWorkSize.put(0, Math.max(count, 1));
+		Util.checkCLError(CL10.clEnqueueNDRangeKernel(queue, kernel, 1, null, globalWorkSize, null, null, event));
+	}
+
+	/**
+	 * Get the kernel source generated for an expression.
+	 * @param expression the expression.
+	 * @return the source.
+	 */
+	public String generateSource(CLExpression expression) {
+		return new Generator().generate(expression);
+	}
+
+	/**
+	 * @return the number of distinct kernels built so far.
+	 */
+	public int getKernelCount() {
+		return kernels.size();
+	}
+
+	private CLKernel getKernel(String source) {
+		CLKernel rc = kernels.get(source);
+		if (null == rc) {
+			CLProgram program = programCache.buildProgram(context, device, source, "");
+			programs.add(program);
+			rc = CL10.clCreateKernel(program, KERNEL_NAME, errorCodeBuffer);
+			Util.checkCLError(errorCodeBuffer.get(0));
+			kernels.put(source, rc);
+		}
+		return rc;
+	}
+
+	/**
+	 * Release all kernels and programs.
+	 */
+	public void release() {
+		for (CLKernel kernel : kernels.values()) {
+			CL10.clReleaseKernel(kernel);
+		}
+		for (CLProgram program : programs) {
+			CL10.clReleaseProgram(program);
+		}
+		kernels.clear();
+		programs.clear();
+	}
+
+	/**
+	 * Generates the kernel source, one temporary per expression node, and collects the kernel arguments.
+	 */
+	private static class Generator {
+
+		private final List<CLMem> inputs = new ArrayList<CLMem>();
+		private final List<Float> constants = new ArrayList<Float>();
+		private final Map<CLMem, String> inputNames = new IdentityHashMap<CLMem, String>();
+		private final Map<CLExpression, String> temporaries = new IdentityHashMap<CLExpression, String>();
+		private final StringBuilder body = new StringBuilder();
+
+		String generate(CLExpression expression) {
+			String result = visit(expression);
+
+			StringBuilder sb = new StringBuilder();
+			sb.append("kernel void ").append(KERNEL_NAME).append("(");
+			for (int i = 0; i < inputs.size(); i++) {
+				sb.append("global const float* in").append(i).append(", ");
+			}
+			for (int i = 0; i < constants.size(); i++) {
+				sb.append("const float c").append(i).append(", ");
+			}
+			sb.append("global float* out, const int count) {\n");
+			sb.append("\tint i = get_global_id(0);\n");
+			sb.append("\tif (i >= count) {\n\t\treturn;\n\t}\n");
+			sb.append(body);
+			sb.append("\tout[i] = ").append(result).append(";\n");
+			sb.append("}\n");
+			return sb.toString();
+		}
+
+		private String visit(CLExpression node) {
+			String rc = temporaries.get(node);
+			if (null != rc) {
+				return rc;
+			}
+			String[] operands = new String[node.operands.length];
+			for (int i = 0; i < operands.length; i++) {
+				operands[i] = visit(node.operands[i]);
+			}
+
+			String value;
+			switch (node.op) {
+			case INPUT:
+				String name = inputNames.get(node.input);
+				if (null == name) {
+					name = "in" + inputs.size();
+					inputs.add(node.input);
+					inputNames.put(node.input, name);
+				}
+				value = name + "[i]";
+				break;
+			case CONSTANT:
+				value = "c" + constants.size();
+				constants.add(node.value);
+				break;
+			case ADD:
+				value = operands[0] + " + " + operands[1];
+				break;
+			case SUB:
+				value = operands[0] + " - " + operands[1];
+				break;
+			case MUL:
+				value = operands[0] + " * " + operands[1];
+				break;
+			case DIV:
+				value = operands[0] + " / " + operands[1];
+				break;
+			case FMOD:
+				value = "fmod(" + operands[0] + ", " + operands[1] + ")";
+				break;
+			case MIN:
+				value = "fmin(" + operands[0] + ", " + operands[1] + ")";
+				break;
+			case MAX:
+				value = "fmax(" + operands[0] + ", " + operands[1] + ")";
+				break;
+			case ABS:
+				value = "fabs(" + operands[0] + ")";
+				break;
+			case SQRT:
+				value = "sqrt(" + operands[0] + ")";
+				break;
+			case LESS:
+				value = operands[0] + " < " + operands[1] + " ? 1.0f : 0.0f";
+				break;
+			case GREATER:
+				value = operands[0] + " > " + operands[1] + " ? 1.0f : 0.0f";
+				break;
+			case EQUAL:
+				value = operands[0] + " == " + operands[1] + " ? 1.0f : 0.0f";
+				break;
+			case SELECT:
+				value = operands[0] + " != 0.0f ? " + operands[1] + " : " + operands[2];
+				break;
+			default:
+				throw new IllegalStateException("Unknown operation " + node.op);
+			}
+
+			rc = "t" + temporaries.size();
+			temporaries.put(node, rc);
+			body.append("\tfloat ").append(rc).append(" = ").append(value).append(";\n");
+			return rc;
+		}
+
+	}
+
+}
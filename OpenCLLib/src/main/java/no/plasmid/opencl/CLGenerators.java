@@ -0,0 +1,271 @@
+package no.plasmid.opencl;
+
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opencl.CL10;
+import org.lwjgl.opencl.CLCommandQueue;
+import org.lwjgl.opencl.CLContext;
+import org.lwjgl.opencl.CLDevice;
+import org.lwjgl.opencl.CLKernel;
+import org.lwjgl.opencl.CLMem;
+import org.lwjgl.opencl.CLProgram;
+import org.lwjgl.opencl.Util;
+
+/**
+ * Kernels filling device arrays with generated data: integer and float ramps, 2D coordinate grids and
+ * seeded random numbers. Generating input on the device saves the host allocation, the fill loop and the
+ * upload.
+ *
+ * The random numbers are counter based, element i only depends on the seed and its index, so any range
+ * can be generated independently and reproduced on the host with {@link #randomInt(int, int)} and
+ * {@link #randomFloat(int, int, float, float)}.
+ */
+public class CLGenerators {
+
+	/**
+	 * Class path location of the kernel source.
+	 */
+	public static final String SOURCE_PATH = "/cl/lib/generators.cl";
+
+	private final CLCommandQueue queue;
+	private final CLProgram program;
+	private final CLKernel iotaInt;
+	private final CLKernel iotaFloat;
+	private final CLKernel affine;
+	private final CLKernel grid2DInt;
+	private final CLKernel grid2DFloat;
+	private final CLKernel randomUInt;
+	private final CLKernel randomFloat;
+
+	private final IntBuffer errorCodeBuffer = BufferUtils.createIntBuffer(1);
+	private final PointerBuffer globalWorkSize = BufferUtils.createPointerBuffer(2);
+
+	/**
+	 * Build the generator kernels.
+	 * @param context the context.
+	 * @param device the device to build the kernels for.
+	 * @param queue the queue to enqueue on.
+	 * @param programCache the cache to build the program with.
+	 */
+	public CLGenerators(CLContext context, CLDevice device, CLCommandQueue queue, CLProgramCache programCache) {
+		this.queue = queue;
+		program = programCache.buildProgram(context, device, loadSource(), "");
+		iotaInt = createKernel("iota_int");
+		iotaFloat = createKernel("iota_float");
+		affine = createKernel("affine");
+		grid2DInt = createKernel("grid2d_int");
+		grid2DFloat = createKernel("grid2d_float");
+		randomUInt = createKernel("random_uint");
+		randomFloat = createKernel("random_float");
+	}
+
+	/**
+	 * Load the kernel source from the class path.
+	 * @return the source.
+	 */
+	public static String loadSource() {
+		return CLSources.load(SOURCE_PATH);
+	}
+
+	private CLKernel createKernel(String name) {
+		CLKernel rc = CL10.clCreateKernel(program, name, errorCodeBuffer);
+		Util.checkCLError(errorCodeBuffer.get(0));
+		return rc;
+	}
+
+	/**
+	 * Fill ints with start, start + step, start + 2 * step and so on.
+	 * @param out the device array.
+	 * @param count the number of elements.
+	 * @param start the first value.
+	 * @param step the difference between values.
+	 * @param event event buffer for the kernel, may be null.
+	 */
+	public void iotaInt(CLMem out, int count, int start, int step, PointerBuffer event) {
+		iotaInt.setArg(0, out);
+		iotaInt.setArg(1, count);
+		iotaInt.setArg(2, start);
+		iotaInt.setArg(3, step);
+		enqueue1D(iotaInt, count, event);
+	}
+
+	/**
+	 * Fill floats with start, start + step, start + 2 * step and so on. The values are calculated as ints
+	 * and converted, so they are the same as an int loop writing to a float array.
+	 * @param out the device array.
+	 * @param count the number of elements.
+	 * @param start the first value.
+	 * @param step the difference between values.
+	 * @param event event buffer for the kernel, may be null.
+	 */
+	public void iotaFloat(CLMem out, int count, int start, int step, PointerBuffer event) {
+		iotaFloat.setArg(0, out);
+		iotaFloat.setArg(1, count);
+		iotaFloat.setArg(2, start);
+		iotaFloat.setArg(3, step);
+		enqueue1D(iotaFloat, count, event);
+	}
+
+	/**
+	 * Fill floats with offset + scale * i.
+	 * @param out the device array.
+	 * @param count the number of elements.
+	 * @param offset the first value.
+	 * @param scale the difference between values.
+	 * @param event event buffer for the kernel, may be null.
+	 */
+	public void affine(CLMem out, int count, float offset, float scale, PointerBuffer event) {
+		affine.setArg(0, out);
+		affine.setArg(1, count);
+		affine.setArg(2, offset);
+		affine.setArg(3, scale);
+		enqueue1D(affine, count, event);
+	}
+
+	/**
+	 * Fill two int arrays with the x and y coordinates of a grid, row by row, so element y * width + x
+	 * holds originX + stepX * x and originY + stepY * y.
+	 * @param xOut the device array for x, width * height elements.
+	 * @param yOut the device array for y, width * height elements.
+	 * @param width the number of columns.
+	 * @param height the number of rows.
+	 * @param originX the first x.
+	 * @param originY the first y.
+	 * @param stepX the difference between columns.
+	 * @param stepY the difference between rows.
+	 * @param event event buffer for the kernel, may be null.
+	 */
+	public void grid2DInt(CLMem xOut, CLMem yOut, int width, int height, int originX, int originY, int stepX, int stepY,
+			PointerBuffer event) {
+		grid2DInt.setArg(0, xOut);
+		grid2DInt.setArg(1, yOut);
+		grid2DInt.setArg(2, originX);
+		grid2DInt.setArg(3, originY);
+		grid2DInt.setArg(4, stepX);
+		grid2DInt.setArg(5, stepY);
+		enqueue2D(grid2DInt, width, height, event);
+	}
+
+	/**
+	 * Fill two float arrays with the x and y coordinates of a grid, like {@link #grid2DInt}.
+	 * @param xOut the device array for x, width * height elements.
+	 * @param yOut the device array for y, width * height elements.
+	 * @param width the number of columns.
+	 * @param height the number of rows.
+	 * @param originX the first x.
+	 * @param originY the first y.
+	 * @param stepX the difference between columns.
+	 * @param stepY the difference between rows.
+	 * @param event event buffer for the kernel, may be null.
+	 */
+	public void grid2DFloat(CLMem xOut, CLMem yOut, int width, int height, float originX, float originY, float stepX,
+			float stepY, PointerBuffer event) {
+		grid2DFloat.setArg(0, xOut);
+		grid2DFloat.setArg(1, yOut);
+		grid2DFloat.setArg(2, originX);
+		grid2DFloat.setArg(3, originY);
+		grid2DFloat.setArg(4, stepX);
+		grid2DFloat.setArg(5, stepY);
+		enqueue2D(grid2DFloat, width, height, event);
+	}
+
+	/**
+	 * Fill with random 32 bit values, element i gets {@link #randomInt(int, int)} of seed and offset + i.
+	 * @param out the device array.
+	 * @param count the number of elements.
+	 * @param seed the seed.
+	 * @param offset the index of the first element in the sequence.
+	 * @param event event buffer for the kernel, may be null.
+	 */
+	public void randomInt(CLMem out, int count, int seed, int offset, PointerBuffer event) {
+		randomUInt.setArg(0, out);
+		randomUInt.setArg(1, count);
+		randomUInt.setArg(2, seed);
+		randomUInt.setArg(3, offset);
+		enqueue1D(randomUInt, count, event);
+	}
+
+	/**
+	 * Fill with random floats in [min, max), element i gets {@link #randomFloat(int, int, float, float)} of
+	 * seed and offset + i.
+	 * @param out the device array.
+	 * @param count the number of elements.
+	 * @param seed the seed.
+	 * @param offset the index of the first element in the sequence.
+	 * @param min the lowest value.
+	 * @param max the upper bound.
+	 * @param event event buffer for the kernel, may be null.
+	 */
+	public void randomFloat(CLMem out, int count, int seed, int offset, float min, float max, PointerBuffer event) {
+		randomFloat.setArg(0, out);
+		randomFloat.setArg(1, count);
+		randomFloat.setArg(2, seed);
+		randomFloat.setArg(3, offset);
+		randomFloat.setArg(4, min);
+		randomFloat.setArg(5, max);
+		enqueue1D(randomFloat, count, event);
+	}
+
+	/**
+	 * The value the random kernels generate, for use on the host.
+	 * @param seed the seed.
+	 * @param index the index in the sequence.
+	 * @return 32 random bits.
+	 */
+	public static int randomInt(int seed, int index) {
+		return hash(hash(index) + seed);
+	}
+
+	/**
+	 * The value the random float kernel generates, for use on the host.
+	 * @param seed the seed.
+	 * @param index the index in the sequence.
+	 * @param min the lowest value.
+	 * @param max the upper bound.
+	 * @return a random value in [min, max).
+	 */
+	public static float randomFloat(int seed, int index, float min, float max) {
+		float unit = (randomInt(seed, index) >>> 8) * 5.9604644775390625e-8f;
+		return min + (max - min) * unit;
+	}
+
+	private static int hash(int x) {
+		x ^= x >>> 16;
+		x *= 0x7feb352d;
+		x ^= x >>> 15;
+		x *= 0x846ca68b;
+		x ^= x >>> 16;
+		return x;
+	}
+
+	private void enqueue1D(CLKernel kernel, int count, PointerBuffer event) {
+		globalWorkSize.put(0, Math.max(count, 1));
+		Util.checkCLError(CL10.clEnqueueNDRangeKernel(queue, kernel, 1, null, globalWorkSize, null, null, event));
+	}
+
+	private void enqueue2D(CLKernel kernel, int width, int height, PointerBuffer event) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Grid size must be positive, was " + width + "x" + height);
+		}
+		globalWorkSize.put(0, width);
+		globalWorkSize.put(1, height);
+		Util.checkCLError(CL10.clEnqueueNDRangeKernel(queue, kernel, 2, null, globalWorkSize, null, null, event));
+	}
+
+	/**
+	 * Release the kernels and the program.
+	 */
+	public void release() {
+		CL10.clReleaseKernel(iotaInt);
+		CL10.clReleaseKernel(iotaFloat);
+		CL10.clReleaseKernel(affine);
+		CL10.clReleaseKernel(grid2DInt);
+		CL10.clReleaseKernel(grid2DFloat);
+		CL10.clReleaseKernel(randomUInt);
+		CL10.clReleaseKernel(randomFloat);
+		CL10.clReleaseProgram(program);
+	}
+
+}
@@ -0,0 +1,161 @@
+package no.plasmid.opencl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opencl.CL10;
+import org.lwjgl.opencl.CL11;
+import org.lwjgl.opencl.CLCommandQueue;
+import org.lwjgl.opencl.CLContext;
+import org.lwjgl.opencl.CLDevice;
+import org.lwjgl.opencl.CLMem;
+import org.lwjgl.opencl.Util;
+
+/**
+ * Device buffer in host visible memory, read and written by mapping it instead of copying. On CPU devices
+ * and devices sharing memory with the host, mapping returns the memory the kernels use, so no copies are
+ * made at all. On other devices the driver copies on map and unmap, which is no worse than reading and
+ * writing the buffer.
+ *
+ * The host must not touch the buffer while kernels use it: map it, fill or read it, and unmap it before
+ * enqueueing kernels that use it again.
+ */
+public class CLMappedBuffer {
+
+	private final CLCommandQueue queue;
+	private final CLMem mem;
+	private final long size;
+	private final IntBuffer errorCodeBuffer = BufferUtils.createIntBuffer(1);
+	private ByteBuffer mapped = null;
+
+	private CLMappedBuffer(CLCommandQueue queue, CLMem mem, long size) {
+		this.queue = queue;
+		this.mem = mem;
+		this.size = size;
+	}
+
+	/**
+	 * Create a buffer in memory allocated by the driver with CL_MEM_ALLOC_HOST_PTR.
+	 * @param context the context.
+	 * @param queue the queue to map and unmap on.
+	 * @param flags the access flags, for instance CL_MEM_READ_ONLY.
+	 * @param size the size in bytes.
+	 * @return the buffer, unmapped.
+	 */
+	public static CLMappedBuffer allocate(CLContext context, CLCommandQueue queue, long flags, long size) {
+		IntBuffer errorCodeBuffer = BufferUtils.createIntBuffer(1);
+		CLMem mem = CL10.clCreateBuffer(context, flags | CL10.CL_MEM_ALLOC_HOST_PTR, size, errorCodeBuffer);
+		Util.checkCLError(errorCodeBuffer.get(0));
+		return new CLMappedBuffer(queue, mem, size);
+	}
+
+	/**
+	 * Create a buffer using existing host memory with CL_MEM_USE_HOST_PTR. The host buffer must stay
+	 * reachable until the buffer is released. Some drivers only avoid copies when it is page aligned.
+	 * @param context the context.
+	 * @param queue the queue to map and unmap on.
+	 * @param flags the access flags, for instance CL_MEM_READ_ONLY.
+	 * @param hostBuffer the direct buffer to use, from its position to its limit.
+	 * @return the buffer, unmapped.
+	 */
+	public static CLMappedBuffer wrap(CLContext context, CLCommandQueue queue, long flags, ByteBuffer hostBuffer) {
+		if (!hostBuffer.isDirect()) {
+			throw new IllegalArgumentException("Host buffer must be direct");
+		}
+		IntBuffer errorCodeBuffer = BufferUtils.createIntBuffer(1);
+		CLMem mem = CL10.clCreateBuffer(context, flags | CL10.CL_MEM_USE_HOST_PTR, hostBuffer, errorCodeBuffer);
+		Util.checkCLError(errorCodeBuffer.get(0));
+		return new CLMappedBuffer(queue, mem, hostBuffer.remaining());
+	}
+
+	/**
+	 * Check if mapped buffers avoid copies on the device, which is the case for CPU devices and devices
+	 * with memory shared with the host.
+	 * @param device the device.
+	 * @return true if the device shares memory with the host.
+	 */
+	public static boolean isZeroCopyDevice(CLDevice device) {
+		if ((device.getInfoLong(CL10.CL_DEVICE_TYPE) & CL10.CL_DEVICE_TYPE_CPU) != 0) {
+			return true;
+		}
+		//Host unified memory can only be queried from OpenCL 1.1
+		if (device.getInfoString(CL10.CL_DEVICE_VERSION).startsWith("OpenCL 1.0")) {
+			return false;
+		}
+		return device.getInfoBoolean(CL11.CL_DEVICE_HOST_UNIFIED_MEMORY);
+	}
+
+	/**
+	 * Map the whole buffer, blocking until it can be accessed.
+	 * @param mapFlags CL_MAP_READ, CL_MAP_WRITE or both.
+	 * @return the mapped memory in native byte order.
+	 */
+	public ByteBuffer map(long mapFlags) {
+		return map(mapFlags, null);
+	}
+
+	/**
+	 * Map the whole buffer, blocking until it can be accessed.
+	 * @param mapFlags CL_MAP_READ, CL_MAP_WRITE or both.
+	 * @param event event buffer for the map command, may be null.
+	 * @return the mapped memory in native byte order.
+	 */
+	public ByteBuffer map(long mapFlags, PointerBuffer event) {
+		if (null != mapped) {
+			throw new IllegalStateException("Buffer is already mapped");
+		}
+		mapped = CL10.clEnqueueMapBuffer(queue, mem, CL10.CL_TRUE, mapFlags, 0, size, null, event, errorCodeBuffer);
+		Util.checkCLError(errorCodeBuffer.get(0));
+		mapped.order(ByteOrder.nativeOrder());
+		return mapped;
+	}
+
+	/**
+	 * Unmap the buffer. The buffer returned by map() must not be used afterwards.
+	 */
+	public void unmap() {
+		unmap(null);
+	}
+
+	/**
+	 * Unmap the buffer. The buffer returned by map() must not be used afterwards.
+	 * @param event event buffer for the unmap command, may be null.
+	 */
+	public void unmap(PointerBuffer event) {
+		if (null == mapped) {
+			throw new IllegalStateException("Buffer is not mapped");
+		}
+		Util.checkCLError(CL10.clEnqueueUnmapMemObject(queue, mem, mapped, null, event));
+		mapped = null;
+	}
+
+	public boolean isMapped() {
+		return null != mapped;
+	}
+
+	public CLMem getMem() {
+		return mem;
+	}
+
+	/**
+	 * @return the size in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Unmap the buffer if needed, wait for the queue and release the buffer.
+	 */
+	public void release() {
+		if (null != mapped) {
+			unmap();
+		}
+		CL10.clFinish(queue);
+		CL10.clReleaseMemObject(mem);
+	}
+
+}
@@ -0,0 +1,266 @@
+package no.plasmid.opencl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opencl.CL10;
+import org.lwjgl.opencl.CLCommandQueue;
+import org.lwjgl.opencl.CLEvent;
+
+/**
+ * Collects the OpenCL profiling timestamps of enqueued commands. The command queue has to be created
+ * with CL_QUEUE_PROFILING_ENABLE.
+ *
+ * Pass {@link #event()} as the event argument of an enqueue call, and then call
+ * {@link #record(CLCommandQueue, String, Category)} with the kernel name the command belongs to.
+ * When profiling is disabled event() returns null, so no events are created.
+ * Call {@link #collect()} once the commands are finished, typically once per frame, to read the
+ * timestamps and release the events.
+ */
+public class CLProfiler {
+
+	/**
+	 * System property enabling profiling. Set to true to print a summary, or to a file name to also write
+	 * a Chrome trace (chrome://tracing) timeline to that file.
+	 */
+	public static final String PROFILE_PROPERTY = "opencl.profile";
+
+	public enum Category {
+		UPLOAD, KERNEL, READBACK, OTHER;
+	}
+
+	private static final int MAX_RECORDS = 100000;
+
+	private final boolean enabled;
+	private final File traceFile;
+
+	private final PointerBuffer eventBuffer = BufferUtils.createPointerBuffer(1);
+	private final List<Record> pending = new ArrayList<Record>();
+	private final List<Record> completed = new ArrayList<Record>();
+	private long droppedRecords = 0;
+
+	public CLProfiler() {
+		String value = System.getProperty(PROFILE_PROPERTY);
+		if (null == value || value.isEmpty() || "false".equalsIgnoreCase(value)) {
+			enabled = false;
+			traceFile = null;
+		} else if ("true".equalsIgnoreCase(value)) {
+			enabled = true;
+			traceFile = null;
+		} else {
+			enabled = true;
+			traceFile = new File(value);
+		}
+	}
+
+	/**
+	 * @param enabled true to record commands.
+	 * @param traceFile the file to write the timeline to in {@link #finish()}, may be null.
+	 */
+	public CLProfiler(boolean enabled, File traceFile) {
+		this.enabled = enabled;
+		this.traceFile = traceFile;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Get the buffer to pass as event argument to the next enqueue call.
+	 * @return the event buffer, or null when profiling is disabled.
+	 */
+	public PointerBuffer event() {
+		if (!enabled) {
+			return null;
+		}
+		eventBuffer.put(0, 0L);
+		return eventBuffer;
+	}
+
+	/**
+	 * Record the command that was just enqueued with the buffer from {@link #event()}.
+	 * @param queue the queue the command was enqueued on.
+	 * @param name the name of the kernel the command belongs to.
+	 * @param category what kind of command it was.
+	 */
+	public void record(CLCommandQueue queue, String name, Category category) {
+		if (!enabled || eventBuffer.get(0) == 0L) {
+			return;
+		}
+		CLEvent clEvent = queue.getCLEvent(eventBuffer.get(0));
+		eventBuffer.put(0, 0L);
+		if (null != clEvent) {
+			pending.add(new Record(name, category, clEvent));
+		}
+	}
+
+	/**
+	 * Record a command enqueued with an event the caller keeps using, for instance to wait on it. The
+	 * profiler retains the event, so the caller still has to release its own reference.
+	 * @param name the name of the kernel the command belongs to.
+	 * @param category what kind of command it was.
+	 * @param event the event of the command.
+	 */
+	public void record(String name, Category category, CLEvent event) {
+		if (!enabled || null == event) {
+			return;
+		}
+		CL10.clRetainEvent(event);
+		pending.add(new Record(name, category, event));
+	}
+
+	/**
+	 * Wait for all recorded commands, read their timestamps and release the events.
+	 */
+	public void collect() {
+		for (Record record : pending) {
+			CL10.clWaitForEvents(record.event);
+			record.queued = record.event.getProfilingInfoLong(CL10.CL_PROFILING_COMMAND_QUEUED);
+			record.submit = record.event.getProfilingInfoLong(CL10.CL_PROFILING_COMMAND_SUBMIT);
+			record.start = record.event.getProfilingInfoLong(CL10.CL_PROFILING_COMMAND_START);
+			record.end = record.event.getProfilingInfoLong(CL10.CL_PROFILING_COMMAND_END);
+			CL10.clReleaseEvent(record.event);
+			record.event = null;
+
+			if (completed.size() < MAX_RECORDS) {
+				completed.add(record);
+			} else {
+				droppedRecords++;
+			}
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Collect outstanding events, print the summary and write the timeline if a trace file is set.
+	 * Has to be called before the context is released.
+	 */
+	public void finish() {
+		if (!enabled) {
+			return;
+		}
+		collect();
+		printSummary();
+		if (null != traceFile) {
+			try {
+				writeChromeTrace(traceFile);
+				System.out.println("OpenCL timeline written to " + traceFile);
+			} catch (IOException e) {
+				System.err.println("Could not write OpenCL timeline " + traceFile + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Print the device time spent on upload, kernel and readback per kernel name.
+	 */
+	public void printSummary() {
+		Map<String, long[]> totals = new LinkedHashMap<String, long[]>();
+		Map<String, long[]> counts = new LinkedHashMap<String, long[]>();
+		for (Record record : completed) {
+			long[] total = totals.get(record.name);
+			long[] count = counts.get(record.name);
+			if (null == total) {
+				total = new long[Category.values().length];
+				count = new long[Category.values().length];
+				totals.put(record.name, total);
+				counts.put(record.name, count);
+			}
+			total[record.category.ordinal()] += record.end - record.start;
+			count[record.category.ordinal()]++;
+		}
+
+		System.out.println(String.format("%-20s %14s %14s %14s %14s", "OpenCL profile (ms)",
+				"upload", "kernel", "readback", "other"));
+		for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+			long[] total = entry.getValue();
+			long[] count = counts.get(entry.getKey());
+			StringBuilder sb = new StringBuilder(String.format("%-20s", entry.getKey()));
+			for (int i = 0; i < total.length; i++) {
+				sb.append(String.format(" %9.3f/%-4d", total[i] / 1000000.0, count[i]));
+			}
+			System.out.println(sb.toString());
+		}
+		if (droppedRecords > 0) {
+			System.out.println(droppedRecords + " commands not recorded, limit is " + MAX_RECORDS);
+		}
+	}
+
+	/**
+	 * Write the collected commands as a Chrome trace event file. Each category gets its own row, and
+	 * the queued and submit timestamps are kept as arguments of the events.
+	 * @param file the file to write.
+	 * @throws IOException if the file could not be written.
+	 */
+	public void writeChromeTrace(File file) throws IOException {
+		long origin = Long.MAX_VALUE;
+		for (Record record : completed) {
+			origin = Math.min(origin, record.queued);
+		}
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+		try {
+			writer.write("{\"traceEvents\":[\n");
+			for (Category category : Category.values()) {
+				writer.write(String.format("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,"
+						+ "\"args\":{\"name\":\"%s\"}}", category.ordinal(), category.name()));
+				writer.write(category.ordinal() < Category.values().length - 1 || !completed.isEmpty() ? ",\n" : "\n");
+			}
+			for (int i = 0; i < completed.size(); i++) {
+				Record record = completed.get(i);
+				writer.write(String.format(Locale.ROOT, "{\"name\":\"%s\",\"cat\":\"%s\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,"
+						+ "\"ts\":%.3f,\"dur\":%.3f,\"args\":{\"queued\":%.3f,\"submit\":%.3f}}",
+						escape(record.name), record.category.name(), record.category.ordinal(),
+						(record.start - origin) / 1000.0, (record.end - record.start) / 1000.0,
+						(record.queued - origin) / 1000.0, (record.submit - origin) / 1000.0));
+				writer.write(i < completed.size() - 1 ? ",\n" : "\n");
+			}
+			writer.write("],\"displayTimeUnit\":\"ms\"}\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Forget all collected commands.
+	 */
+	public void reset() {
+		completed.clear();
+		droppedRecords = 0;
+	}
+
+	private String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static class Record {
+
+		private final String name;
+		private final Category category;
+		private CLEvent event;
+		private long queued;
+		private long submit;
+		private long start;
+		private long end;
+
+		Record(String name, Category category, CLEvent event) {
+			this.name = name;
+			this.category = category;
+			this.event = event;
+		}
+
+	}
+
+}
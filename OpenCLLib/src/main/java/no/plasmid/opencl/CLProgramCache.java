@@ -0,0 +1,261 @@
+package no.plasmid.opencl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opencl.CL10;
+import org.lwjgl.opencl.CLContext;
+import org.lwjgl.opencl.CLDevice;
+import org.lwjgl.opencl.CLProgram;
+import org.lwjgl.opencl.OpenCLException;
+import org.lwjgl.opencl.Util;
+
+/**
+ * Builds OpenCL programs, keeping the compiled binaries on disk so later starts can skip compilation.
+ *
+ * Entries are keyed by a hash of the source, the build options, the device name and the driver version,
+ * so a changed kernel or an updated driver never picks up an old binary. Entries the driver refuses to
+ * load or build are deleted and the program is rebuilt from source. The least recently used entries are
+ * deleted when the cache holds more than maxEntries binaries.
+ */
+public class CLProgramCache {
+
+	/**
+	 * System property holding the cache directory. Defaults to .opencl-cache in the user home directory.
+	 */
+	public static final String CACHE_DIR_PROPERTY = "opencl.cache.dir";
+	/**
+	 * System property that disables the cache when set to false.
+	 */
+	public static final String CACHE_ENABLED_PROPERTY = "opencl.cache";
+
+	private static final String ENTRY_SUFFIX = ".bin";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File cacheDir;
+	private final int maxEntries;
+
+	public CLProgramCache() {
+		this(getDefaultCacheDir(), 64);
+	}
+
+	/**
+	 * @param cacheDir the directory to keep binaries in, null to disable caching.
+	 * @param maxEntries the maximum number of binaries to keep.
+	 */
+	public CLProgramCache(File cacheDir, int maxEntries) {
+		this.cacheDir = cacheDir;
+		this.maxEntries = maxEntries;
+	}
+
+	private static File getDefaultCacheDir() {
+		if ("false".equalsIgnoreCase(System.getProperty(CACHE_ENABLED_PROPERTY))) {
+			return null;
+		}
+		String dir = System.getProperty(CACHE_DIR_PROPERTY);
+		if (null == dir) {
+			dir = System.getProperty("user.home") + File.separator + ".opencl-cache";
+		}
+		return new File(dir);
+	}
+
+	/**
+	 * Get a built program for the source, loading the binary from the cache when possible.
+	 * @param context the context to create the program in.
+	 * @param device the device to build the program for.
+	 * @param source the program source.
+	 * @param options the build options, may be null.
+	 * @return the built program.
+	 */
+	public CLProgram buildProgram(CLContext context, CLDevice device, String source, String options) {
+		if (null == options) {
+			options = "";
+		}
+		if (null == cacheDir) {
+			return buildFromSource(context, device, source, options);
+		}
+
+		File entry = new File(cacheDir, createKey(device, source, options) + ENTRY_SUFFIX);
+		if (entry.isFile()) {
+			CLProgram program = loadBinary(context, device, entry, options);
+			if (null != program) {
+				entry.setLastModified(System.currentTimeMillis());
+				return program;
+			}
+			//Stale or broken entry
+			System.out.println("Evicting OpenCL program cache entry " + entry.getName());
+			entry.delete();
+		}
+
+		CLProgram program = buildFromSource(context, device, source, options);
+		storeBinary(program, entry);
+		return program;
+	}
+
+	private CLProgram buildFromSource(CLContext context, CLDevice device, String source, String options) {
+		IntBuffer errorCodeBuffer = BufferUtils.createIntBuffer(1);
+		CLProgram program = CL10.clCreateProgramWithSource(context, source, errorCodeBuffer);
+		Util.checkCLError(errorCodeBuffer.get(0));
+		try {
+			Util.checkCLError(CL10.clBuildProgram(program, device, options, null));
+		} catch (OpenCLException e) {
+			//Print the compilation errors before giving up
+			System.err.println(program.getBuildInfoString(device, CL10.CL_PROGRAM_BUILD_LOG));
+			CL10.clReleaseProgram(program);
+			throw e;
+		}
+		return program;
+	}
+
+	private CLProgram loadBinary(CLContext context, CLDevice device, File entry, String options) {
+		ByteBuffer binary;
+		try {
+			binary = readFile(entry);
+		} catch (IOException e) {
+			return null;
+		}
+
+		IntBuffer binaryStatus = BufferUtils.createIntBuffer(1);
+		IntBuffer errorCodeBuffer = BufferUtils.createIntBuffer(1);
+		CLProgram program = CL10.clCreateProgramWithBinary(context, device, binary, binaryStatus, errorCodeBuffer);
+		if (errorCodeBuffer.get(0) != CL10.CL_SUCCESS || binaryStatus.get(0) != CL10.CL_SUCCESS) {
+			if (null != program) {
+				CL10.clReleaseProgram(program);
+			}
+			return null;
+		}
+		if (CL10.clBuildProgram(program, device, options, null) != CL10.CL_SUCCESS) {
+			CL10.clReleaseProgram(program);
+			return null;
+		}
+		return program;
+	}
+
+	private void storeBinary(CLProgram program, File entry) {
+		long[] binarySizes = program.getInfoSizeArray(CL10.CL_PROGRAM_BINARY_SIZES);
+		if (null == binarySizes || binarySizes.length != 1 || binarySizes[0] <= 0) {
+			//Nothing we can cache
+			return;
+		}
+		ByteBuffer binary = BufferUtils.createByteBuffer((int)binarySizes[0]);
+		program.getInfoBinaries(binary);
+		binary.rewind();
+
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+			System.err.println("Could not create OpenCL program cache directory " + cacheDir);
+			return;
+		}
+		File temp = new File(cacheDir, entry.getName() + ".tmp");
+		try {
+			FileOutputStream os = new FileOutputStream(temp);
+			try {
+				FileChannel channel = os.getChannel();
+				while (binary.hasRemaining()) {
+					channel.write(binary);
+				}
+			} finally {
+				os.close();
+			}
+			//Move into place so a concurrent reader never sees a partial binary
+			Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Could not store OpenCL program binary " + entry + ": " + e.getMessage());
+			temp.delete();
+			return;
+		}
+
+		trim();
+	}
+
+	/**
+	 * Delete the least recently used entries until the cache holds at most maxEntries binaries.
+	 */
+	private void trim() {
+		File[] entries = cacheDir.listFiles();
+		if (null == entries) {
+			return;
+		}
+		entries = filterEntries(entries);
+		if (entries.length <= maxEntries) {
+			return;
+		}
+		Arrays.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				return Long.compare(o1.lastModified(), o2.lastModified());
+			}
+		});
+		for (int i = 0; i < entries.length - maxEntries; i++) {
+			entries[i].delete();
+		}
+	}
+
+	private File[] filterEntries(File[] files) {
+		int count = 0;
+		File[] rc = new File[files.length];
+		for (File file : files) {
+			if (file.isFile() && file.getName().endsWith(ENTRY_SUFFIX)) {
+				rc[count++] = file;
+			}
+		}
+		return Arrays.copyOf(rc, count);
+	}
+
+	private ByteBuffer readFile(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer rc = BufferUtils.createByteBuffer((int)channel.size());
+			while (rc.hasRemaining()) {
+				if (channel.read(rc) < 0) {
+					throw new IOException("Unexpected end of file " + file);
+				}
+			}
+			rc.rewind();
+			return rc;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private String createKey(CLDevice device, String source, String options) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+		update(digest, source);
+		update(digest, options);
+		update(digest, device.getInfoString(CL10.CL_DEVICE_NAME));
+		update(digest, device.getInfoString(CL10.CL_DEVICE_VERSION));
+		update(digest, device.getInfoString(CL10.CL_DRIVER_VERSION));
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest()) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	private void update(MessageDigest digest, String value) {
+		digest.update(value.getBytes(UTF8));
+		//Separator, so "ab" + "c" and "a" + "bc" give different keys
+		digest.update((byte)0);
+	}
+
+}
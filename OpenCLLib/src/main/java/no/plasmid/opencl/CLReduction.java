@@ -0,0 +1,340 @@
+package no.plasmid.opencl;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opencl.CL10;
+import org.lwjgl.opencl.CLCommandQueue;
+import org.lwjgl.opencl.CLContext;
+import org.lwjgl.opencl.CLDevice;
+import org.lwjgl.opencl.CLKernel;
+import org.lwjgl.opencl.CLMem;
+import org.lwjgl.opencl.CLProgram;
+import org.lwjgl.opencl.Util;
+
+/**
+ * Reductions of device arrays to a few values: sum, min, max, argmin, argmax and histograms. Only the
+ * result is read back, not the array.
+ *
+ * Each reduction runs in passes. A pass uses at most MAX_GROUPS work groups, each combining its part of
+ * the input in local memory and writing one partial result, and the next pass reduces the partial
+ * results, until one value is left. The calls block until the result is read back.
+ *
+ * Float sums are added in another order than a loop on the host, so they can differ in the last bits.
+ * The histogram uses the 32 bit base atomics extensions, which are in all OpenCL 1.1 devices, and the
+ * program does not build without them.
+ */
+public class CLReduction {
+
+	/**
+	 * Class path location of the kernel source.
+	 */
+	public static final String SOURCE_PATH = "/cl/lib/reduce.cl";
+
+	private static final int MAX_GROUPS = 256;
+
+	private final CLCommandQueue queue;
+	private final CLContext context;
+	private final long localMemSize;
+	private final CLProgram program;
+	private final CLKernel sumFloat;
+	private final CLKernel minFloat;
+	private final CLKernel maxFloat;
+	private final CLKernel sumInt;
+	private final CLKernel sumLong;
+	private final CLKernel minInt;
+	private final CLKernel maxInt;
+	private final CLKernel argMinFloat;
+	private final CLKernel argMaxFloat;
+	private final CLKernel histogramFloat;
+	private final int groupSize;
+
+	//Partial results, used in turn as input and output of the passes
+	private final CLMem[] partialValues = new CLMem[2];
+	private final CLMem[] partialIndices = new CLMem[2];
+
+	private final IntBuffer errorCodeBuffer = BufferUtils.createIntBuffer(1);
+	private final PointerBuffer globalWorkSize = BufferUtils.createPointerBuffer(1);
+	private final PointerBuffer localWorkSize = BufferUtils.createPointerBuffer(1);
+	private final ByteBuffer resultBuffer = BufferUtils.createByteBuffer(8);
+	private final ByteBuffer indexBuffer = BufferUtils.createByteBuffer(4);
+
+	private CLProfiler profiler = null;
+
+	/**
+	 * Build the reduction kernels and allocate the buffers for partial results.
+	 * @param context the context.
+	 * @param device the device to build the kernels for.
+	 * @param queue the queue to enqueue on.
+	 * @param programCache the cache to build the program with.
+	 */
+	public CLReduction(CLContext context, CLDevice device, CLCommandQueue queue, CLProgramCache programCache) {
+		this.context = context;
+		this.queue = queue;
+		localMemSize = device.getInfoLong(CL10.CL_DEVICE_LOCAL_MEM_SIZE);
+		program = programCache.buildProgram(context, device, CLSources.load(SOURCE_PATH), "");
+		sumFloat = createKernel("reduce_sum_float");
+		minFloat = createKernel("reduce_min_float");
+		maxFloat = createKernel("reduce_max_float");
+		sumInt = createKernel("reduce_sum_int");
+		sumLong = createKernel("reduce_sum_long");
+		minInt = createKernel("reduce_min_int");
+		maxInt = createKernel("reduce_max_int");
+		argMinFloat = createKernel("reduce_argmin_float");
+		argMaxFloat = createKernel("reduce_argmax_float");
+		histogramFloat = createKernel("histogram_float");
+
+		//One power of two group size all kernels can run with
+		long maxGroupSize = 256;
+		for (CLKernel kernel : new CLKernel[] {sumFloat, minFloat, maxFloat, sumInt, sumLong, minInt, maxInt,
+				argMinFloat, argMaxFloat, histogramFloat}) {
+			maxGroupSize = Math.min(maxGroupSize, kernel.getWorkGroupInfoSize(device, CL10.CL_KERNEL_WORK_GROUP_SIZE));
+		}
+		int size = 1;
+		while (size * 2 <= maxGroupSize) {
+			size *= 2;
+		}
+		groupSize = size;
+		localWorkSize.put(0, groupSize);
+
+		for (int i = 0; i < 2; i++) {
+			partialValues[i] = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_WRITE, MAX_GROUPS * 8, errorCodeBuffer);
+			Util.checkCLError(errorCodeBuffer.get(0));
+			partialIndices[i] = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_WRITE, MAX_GROUPS * 4, errorCodeBuffer);
+			Util.checkCLError(errorCodeBuffer.get(0));
+		}
+	}
+
+	private CLKernel createKernel(String name) {
+		CLKernel rc = CL10.clCreateKernel(program, name, errorCodeBuffer);
+		Util.checkCLError(errorCodeBuffer.get(0));
+		return rc;
+	}
+
+	/**
+	 * Record the commands of later reductions in a profiler.
+	 * @param profiler the profiler, or null to stop recording.
+	 */
+	public void setProfiler(CLProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * @param in device array of floats.
+	 * @param count the number of elements.
+	 * @return the sum, 0 for no elements.
+	 */
+	public float sum(CLMem in, int count) {
+		return reduce(sumFloat, sumFloat, "reduce_sum_float", in, count, 4).getFloat(0);
+	}
+
+	/**
+	 * @param in device array of floats.
+	 * @param count the number of elements.
+	 * @return the lowest value, ignoring NaN, or positive infinity for no values.
+	 */
+	public float min(CLMem in, int count) {
+		return reduce(minFloat, minFloat, "reduce_min_float", in, count, 4).getFloat(0);
+	}
+
+	/**
+	 * @param in device array of floats.
+	 * @param count the number of elements.
+	 * @return the highest value, ignoring NaN, or negative infinity for no values.
+	 */
+	public float max(CLMem in, int count) {
+		return reduce(maxFloat, maxFloat, "reduce_max_float", in, count, 4).getFloat(0);
+	}
+
+	/**
+	 * @param in device array of ints.
+	 * @param count the number of elements.
+	 * @return the sum, without overflow.
+	 */
+	public long sumInt(CLMem in, int count) {
+		return reduce(sumInt, sumLong, "reduce_sum_int", in, count, 8).getLong(0);
+	}
+
+	/**
+	 * @param in device array of ints.
+	 * @param count the number of elements.
+	 * @return the lowest value, or Integer.MAX_VALUE for no elements.
+	 */
+	public int minInt(CLMem in, int count) {
+		return reduce(minInt, minInt, "reduce_min_int", in, count, 4).getInt(0);
+	}
+
+	/**
+	 * @param in device array of ints.
+	 * @param count the number of elements.
+	 * @return the highest value, or Integer.MIN_VALUE for no elements.
+	 */
+	public int maxInt(CLMem in, int count) {
+		return reduce(maxInt, maxInt, "reduce_max_int", in, count, 4).getInt(0);
+	}
+
+	/**
+	 * @param in device array of floats.
+	 * @param count the number of elements.
+	 * @return the index of the lowest value, the first one if there are several, or -1 if all are NaN.
+	 */
+	public int argMin(CLMem in, int count) {
+		return argReduce(argMinFloat, "reduce_argmin_float", in, count);
+	}
+
+	/**
+	 * @param in device array of floats.
+	 * @param count the number of elements.
+	 * @return the index of the highest value, the first one if there are several, or -1 if all are NaN.
+	 */
+	public int argMax(CLMem in, int count) {
+		return argReduce(argMaxFloat, "reduce_argmax_float", in, count);
+	}
+
+	/**
+	 * Count the values in equally wide bins between min and max. Values outside [min, max) and NaN are not
+	 * counted.
+	 * @param in device array of floats.
+	 * @param count the number of elements.
+	 * @param min the lower bound of the first bin.
+	 * @param max the upper bound of the last bin.
+	 * @param bins the number of bins, limited by the local memory of the device.
+	 * @return the count per bin.
+	 */
+	public int[] histogram(CLMem in, int count, float min, float max, int bins) {
+		if (bins <= 0 || (long)bins * 4 > localMemSize) {
+			throw new IllegalArgumentException("Bins must be between 1 and " + localMemSize / 4 + ", was " + bins);
+		}
+		if (!(max > min)) {
+			throw new IllegalArgumentException("Range is empty, min " + min + " max " + max);
+		}
+		//The counts are added to the output, so it starts out as zeros
+		IntBuffer counts = BufferUtils.createIntBuffer(bins);
+		CLMem out = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_WRITE | CL10.CL_MEM_COPY_HOST_PTR, counts,
+				errorCodeBuffer);
+		Util.checkCLError(errorCodeBuffer.get(0));
+		try {
+			histogramFloat.setArg(0, in);
+			histogramFloat.setArg(1, count);
+			histogramFloat.setArg(2, min);
+			histogramFloat.setArg(3, histogramScale(min, max, bins));
+			histogramFloat.setArg(4, bins);
+			histogramFloat.setArg(5, out);
+			histogramFloat.setArgSize(6, bins * 4);
+			enqueue(histogramFloat, "histogram_float", groupsFor(count));
+			Util.checkCLError(CL10.clEnqueueReadBuffer(queue, out, CL10.CL_TRUE, 0, counts, null, event()));
+			record("histogram_float", CLProfiler.Category.READBACK);
+		} finally {
+			CL10.clReleaseMemObject(out);
+		}
+		int[] rc = new int[bins];
+		counts.get(rc);
+		return rc;
+	}
+
+	/**
+	 * The scale the histogram uses to find the bin of a value, (value - min) * scale. Use it on the host to
+	 * put values in the same bins.
+	 * @param min the lower bound of the first bin.
+	 * @param max the upper bound of the last bin.
+	 * @param bins the number of bins.
+	 * @return the scale.
+	 */
+	public static float histogramScale(float min, float max, int bins) {
+		return bins / (max - min);
+	}
+
+	private ByteBuffer reduce(CLKernel first, CLKernel next, String name, CLMem in, int count, int accumulatorSize) {
+		CLMem input = in;
+		CLKernel kernel = first;
+		int remaining = count;
+		int target = 0;
+		do {
+			int groups = groupsFor(remaining);
+			kernel.setArg(0, input);
+			kernel.setArg(1, remaining);
+			kernel.setArg(2, partialValues[target]);
+			kernel.setArgSize(3, groupSize * accumulatorSize);
+			enqueue(kernel, name, groups);
+			input = partialValues[target];
+			target ^= 1;
+			kernel = next;
+			remaining = groups;
+		} while (remaining > 1);
+
+		resultBuffer.clear().limit(accumulatorSize);
+		Util.checkCLError(CL10.clEnqueueReadBuffer(queue, input, CL10.CL_TRUE, 0, resultBuffer, null, event()));
+		record(name, CLProfiler.Category.READBACK);
+		return resultBuffer;
+	}
+
+	private int argReduce(CLKernel kernel, String name, CLMem in, int count) {
+		CLMem values = in;
+		//The first pass does not read indices, but the argument must be a buffer
+		CLMem indices = partialIndices[1];
+		int remaining = count;
+		int target = 0;
+		boolean firstPass = true;
+		do {
+			int groups = groupsFor(remaining);
+			kernel.setArg(0, values);
+			kernel.setArg(1, indices);
+			kernel.setArg(2, firstPass ? 1 : 0);
+			kernel.setArg(3, remaining);
+			kernel.setArg(4, partialValues[target]);
+			kernel.setArg(5, partialIndices[target]);
+			kernel.setArgSize(6, groupSize * 4);
+			kernel.setArgSize(7, groupSize * 4);
+			enqueue(kernel, name, groups);
+			values = partialValues[target];
+			indices = partialIndices[target];
+			target ^= 1;
+			firstPass = false;
+			remaining = groups;
+		} while (remaining > 1);
+
+		indexBuffer.clear();
+		Util.checkCLError(CL10.clEnqueueReadBuffer(queue, indices, CL10.CL_TRUE, 0, indexBuffer, null, event()));
+		record(name, CLProfiler.Category.READBACK);
+		return indexBuffer.getInt(0);
+	}
+
+	private int groupsFor(int count) {
+		return Math.max(1, Math.min(MAX_GROUPS, (count + groupSize - 1) / groupSize));
+	}
+
+	private void enqueue(CLKernel kernel, String name, int groups) {
+		globalWorkSize.put(0, groups * groupSize);
+		Util.checkCLError(CL10.clEnqueueNDRangeKernel(queue, kernel, 1, null, globalWorkSize, localWorkSize, null,
+				event()));
+		record(name, CLProfiler.Category.KERNEL);
+	}
+
+	private PointerBuffer event() {
+		return null == profiler ? null : profiler.event();
+	}
+
+	private void record(String name, CLProfiler.Category category) {
+		if (null != profiler) {
+			profiler.record(queue, name, category);
+		}
+	}
+
+	/**
+	 * Release the kernels, the program and the partial result buffers.
+	 */
+	public void release() {
+		for (CLKernel kernel : new CLKernel[] {sumFloat, minFloat, maxFloat, sumInt, sumLong, minInt, maxInt,
+				argMinFloat, argMaxFloat, histogramFloat}) {
+			CL10.clReleaseKernel(kernel);
+		}
+		CL10.clReleaseProgram(program);
+		for (int i = 0; i < 2; i++) {
+			CL10.clReleaseMemObject(partialValues[i]);
+			CL10.clReleaseMemObject(partialIndices[i]);
+		}
+	}
+
+}
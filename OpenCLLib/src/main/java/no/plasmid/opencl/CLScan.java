@@ -0,0 +1,293 @@
+package no.plasmid.opencl;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opencl.CL10;
+import org.lwjgl.opencl.CLCommandQueue;
+import org.lwjgl.opencl.CLContext;
+import org.lwjgl.opencl.CLDevice;
+import org.lwjgl.opencl.CLKernel;
+import org.lwjgl.opencl.CLMem;
+import org.lwjgl.opencl.CLProgram;
+import org.lwjgl.opencl.Util;
+
+/**
+ * Prefix sums and stream compaction of device arrays, building blocks for sorting into grid cells and for
+ * sparse output.
+ *
+ * A scan runs scan_blocks on blocks of one work group, scans the block totals the same way, and adds
+ * them back to the blocks. Compaction flags the elements to keep with 0 or 1, scans the flags to get the
+ * output positions, and writes the kept elements or their indices in their original order. Only the
+ * number of kept elements is read back.
+ */
+public class CLScan {
+
+	/**
+	 * Class path location of the kernel source.
+	 */
+	public static final String SOURCE_PATH = "/cl/lib/scan.cl";
+
+	private final CLContext context;
+	private final CLCommandQueue queue;
+	private final CLProgram program;
+	private final CLKernel scanBlocks;
+	private final CLKernel scanAdd;
+	private final CLKernel flagGreater;
+	private final CLKernel flagLess;
+	private final CLKernel compactFloat;
+	private final CLKernel compactIndex;
+	private final int groupSize;
+
+	//Block totals per level of the scan, and the output positions of compaction, grown when needed
+	private final List<CLMem> levelSums = new ArrayList<CLMem>();
+	private final List<Integer> levelCapacities = new ArrayList<Integer>();
+	private CLMem positions = null;
+	private int positionsCapacity = 0;
+
+	private final IntBuffer errorCodeBuffer = BufferUtils.createIntBuffer(1);
+	private final PointerBuffer globalWorkSize = BufferUtils.createPointerBuffer(1);
+	private final PointerBuffer localWorkSize = BufferUtils.createPointerBuffer(1);
+	private final IntBuffer lastBuffer = BufferUtils.createIntBuffer(1);
+
+	private CLProfiler profiler = null;
+
+	/**
+	 * Build the scan kernels.
+	 * @param context the context.
+	 * @param device the device to build the kernels for.
+	 * @param queue the queue to enqueue on.
+	 * @param programCache the cache to build the program with.
+	 */
+	public CLScan(CLContext context, CLDevice device, CLCommandQueue queue, CLProgramCache programCache) {
+		this.context = context;
+		this.queue = queue;
+		program = programCache.buildProgram(context, device, CLSources.load(SOURCE_PATH), "");
+		scanBlocks = createKernel("scan_blocks");
+		scanAdd = createKernel("scan_add");
+		flagGreater = createKernel("flag_greater_float");
+		flagLess = createKernel("flag_less_float");
+		compactFloat = createKernel("compact_float");
+		compactIndex = createKernel("compact_index");
+
+		//scan_blocks and scan_add must run with the same group size
+		long maxGroupSize = Math.min(256, Math.min(scanBlocks.getWorkGroupInfoSize(device, CL10.CL_KERNEL_WORK_GROUP_SIZE),
+				scanAdd.getWorkGroupInfoSize(device, CL10.CL_KERNEL_WORK_GROUP_SIZE)));
+		int size = 1;
+		while (size * 2 <= maxGroupSize) {
+			size *= 2;
+		}
+		groupSize = size;
+		localWorkSize.put(0, groupSize);
+	}
+
+	private CLKernel createKernel(String name) {
+		CLKernel rc = CL10.clCreateKernel(program, name, errorCodeBuffer);
+		Util.checkCLError(errorCodeBuffer.get(0));
+		return rc;
+	}
+
+	/**
+	 * Record the commands of later calls in a profiler.
+	 * @param profiler the profiler, or null to stop recording.
+	 */
+	public void setProfiler(CLProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Enqueue an exclusive scan, out[i] is the sum of in[0] to in[i - 1].
+	 * @param in device array of ints.
+	 * @param out device array for the result, may be the same as in.
+	 * @param count the number of elements.
+	 */
+	public void exclusiveScan(CLMem in, CLMem out, int count) {
+		scan(in, out, count, false, 0);
+	}
+
+	/**
+	 * Enqueue an inclusive scan, out[i] is the sum of in[0] to in[i].
+	 * @param in device array of ints.
+	 * @param out device array for the result, may be the same as in.
+	 * @param count the number of elements.
+	 */
+	public void inclusiveScan(CLMem in, CLMem out, int count) {
+		scan(in, out, count, true, 0);
+	}
+
+	/**
+	 * Enqueue flagging of the elements greater than a threshold.
+	 * @param in device array of floats.
+	 * @param count the number of elements.
+	 * @param threshold the threshold.
+	 * @param flags device array of ints, set to 1 for elements greater than the threshold and 0 for others.
+	 */
+	public void flagGreater(CLMem in, int count, float threshold, CLMem flags) {
+		flag(flagGreater, "flag_greater_float", in, count, threshold, flags);
+	}
+
+	/**
+	 * Enqueue flagging of the elements less than a threshold.
+	 * @param in device array of floats.
+	 * @param count the number of elements.
+	 * @param threshold the threshold.
+	 * @param flags device array of ints, set to 1 for elements less than the threshold and 0 for others.
+	 */
+	public void flagLess(CLMem in, int count, float threshold, CLMem flags) {
+		flag(flagLess, "flag_less_float", in, count, threshold, flags);
+	}
+
+	/**
+	 * Copy the flagged elements to the start of out, in their original order.
+	 * @param in device array of floats.
+	 * @param flags device array of ints, 1 for elements to keep and 0 for others.
+	 * @param count the number of elements.
+	 * @param out device array for the kept elements, room for count elements in the worst case.
+	 * @return the number of kept elements.
+	 */
+	public int compact(CLMem in, CLMem flags, int count, CLMem out) {
+		int kept = scanFlags(flags, count);
+		compactFloat.setArg(0, in);
+		compactFloat.setArg(1, flags);
+		compactFloat.setArg(2, positions);
+		compactFloat.setArg(3, count);
+		compactFloat.setArg(4, out);
+		enqueue(compactFloat, "compact_float", count);
+		return kept;
+	}
+
+	/**
+	 * Write the indices of the flagged elements to the start of out, in increasing order.
+	 * @param flags device array of ints, 1 for elements to keep and 0 for others.
+	 * @param count the number of elements.
+	 * @param out device array of ints for the indices, room for count elements in the worst case.
+	 * @return the number of kept elements.
+	 */
+	public int compactIndices(CLMem flags, int count, CLMem out) {
+		int kept = scanFlags(flags, count);
+		compactIndex.setArg(0, flags);
+		compactIndex.setArg(1, positions);
+		compactIndex.setArg(2, count);
+		compactIndex.setArg(3, out);
+		enqueue(compactIndex, "compact_index", count);
+		return kept;
+	}
+
+	private void scan(CLMem in, CLMem out, int count, boolean inclusive, int level) {
+		if (count <= 0) {
+			return;
+		}
+		int groups = (count + groupSize - 1) / groupSize;
+		CLMem sums = levelSums(level, groups);
+		scanBlocks.setArg(0, in);
+		scanBlocks.setArg(1, out);
+		scanBlocks.setArg(2, count);
+		scanBlocks.setArg(3, inclusive ? 1 : 0);
+		scanBlocks.setArg(4, sums);
+		scanBlocks.setArgSize(5, groupSize * 4);
+		enqueue(scanBlocks, "scan_blocks", count);
+		if (groups > 1) {
+			//The exclusive scan of the block totals is the offset of each block
+			scan(sums, sums, groups, false, level + 1);
+			scanAdd.setArg(0, out);
+			scanAdd.setArg(1, count);
+			scanAdd.setArg(2, sums);
+			enqueue(scanAdd, "scan_add", count);
+		}
+	}
+
+	private int scanFlags(CLMem flags, int count) {
+		if (count <= 0) {
+			return 0;
+		}
+		if (positionsCapacity < count) {
+			if (null != positions) {
+				CL10.clReleaseMemObject(positions);
+			}
+			positions = createBuffer(count);
+			positionsCapacity = count;
+		}
+		//The exclusive scan is the output position of each kept element, the last position plus the last
+		//flag is the number of kept elements
+		scan(flags, positions, count, false, 0);
+		long lastOffset = (long)(count - 1) * 4;
+		int lastPosition = readInt(positions, lastOffset);
+		int lastFlag = readInt(flags, lastOffset);
+		return lastPosition + lastFlag;
+	}
+
+	private int readInt(CLMem mem, long offset) {
+		lastBuffer.clear();
+		Util.checkCLError(CL10.clEnqueueReadBuffer(queue, mem, CL10.CL_TRUE, offset, lastBuffer, null, event()));
+		record("scan", CLProfiler.Category.READBACK);
+		return lastBuffer.get(0);
+	}
+
+	private void flag(CLKernel kernel, String name, CLMem in, int count, float threshold, CLMem flags) {
+		kernel.setArg(0, in);
+		kernel.setArg(1, count);
+		kernel.setArg(2, threshold);
+		kernel.setArg(3, flags);
+		enqueue(kernel, name, count);
+	}
+
+	private CLMem levelSums(int level, int groups) {
+		if (levelSums.size() <= level) {
+			levelSums.add(createBuffer(groups));
+			levelCapacities.add(groups);
+		} else if (levelCapacities.get(level) < groups) {
+			CL10.clReleaseMemObject(levelSums.get(level));
+			levelSums.set(level, createBuffer(groups));
+			levelCapacities.set(level, groups);
+		}
+		return levelSums.get(level);
+	}
+
+	private CLMem createBuffer(int ints) {
+		CLMem rc = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_WRITE, (long)ints * 4, errorCodeBuffer);
+		Util.checkCLError(errorCodeBuffer.get(0));
+		return rc;
+	}
+
+	private void enqueue(CLKernel kernel, String name, int count) {
+		//Padded to whole groups, the kernels skip the padding
+		long groups = Math.max(1, (count + groupSize - 1) / groupSize);
+		globalWorkSize.put(0, groups * groupSize);
+		Util.checkCLError(CL10.clEnqueueNDRangeKernel(queue, kernel, 1, null, globalWorkSize, localWorkSize, null,
+				event()));
+		record(name, CLProfiler.Category.KERNEL);
+	}
+
+	private PointerBuffer event() {
+		return null == profiler ? null : profiler.event();
+	}
+
+	private void record(String name, CLProfiler.Category category) {
+		if (null != profiler) {
+			profiler.record(queue, name, category);
+		}
+	}
+
+	/**
+	 * Release the kernels, the program and the temporary buffers.
+	 */
+	public void release() {
+		for (CLKernel kernel : new CLKernel[] {scanBlocks, scanAdd, flagGreater, flagLess, compactFloat, compactIndex}) {
+			CL10.clReleaseKernel(kernel);
+		}
+		CL10.clReleaseProgram(program);
+		for (CLMem mem : levelSums) {
+			CL10.clReleaseMemObject(mem);
+		}
+		levelSums.clear();
+		levelCapacities.clear();
+		if (null != positions) {
+			CL10.clReleaseMemObject(positions);
+			positions = null;
+		}
+	}
+
+}
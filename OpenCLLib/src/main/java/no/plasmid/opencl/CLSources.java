@@ -0,0 +1,37 @@
+package no.plasmid.opencl;
+
+import java.io.InputStream;
+import java.util.Scanner;
+
+/**
+ * Loads kernel sources from the class path, from the library or the application jar, which also works
+ * when running from a jar file.
+ */
+public final class CLSources {
+
+	private CLSources() {
+	}
+
+	/**
+	 * Load a kernel source from the class path.
+	 * @param path the absolute resource path, for instance /cl/lib/generators.cl.
+	 * @return the source.
+	 */
+	public static String load(String path) {
+		InputStream is = CLSources.class.getResourceAsStream(path);
+		if (null == is) {
+			throw new IllegalStateException("Could not find kernel source " + path);
+		}
+		StringBuilder text = new StringBuilder();
+		Scanner scanner = new Scanner(is, "UTF-8");
+		try {
+			while (scanner.hasNextLine()) {
+				text.append(scanner.nextLine()).append('\n');
+			}
+		} finally {
+			scanner.close();
+		}
+		return text.toString();
+	}
+
+}
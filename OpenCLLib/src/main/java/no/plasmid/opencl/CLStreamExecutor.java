@@ -0,0 +1,378 @@
+package no.plasmid.opencl;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opencl.CL10;
+import org.lwjgl.opencl.CLCommandQueue;
+import org.lwjgl.opencl.CLContext;
+import org.lwjgl.opencl.CLDevice;
+import org.lwjgl.opencl.CLEvent;
+import org.lwjgl.opencl.CLKernel;
+import org.lwjgl.opencl.CLMem;
+import org.lwjgl.opencl.Util;
+
+/**
+ * Runs element-wise float kernels over arrays of any length, using a fixed amount of memory. The arrays
+ * are split in chunks that pass through a ring of slots, each slot with its own device buffers. Uploads,
+ * kernels and readbacks run on three command queues, chained with events, so the upload of one chunk,
+ * the kernel of the previous chunk and the readback of the one before that overlap.
+ *
+ * The kernel must take its inputs as the first arguments and the output as the last one, and compute
+ * element get_global_id(0) only, like:
+ *
+ * kernel void sum(global const float *a, global const float *b, global float *answer)
+ */
+public class CLStreamExecutor {
+
+	/**
+	 * Supplies the input chunks.
+	 */
+	public interface ChunkSource {
+		/**
+		 * Get the elements from offset to offset + count.
+		 * @param offset the index of the first element.
+		 * @param count the number of elements.
+		 * @param staging a direct buffer of count elements that may be filled and returned.
+		 * @return a direct buffer with the elements from its position to its limit.
+		 */
+		FloatBuffer read(long offset, int count, FloatBuffer staging);
+	}
+
+	/**
+	 * Receives the output chunks.
+	 */
+	public interface ChunkSink {
+		/**
+		 * Get the buffer the elements from offset to offset + count should be read into.
+		 * @param offset the index of the first element.
+		 * @param count the number of elements.
+		 * @param staging a direct buffer of count elements that may be returned.
+		 * @return a direct buffer with room for count elements from its position.
+		 */
+		FloatBuffer target(long offset, int count, FloatBuffer staging);
+
+		/**
+		 * Called when the elements are in the buffer returned by target().
+		 * @param offset the index of the first element.
+		 * @param chunk the buffer returned by target().
+		 */
+		void written(long offset, FloatBuffer chunk);
+	}
+
+	private final CLCommandQueue uploadQueue;
+	private final CLCommandQueue computeQueue;
+	private final CLCommandQueue readbackQueue;
+	private final CLContext context;
+	private final int chunkSize;
+	private final Slot[] slots;
+	private final IntBuffer errorCodeBuffer = BufferUtils.createIntBuffer(1);
+	private final PointerBuffer globalWorkSize = BufferUtils.createPointerBuffer(1);
+	private CLProfiler profiler = null;
+	private int inputCount = -1;
+
+	/**
+	 * @param context the context.
+	 * @param device the device to run on.
+	 * @param chunkSize the number of elements per chunk.
+	 * @param slotCount the number of chunks in flight, 3 lets upload, kernel and readback overlap.
+	 */
+	public CLStreamExecutor(CLContext context, CLDevice device, int chunkSize, int slotCount) {
+		if (chunkSize < 1 || slotCount < 2) {
+			throw new IllegalArgumentException("Need a positive chunk size and at least two slots");
+		}
+		this.context = context;
+		this.chunkSize = chunkSize;
+		uploadQueue = createQueue(context, device);
+		computeQueue = createQueue(context, device);
+		readbackQueue = createQueue(context, device);
+		slots = new Slot[slotCount];
+		for (int i = 0; i < slotCount; i++) {
+			slots[i] = new Slot();
+		}
+	}
+
+	private CLCommandQueue createQueue(CLContext context, CLDevice device) {
+		CLCommandQueue rc = CL10.clCreateCommandQueue(context, device, CL10.CL_QUEUE_PROFILING_ENABLE, errorCodeBuffer);
+		Util.checkCLError(errorCodeBuffer.get(0));
+		return rc;
+	}
+
+	/**
+	 * Record the commands of later runs in a profiler.
+	 * @param profiler the profiler, or null to stop recording.
+	 */
+	public void setProfiler(CLProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Run the kernel over whole buffers. Direct buffers are transferred in place, others through staging
+	 * buffers.
+	 * @param kernel the kernel.
+	 * @param name the kernel name used when profiling.
+	 * @param inputs the input buffers, from position to limit, all of the same length.
+	 * @param output the output buffer, from its position.
+	 */
+	public void run(CLKernel kernel, String name, FloatBuffer[] inputs, FloatBuffer output) {
+		ChunkSource[] sources = new ChunkSource[inputs.length];
+		for (int i = 0; i < inputs.length; i++) {
+			if (inputs[i].remaining() != inputs[0].remaining()) {
+				throw new IllegalArgumentException("All inputs must have the same length");
+			}
+			sources[i] = source(inputs[i]);
+		}
+		if (output.remaining() < inputs[0].remaining()) {
+			throw new IllegalArgumentException("Output has room for " + output.remaining() + " elements, need "
+					+ inputs[0].remaining());
+		}
+		run(kernel, name, inputs[0].remaining(), sources, sink(output));
+	}
+
+	/**
+	 * Run the kernel over elementCount elements.
+	 * @param kernel the kernel.
+	 * @param name the kernel name used when profiling.
+	 * @param elementCount the number of elements.
+	 * @param sources the inputs, one per kernel input argument.
+	 * @param sink the output.
+	 */
+	public void run(CLKernel kernel, String name, long elementCount, ChunkSource[] sources, ChunkSink sink) {
+		if (0 == sources.length) {
+			throw new IllegalArgumentException("At least one input is needed");
+		}
+		ensureInputCount(sources.length);
+		long chunkCount = (elementCount + chunkSize - 1) / chunkSize;
+		try {
+			for (long chunk = 0; chunk < chunkCount; chunk++) {
+				Slot slot = slots[(int)(chunk % slots.length)];
+				//The slot is free again once the chunk that used it is read back
+				finishChunk(slot, sink);
+
+				long offset = chunk * chunkSize;
+				int count = (int)Math.min(chunkSize, elementCount - offset);
+				slot.offset = offset;
+
+				//Upload, the in order queue makes the last write complete after the others
+				for (int i = 0; i < sources.length; i++) {
+					slot.inputStaging[i].clear().limit(count);
+					FloatBuffer data = sources[i].read(offset, count, slot.inputStaging[i]);
+					CL10.clEnqueueWriteBuffer(uploadQueue, slot.inputMem[i], CL10.CL_FALSE, 0, data, null,
+							slot.eventBuffer);
+					CLEvent event = uploadQueue.getCLEvent(slot.eventBuffer.get(0));
+					record(name, CLProfiler.Category.UPLOAD, event);
+					if (i < sources.length - 1) {
+						CL10.clReleaseEvent(event);
+					} else {
+						slot.uploadEvent = event;
+					}
+				}
+				CL10.clFlush(uploadQueue);
+
+				//Kernel, after the upload
+				for (int i = 0; i < sources.length; i++) {
+					kernel.setArg(i, slot.inputMem[i]);
+				}
+				kernel.setArg(sources.length, slot.outputMem);
+				globalWorkSize.put(0, count);
+				slot.waitList.put(0, slot.uploadEvent.getPointer());
+				CL10.clEnqueueNDRangeKernel(computeQueue, kernel, 1, null, globalWorkSize, null, slot.waitList,
+						slot.eventBuffer);
+				slot.kernelEvent = computeQueue.getCLEvent(slot.eventBuffer.get(0));
+				record(name, CLProfiler.Category.KERNEL, slot.kernelEvent);
+				CL10.clFlush(computeQueue);
+
+				//Readback, after the kernel
+				slot.outputStaging.clear().limit(count);
+				slot.target = sink.target(offset, count, slot.outputStaging);
+				slot.waitList.put(0, slot.kernelEvent.getPointer());
+				CL10.clEnqueueReadBuffer(readbackQueue, slot.outputMem, CL10.CL_FALSE, 0, slot.target, slot.waitList,
+						slot.eventBuffer);
+				slot.readbackEvent = readbackQueue.getCLEvent(slot.eventBuffer.get(0));
+				record(name, CLProfiler.Category.READBACK, slot.readbackEvent);
+				CL10.clFlush(readbackQueue);
+			}
+		} finally {
+			//Drain the chunks still in flight, oldest first
+			try {
+				for (long chunk = Math.max(chunkCount - slots.length, 0); chunk < chunkCount; chunk++) {
+					finishChunk(slots[(int)(chunk % slots.length)], sink);
+				}
+			} finally {
+				//After a failure, slots may hold the events of a chunk that never got to the readback
+				for (Slot slot : slots) {
+					releaseEvents(slot);
+				}
+			}
+		}
+	}
+
+	private static void releaseEvents(Slot slot) {
+		//Each command waits for the one before it, so the last event completes after the others
+		CLEvent last = null != slot.readbackEvent ? slot.readbackEvent
+				: null != slot.kernelEvent ? slot.kernelEvent : slot.uploadEvent;
+		if (null == last) {
+			return;
+		}
+		//The buffers of the slot are used again by the next run
+		CL10.clWaitForEvents(last);
+		for (CLEvent event : new CLEvent[] {slot.uploadEvent, slot.kernelEvent, slot.readbackEvent}) {
+			if (null != event) {
+				CL10.clReleaseEvent(event);
+			}
+		}
+		slot.uploadEvent = null;
+		slot.kernelEvent = null;
+		slot.readbackEvent = null;
+		slot.target = null;
+	}
+
+	private void finishChunk(Slot slot, ChunkSink sink) {
+		if (null == slot.readbackEvent) {
+			return;
+		}
+		CL10.clWaitForEvents(slot.readbackEvent);
+		CL10.clReleaseEvent(slot.uploadEvent);
+		CL10.clReleaseEvent(slot.kernelEvent);
+		CL10.clReleaseEvent(slot.readbackEvent);
+		slot.uploadEvent = null;
+		slot.kernelEvent = null;
+		slot.readbackEvent = null;
+		sink.written(slot.offset, slot.target);
+		slot.target = null;
+	}
+
+	private void record(String name, CLProfiler.Category category, CLEvent event) {
+		if (null != profiler) {
+			profiler.record(name, category, event);
+		}
+	}
+
+	/**
+	 * Allocate the buffers of the slots for the number of inputs.
+	 */
+	private void ensureInputCount(int count) {
+		if (count == inputCount) {
+			return;
+		}
+		releaseBuffers();
+		for (Slot slot : slots) {
+			slot.inputMem = new CLMem[count];
+			slot.inputStaging = new FloatBuffer[count];
+			for (int i = 0; i < count; i++) {
+				slot.inputMem[i] = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_ONLY, chunkSize * 4L, errorCodeBuffer);
+				Util.checkCLError(errorCodeBuffer.get(0));
+				slot.inputStaging[i] = BufferUtils.createFloatBuffer(chunkSize);
+			}
+			slot.outputMem = CL10.clCreateBuffer(context, CL10.CL_MEM_WRITE_ONLY, chunkSize * 4L, errorCodeBuffer);
+			Util.checkCLError(errorCodeBuffer.get(0));
+			slot.outputStaging = BufferUtils.createFloatBuffer(chunkSize);
+		}
+		inputCount = count;
+	}
+
+	private void releaseBuffers() {
+		for (Slot slot : slots) {
+			if (null != slot.inputMem) {
+				for (CLMem mem : slot.inputMem) {
+					CL10.clReleaseMemObject(mem);
+				}
+				CL10.clReleaseMemObject(slot.outputMem);
+			}
+			slot.inputMem = null;
+			slot.inputStaging = null;
+			slot.outputMem = null;
+			slot.outputStaging = null;
+		}
+		inputCount = -1;
+	}
+
+	/**
+	 * Release the buffers and queues.
+	 */
+	public void release() {
+		CL10.clFinish(uploadQueue);
+		CL10.clFinish(computeQueue);
+		CL10.clFinish(readbackQueue);
+		releaseBuffers();
+		CL10.clReleaseCommandQueue(uploadQueue);
+		CL10.clReleaseCommandQueue(computeQueue);
+		CL10.clReleaseCommandQueue(readbackQueue);
+	}
+
+	/**
+	 * Create a source reading from a buffer. Direct buffers are uploaded from directly.
+	 * @param buffer the buffer, from its position to its limit.
+	 * @return the source.
+	 */
+	public static ChunkSource source(final FloatBuffer buffer) {
+		final int start = buffer.position();
+		return new ChunkSource() {
+			@Override
+			public FloatBuffer read(long offset, int count, FloatBuffer staging) {
+				FloatBuffer chunk = slice(buffer, start + (int)offset, count);
+				if (chunk.isDirect()) {
+					return chunk;
+				}
+				staging.put(chunk);
+				staging.flip();
+				return staging;
+			}
+		};
+	}
+
+	/**
+	 * Create a sink writing to a buffer. Direct buffers are read into directly.
+	 * @param buffer the buffer, from its position.
+	 * @return the sink.
+	 */
+	public static ChunkSink sink(final FloatBuffer buffer) {
+		final int start = buffer.position();
+		return new ChunkSink() {
+			@Override
+			public FloatBuffer target(long offset, int count, FloatBuffer staging) {
+				return buffer.isDirect() ? slice(buffer, start + (int)offset, count) : staging;
+			}
+
+			@Override
+			public void written(long offset, FloatBuffer chunk) {
+				if (!buffer.isDirect()) {
+					slice(buffer, start + (int)offset, chunk.remaining()).put(chunk);
+				}
+			}
+		};
+	}
+
+	private static FloatBuffer slice(FloatBuffer buffer, int start, int count) {
+		FloatBuffer rc = buffer.duplicate();
+		rc.limit(start + count);
+		rc.position(start);
+		return rc.slice();
+	}
+
+	/**
+	 * Buffers and events of one chunk in flight.
+	 */
+	private static class Slot {
+
+		private CLMem[] inputMem;
+		private CLMem outputMem;
+		private FloatBuffer[] inputStaging;
+		private FloatBuffer outputStaging;
+		private final PointerBuffer eventBuffer = BufferUtils.createPointerBuffer(1);
+		private final PointerBuffer waitList = BufferUtils.createPointerBuffer(1);
+		private CLEvent uploadEvent;
+		private CLEvent kernelEvent;
+		private CLEvent readbackEvent;
+		private long offset;
+		private FloatBuffer target;
+
+	}
+
+}
@@ -0,0 +1,713 @@
+package no.plasmid.opencl;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * CPU backend for element-wise operations on float buffers, the counterpart of the element-wise kernels.
+ * The elements are split in ranges across the cores of a ForkJoinPool. Each range is processed in blocks
+ * that are bulk copied between the buffers and float arrays, and each operation has its own plain loop
+ * over the arrays, which the JIT compiler turns into SIMD instructions. Per element get() and put() calls
+ * on direct buffers are not vectorized.
+ *
+ * The reductions are the host fallback for {@link CLReduction}, with the same treatment of NaN, ties and
+ * histogram bins. Float sums are accumulated in double. Scans and compaction are the host fallback for
+ * {@link CLScan}: chunks are summed in parallel, the chunk sums are scanned, and the chunks are scanned
+ * or compacted in parallel from their offsets.
+ */
+public class CPUVectorOps {
+
+	/**
+	 * The operations, out = a op b per element.
+	 */
+	public enum Operation {
+		ADD {
+			@Override
+			void apply(float[] a, float[] b, float[] out, int count) {
+				for (int i = 0; i < count; i++) {
+					out[i] = a[i] + b[i];
+				}
+			}
+		},
+		SUB {
+			@Override
+			void apply(float[] a, float[] b, float[] out, int count) {
+				for (int i = 0; i < count; i++) {
+					out[i] = a[i] - b[i];
+				}
+			}
+		},
+		MUL {
+			@Override
+			void apply(float[] a, float[] b, float[] out, int count) {
+				for (int i = 0; i < count; i++) {
+					out[i] = a[i] * b[i];
+				}
+			}
+		},
+		DIV {
+			@Override
+			void apply(float[] a, float[] b, float[] out, int count) {
+				for (int i = 0; i < count; i++) {
+					out[i] = a[i] / b[i];
+				}
+			}
+		},
+		/**
+		 * Remainder with the sign of a, the same as fmod in OpenCL.
+		 */
+		FMOD {
+			@Override
+			void apply(float[] a, float[] b, float[] out, int count) {
+				for (int i = 0; i < count; i++) {
+					out[i] = a[i] % b[i];
+				}
+			}
+		},
+		MIN {
+			@Override
+			void apply(float[] a, float[] b, float[] out, int count) {
+				for (int i = 0; i < count; i++) {
+					out[i] = Math.min(a[i], b[i]);
+				}
+			}
+		},
+		MAX {
+			@Override
+			void apply(float[] a, float[] b, float[] out, int count) {
+				for (int i = 0; i < count; i++) {
+					out[i] = Math.max(a[i], b[i]);
+				}
+			}
+		};
+
+		abstract void apply(float[] a, float[] b, float[] out, int count);
+	}
+
+	private enum Statistic {
+		SUM, MIN, MAX;
+	}
+
+	//Elements per block, three blocks of 64 kB stay in the L2 cache
+	private static final int BLOCK_SIZE = 16384;
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Create a backend using all available processors.
+	 */
+	public CPUVectorOps() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param parallelism the number of worker threads.
+	 */
+	public CPUVectorOps(int parallelism) {
+		pool = new ForkJoinPool(parallelism);
+	}
+
+	/**
+	 * Calculate out = a op b for all elements. The buffers are read and written from their positions, and
+	 * the positions are not changed.
+	 * @param operation the operation.
+	 * @param a the first operand, its remaining elements are processed.
+	 * @param b the second operand, at least as many remaining elements as a.
+	 * @param out the result, room for at least as many elements as a.
+	 */
+	public void apply(Operation operation, FloatBuffer a, FloatBuffer b, FloatBuffer out) {
+		int count = a.remaining();
+		if (b.remaining() < count || out.remaining() < count) {
+			throw new IllegalArgumentException("Operands have " + a.remaining() + " and " + b.remaining()
+					+ " elements, result has room for " + out.remaining());
+		}
+		//A few ranges per worker, so workers finishing early can steal
+		pool.invoke(new RangeTask(operation, a, b, out, 0, count, rangeSize(count)));
+	}
+
+	/**
+	 * @param in the remaining elements are summed.
+	 * @return the sum, accumulated in double.
+	 */
+	public double sum(FloatBuffer in) {
+		return pool.invoke(new FloatStatisticTask(Statistic.SUM, in, 0, in.remaining(), rangeSize(in.remaining())));
+	}
+
+	/**
+	 * @param in the remaining elements are compared.
+	 * @return the lowest value, ignoring NaN, or positive infinity for no values.
+	 */
+	public float min(FloatBuffer in) {
+		return pool.invoke(new FloatStatisticTask(Statistic.MIN, in, 0, in.remaining(), rangeSize(in.remaining())))
+				.floatValue();
+	}
+
+	/**
+	 * @param in the remaining elements are compared.
+	 * @return the highest value, ignoring NaN, or negative infinity for no values.
+	 */
+	public float max(FloatBuffer in) {
+		return pool.invoke(new FloatStatisticTask(Statistic.MAX, in, 0, in.remaining(), rangeSize(in.remaining())))
+				.floatValue();
+	}
+
+	/**
+	 * @param in the remaining elements are summed.
+	 * @return the sum, without overflow.
+	 */
+	public long sumInt(IntBuffer in) {
+		return pool.invoke(new IntStatisticTask(Statistic.SUM, in, 0, in.remaining(), rangeSize(in.remaining())));
+	}
+
+	/**
+	 * @param in the remaining elements are compared.
+	 * @return the lowest value, or Integer.MAX_VALUE for no elements.
+	 */
+	public int minInt(IntBuffer in) {
+		return pool.invoke(new IntStatisticTask(Statistic.MIN, in, 0, in.remaining(), rangeSize(in.remaining())))
+				.intValue();
+	}
+
+	/**
+	 * @param in the remaining elements are compared.
+	 * @return the highest value, or Integer.MIN_VALUE for no elements.
+	 */
+	public int maxInt(IntBuffer in) {
+		return pool.invoke(new IntStatisticTask(Statistic.MAX, in, 0, in.remaining(), rangeSize(in.remaining())))
+				.intValue();
+	}
+
+	/**
+	 * @param in the remaining elements are compared.
+	 * @return the index of the lowest value relative to the position, the first one if there are several,
+	 * or -1 if all are NaN.
+	 */
+	public int argMin(FloatBuffer in) {
+		return pool.invoke(new ArgTask(false, in, 0, in.remaining(), rangeSize(in.remaining())));
+	}
+
+	/**
+	 * @param in the remaining elements are compared.
+	 * @return the index of the highest value relative to the position, the first one if there are several,
+	 * or -1 if all are NaN.
+	 */
+	public int argMax(FloatBuffer in) {
+		return pool.invoke(new ArgTask(true, in, 0, in.remaining(), rangeSize(in.remaining())));
+	}
+
+	/**
+	 * Count the values in equally wide bins between min and max, like {@link CLReduction#histogram}.
+	 * @param in the remaining elements are counted.
+	 * @param min the lower bound of the first bin.
+	 * @param max the upper bound of the last bin.
+	 * @param bins the number of bins.
+	 * @return the count per bin.
+	 */
+	public int[] histogram(FloatBuffer in, float min, float max, int bins) {
+		if (bins <= 0) {
+			throw new IllegalArgumentException("Bins must be positive, was " + bins);
+		}
+		if (!(max > min)) {
+			throw new IllegalArgumentException("Range is empty, min " + min + " max " + max);
+		}
+		float scale = CLReduction.histogramScale(min, max, bins);
+		return pool.invoke(new HistogramTask(in, min, scale, bins, 0, in.remaining(), rangeSize(in.remaining())));
+	}
+
+	/**
+	 * Exclusive scan, out[i] is the sum of in[0] to in[i - 1], overflowing like int addition.
+	 * @param in the remaining elements are scanned.
+	 * @param out the result, from its position, may be the same as in.
+	 */
+	public void exclusiveScan(IntBuffer in, IntBuffer out) {
+		scan(in, out, false);
+	}
+
+	/**
+	 * Inclusive scan, out[i] is the sum of in[0] to in[i], overflowing like int addition.
+	 * @param in the remaining elements are scanned.
+	 * @param out the result, from its position, may be the same as in.
+	 */
+	public void inclusiveScan(IntBuffer in, IntBuffer out) {
+		scan(in, out, true);
+	}
+
+	/**
+	 * Copy the flagged elements to out, in their original order.
+	 * @param in the remaining elements are compacted.
+	 * @param flags 1 for elements to keep and 0 for others, from its position.
+	 * @param out the kept elements are written from its position.
+	 * @return the number of kept elements.
+	 */
+	public int compact(final FloatBuffer in, final IntBuffer flags, final FloatBuffer out) {
+		final int inBase = in.position();
+		final int outBase = out.position();
+		return compact(in.remaining(), flags, new ChunkBody() {
+			@Override
+			public void run(int chunk, int start, int end, int offset) {
+				int flagBase = flags.position();
+				for (int i = start; i < end; i++) {
+					if (0 != flags.get(flagBase + i)) {
+						out.put(outBase + offset++, in.get(inBase + i));
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Write the indices of the flagged elements to out, in increasing order.
+	 * @param flags 1 for elements to keep and 0 for others, the remaining elements are used.
+	 * @param out the indices relative to the position of flags are written from its position.
+	 * @return the number of kept elements.
+	 */
+	public int compactIndices(final IntBuffer flags, final IntBuffer out) {
+		final int outBase = out.position();
+		return compact(flags.remaining(), flags, new ChunkBody() {
+			@Override
+			public void run(int chunk, int start, int end, int offset) {
+				int flagBase = flags.position();
+				for (int i = start; i < end; i++) {
+					if (0 != flags.get(flagBase + i)) {
+						out.put(outBase + offset++, i);
+					}
+				}
+			}
+		});
+	}
+
+	private void scan(final IntBuffer in, final IntBuffer out, final boolean inclusive) {
+		final int count = in.remaining();
+		if (out.remaining() < count) {
+			throw new IllegalArgumentException("Input has " + count + " elements, result has room for "
+					+ out.remaining());
+		}
+		final int inBase = in.position();
+		final int outBase = out.position();
+		final int[] sums = new int[chunkCount(count)];
+		runChunks(count, new ChunkBody() {
+			@Override
+			public void run(int chunk, int start, int end, int offset) {
+				int sum = 0;
+				for (int i = start; i < end; i++) {
+					sum += in.get(inBase + i);
+				}
+				sums[chunk] = sum;
+			}
+		}, null);
+		runChunks(count, new ChunkBody() {
+			@Override
+			public void run(int chunk, int start, int end, int offset) {
+				int running = offset;
+				for (int i = start; i < end; i++) {
+					int value = in.get(inBase + i);
+					if (inclusive) {
+						running += value;
+						out.put(outBase + i, running);
+					} else {
+						out.put(outBase + i, running);
+						running += value;
+					}
+				}
+			}
+		}, exclusiveOffsets(sums));
+	}
+
+	private int compact(int count, final IntBuffer flags, ChunkBody write) {
+		final int flagBase = flags.position();
+		final int[] kept = new int[chunkCount(count)];
+		runChunks(count, new ChunkBody() {
+			@Override
+			public void run(int chunk, int start, int end, int offset) {
+				int rc = 0;
+				for (int i = start; i < end; i++) {
+					if (0 != flags.get(flagBase + i)) {
+						rc++;
+					}
+				}
+				kept[chunk] = rc;
+			}
+		}, null);
+		int[] offsets = exclusiveOffsets(kept);
+		runChunks(count, write, offsets);
+		return 0 == offsets.length ? 0 : offsets[offsets.length - 1] + kept[kept.length - 1];
+	}
+
+	private static int[] exclusiveOffsets(int[] sums) {
+		int[] rc = new int[sums.length];
+		int total = 0;
+		for (int i = 0; i < sums.length; i++) {
+			rc[i] = total;
+			total += sums[i];
+		}
+		return rc;
+	}
+
+	private int chunkCount(int count) {
+		int chunkSize = rangeSize(count);
+		return (count + chunkSize - 1) / chunkSize;
+	}
+
+	/**
+	 * Run a body for each chunk of the range 0 to count in parallel.
+	 * @param count the number of elements.
+	 * @param body the body.
+	 * @param offsets the offset passed to the body per chunk, or null to pass 0.
+	 */
+	private void runChunks(int count, final ChunkBody body, final int[] offsets) {
+		final int chunkSize = rangeSize(count);
+		final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for (int chunk = 0; chunk < chunkCount(count); chunk++) {
+			final int index = chunk;
+			final int start = chunk * chunkSize;
+			final int end = Math.min(count, start + chunkSize);
+			tasks.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					body.run(index, start, end, null == offsets ? 0 : offsets[index]);
+				}
+			});
+		}
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+	}
+
+	private interface ChunkBody {
+		void run(int chunk, int start, int end, int offset);
+	}
+
+	private int rangeSize(int count) {
+		return Math.max(BLOCK_SIZE, count / (pool.getParallelism() * 4));
+	}
+
+	/**
+	 * Stop the worker threads.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private static class RangeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Operation operation;
+		private final FloatBuffer a;
+		private final FloatBuffer b;
+		private final FloatBuffer out;
+		private final int start;
+		private final int end;
+		private final int rangeSize;
+
+		RangeTask(Operation operation, FloatBuffer a, FloatBuffer b, FloatBuffer out, int start, int end, int rangeSize) {
+			this.operation = operation;
+			this.a = a;
+			this.b = b;
+			this.out = out;
+			this.start = start;
+			this.end = end;
+			this.rangeSize = rangeSize;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > rangeSize) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new RangeTask(operation, a, b, out, start, middle, rangeSize),
+						new RangeTask(operation, a, b, out, middle, end, rangeSize));
+				return;
+			}
+
+			//Own views, the positions of the shared buffers are not touched
+			FloatBuffer aView = a.duplicate();
+			FloatBuffer bView = b.duplicate();
+			FloatBuffer outView = out.duplicate();
+			aView.position(a.position() + start);
+			bView.position(b.position() + start);
+			outView.position(out.position() + start);
+
+			int blockSize = Math.min(BLOCK_SIZE, end - start);
+			float[] aBlock = new float[blockSize];
+			float[] bBlock = new float[blockSize];
+			float[] outBlock = new float[blockSize];
+			for (int offset = start; offset < end; offset += blockSize) {
+				int count = Math.min(blockSize, end - offset);
+				aView.get(aBlock, 0, count);
+				bView.get(bBlock, 0, count);
+				operation.apply(aBlock, bBlock, outBlock, count);
+				outView.put(outBlock, 0, count);
+			}
+		}
+
+	}
+
+	/**
+	 * Splits a range in halves until it is at most rangeSize long, and combines the results of the halves.
+	 */
+	private abstract static class ReduceTask<R> extends RecursiveTask<R> {
+
+		private static final long serialVersionUID = 1L;
+
+		protected final int start;
+		protected final int end;
+		protected final int rangeSize;
+
+		ReduceTask(int start, int end, int rangeSize) {
+			this.start = start;
+			this.end = end;
+			this.rangeSize = rangeSize;
+		}
+
+		@Override
+		protected R compute() {
+			if (end - start <= rangeSize) {
+				return reduceRange();
+			}
+			int middle = (start + end) >>> 1;
+			ReduceTask<R> left = create(start, middle);
+			left.fork();
+			R right = create(middle, end).compute();
+			return combine(left.join(), right);
+		}
+
+		abstract ReduceTask<R> create(int start, int end);
+
+		abstract R reduceRange();
+
+		abstract R combine(R left, R right);
+
+	}
+
+	private static class FloatStatisticTask extends ReduceTask<Double> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Statistic statistic;
+		private final FloatBuffer in;
+
+		FloatStatisticTask(Statistic statistic, FloatBuffer in, int start, int end, int rangeSize) {
+			super(start, end, rangeSize);
+			this.statistic = statistic;
+			this.in = in;
+		}
+
+		@Override
+		ReduceTask<Double> create(int start, int end) {
+			return new FloatStatisticTask(statistic, in, start, end, rangeSize);
+		}
+
+		@Override
+		Double reduceRange() {
+			FloatBuffer view = in.duplicate();
+			view.position(in.position() + start);
+			float[] block = new float[Math.max(1, Math.min(BLOCK_SIZE, end - start))];
+			double sum = 0.0;
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			for (int offset = start; offset < end; offset += block.length) {
+				int count = Math.min(block.length, end - offset);
+				view.get(block, 0, count);
+				switch (statistic) {
+				case SUM:
+					for (int i = 0; i < count; i++) {
+						sum += block[i];
+					}
+					break;
+				case MIN:
+					//NaN fails the comparison, so it is skipped
+					for (int i = 0; i < count; i++) {
+						if (block[i] < min) {
+							min = block[i];
+						}
+					}
+					break;
+				case MAX:
+					for (int i = 0; i < count; i++) {
+						if (block[i] > max) {
+							max = block[i];
+						}
+					}
+					break;
+				}
+			}
+			return statistic == Statistic.SUM ? sum : statistic == Statistic.MIN ? min : max;
+		}
+
+		@Override
+		Double combine(Double left, Double right) {
+			switch (statistic) {
+			case MIN:
+				return Math.min(left, right);
+			case MAX:
+				return Math.max(left, right);
+			default:
+				return left + right;
+			}
+		}
+
+	}
+
+	private static class IntStatisticTask extends ReduceTask<Long> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Statistic statistic;
+		private final IntBuffer in;
+
+		IntStatisticTask(Statistic statistic, IntBuffer in, int start, int end, int rangeSize) {
+			super(start, end, rangeSize);
+			this.statistic = statistic;
+			this.in = in;
+		}
+
+		@Override
+		ReduceTask<Long> create(int start, int end) {
+			return new IntStatisticTask(statistic, in, start, end, rangeSize);
+		}
+
+		@Override
+		Long reduceRange() {
+			IntBuffer view = in.duplicate();
+			view.position(in.position() + start);
+			int[] block = new int[Math.max(1, Math.min(BLOCK_SIZE, end - start))];
+			long sum = 0;
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			for (int offset = start; offset < end; offset += block.length) {
+				int count = Math.min(block.length, end - offset);
+				view.get(block, 0, count);
+				for (int i = 0; i < count; i++) {
+					sum += block[i];
+					min = Math.min(min, block[i]);
+					max = Math.max(max, block[i]);
+				}
+			}
+			return statistic == Statistic.SUM ? sum : statistic == Statistic.MIN ? min : max;
+		}
+
+		@Override
+		Long combine(Long left, Long right) {
+			switch (statistic) {
+			case MIN:
+				return Math.min(left, right);
+			case MAX:
+				return Math.max(left, right);
+			default:
+				return left + right;
+			}
+		}
+
+	}
+
+	private static class ArgTask extends ReduceTask<Integer> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final boolean highest;
+		private final FloatBuffer in;
+
+		ArgTask(boolean highest, FloatBuffer in, int start, int end, int rangeSize) {
+			super(start, end, rangeSize);
+			this.highest = highest;
+			this.in = in;
+		}
+
+		@Override
+		ReduceTask<Integer> create(int start, int end) {
+			return new ArgTask(highest, in, start, end, rangeSize);
+		}
+
+		@Override
+		Integer reduceRange() {
+			int base = in.position();
+			int rc = -1;
+			float best = 0.0f;
+			for (int i = start; i < end; i++) {
+				float v = in.get(base + i);
+				if (!Float.isNaN(v) && (rc < 0 || (highest ? v > best : v < best))) {
+					best = v;
+					rc = i;
+				}
+			}
+			return rc;
+		}
+
+		@Override
+		Integer combine(Integer left, Integer right) {
+			if (left < 0) {
+				return right;
+			}
+			if (right < 0) {
+				return left;
+			}
+			//The left range has the lower indices, so it wins ties
+			float leftValue = in.get(in.position() + left);
+			float rightValue = in.get(in.position() + right);
+			return (highest ? rightValue > leftValue : rightValue < leftValue) ? right : left;
+		}
+
+	}
+
+	private static class HistogramTask extends ReduceTask<int[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FloatBuffer in;
+		private final float min;
+		private final float scale;
+		private final int bins;
+
+		HistogramTask(FloatBuffer in, float min, float scale, int bins, int start, int end, int rangeSize) {
+			super(start, end, rangeSize);
+			this.in = in;
+			this.min = min;
+			this.scale = scale;
+			this.bins = bins;
+		}
+
+		@Override
+		ReduceTask<int[]> create(int start, int end) {
+			return new HistogramTask(in, min, scale, bins, start, end, rangeSize);
+		}
+
+		@Override
+		int[] reduceRange() {
+			int[] rc = new int[bins];
+			int base = in.position();
+			for (int i = start; i < end; i++) {
+				float v = in.get(base + i);
+				//Same tests as histogram_float, NaN fails both
+				if (v >= min) {
+					float position = (v - min) * scale;
+					if (position < bins) {
+						rc[(int)position]++;
+					}
+				}
+			}
+			return rc;
+		}
+
+		@Override
+		int[] combine(int[] left, int[] right) {
+			for (int i = 0; i < bins; i++) {
+				left[i] += right[i];
+			}
+			return left;
+		}
+
+	}
+
+}
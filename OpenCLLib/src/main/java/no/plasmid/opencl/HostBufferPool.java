@@ -0,0 +1,69 @@
+package no.plasmid.opencl;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Pool of direct host buffers in native byte order. Direct buffers are only freed by the garbage
+ * collector, so reusing them keeps large transfers from waiting on the direct memory cleaner. A leased
+ * buffer is cleared, with its limit set to the requested size, and its contents are undefined.
+ */
+public class HostBufferPool extends AbstractBufferPool<ByteBuffer> {
+
+	/**
+	 * System property holding the pool budget in bytes. Defaults to half the maximum heap size, leaving room
+	 * under the direct memory limit, which defaults to the maximum heap size, for direct buffers outside the
+	 * pool.
+	 */
+	public static final String BUDGET_PROPERTY = "opencl.pool.hostBudget";
+
+	public HostBufferPool() {
+		this(getDefaultBudget());
+	}
+
+	/**
+	 * @param budget the maximum number of bytes the pool may hold.
+	 */
+	public HostBufferPool(long budget) {
+		super(budget);
+	}
+
+	private static long getDefaultBudget() {
+		String value = System.getProperty(BUDGET_PROPERTY);
+		if (null != value) {
+			return Long.parseLong(value);
+		}
+		return Runtime.getRuntime().maxMemory() / 2;
+	}
+
+	/**
+	 * Lease a direct buffer.
+	 * @param size the size in bytes.
+	 * @return the lease, release it when done.
+	 */
+	public BufferLease<ByteBuffer> acquire(long size) {
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Direct buffers are limited to 2 GB, requested " + size);
+		}
+		return acquireBuffer(size, 0);
+	}
+
+	@Override
+	protected ByteBuffer allocate(long size, int kind) {
+		//The largest size classes round past 2 GB
+		return BufferUtils.createByteBuffer((int)Math.min(size, Integer.MAX_VALUE));
+	}
+
+	@Override
+	protected void free(ByteBuffer buffer) {
+		//Left to the garbage collector
+	}
+
+	@Override
+	protected void prepare(ByteBuffer buffer, long requestedSize) {
+		buffer.clear();
+		buffer.limit((int)requestedSize);
+	}
+
+}
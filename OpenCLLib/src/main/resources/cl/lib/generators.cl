@@ -0,0 +1,79 @@
+//Keep a * b + c as two roundings, so the results match CLGenerators on the host
+#pragma OPENCL FP_CONTRACT OFF
+
+//Integer hash by Chris Wellons (lowbias32), good avalanche for two multiplies
+uint generator_hash(uint x) {
+	x ^= x >> 16;
+	x *= 0x7feb352dU;
+	x ^= x >> 15;
+	x *= 0x846ca68bU;
+	x ^= x >> 16;
+	return x;
+}
+
+//start, start + step, start + 2 * step, ...
+kernel void iota_int(global int* out, const int count, const int start, const int step) {
+	int i = get_global_id(0);
+	if (i >= count) {
+		return;
+	}
+	out[i] = start + step * i;
+}
+
+//The integer ramp converted to float, exact as long as the values are exact floats
+kernel void iota_float(global float* out, const int count, const int start, const int step) {
+	int i = get_global_id(0);
+	if (i >= count) {
+		return;
+	}
+	out[i] = (float)(start + step * i);
+}
+
+//offset + scale * i
+kernel void affine(global float* out, const int count, const float offset, const float scale) {
+	int i = get_global_id(0);
+	if (i >= count) {
+		return;
+	}
+	out[i] = offset + scale * (float)i;
+}
+
+//Coordinates of a width x height grid, row by row
+kernel void grid2d_int(global int* xOut, global int* yOut, const int originX, const int originY,
+		const int stepX, const int stepY) {
+	int x = get_global_id(0);
+	int y = get_global_id(1);
+	int i = y * get_global_size(0) + x;
+	xOut[i] = originX + stepX * x;
+	yOut[i] = originY + stepY * y;
+}
+
+kernel void grid2d_float(global float* xOut, global float* yOut, const float originX, const float originY,
+		const float stepX, const float stepY) {
+	int x = get_global_id(0);
+	int y = get_global_id(1);
+	int i = y * get_global_size(0) + x;
+	xOut[i] = originX + stepX * (float)x;
+	yOut[i] = originY + stepY * (float)y;
+}
+
+//Counter based random numbers, element i only depends on the seed and offset + i
+kernel void random_uint(global uint* out, const int count, const uint seed, const uint offset) {
+	int i = get_global_id(0);
+	if (i >= count) {
+		return;
+	}
+	out[i] = generator_hash(generator_hash(offset + i) + seed);
+}
+
+//Uniform in [min, max), from the top 24 bits of random_uint
+kernel void random_float(global float* out, const int count, const uint seed, const uint offset,
+		const float min, const float max) {
+	int i = get_global_id(0);
+	if (i >= count) {
+		return;
+	}
+	uint bits = generator_hash(generator_hash(offset + i) + seed);
+	float unit = (float)(bits >> 8) * 5.9604644775390625e-8f;
+	out[i] = min + (max - min) * unit;
+}
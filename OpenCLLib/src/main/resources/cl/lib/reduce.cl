@@ -0,0 +1,114 @@
+//The atom_ functions of the extensions, the atomic_ names are only core from OpenCL 1.1
+#pragma OPENCL EXTENSION cl_khr_global_int32_base_atomics : enable
+#pragma OPENCL EXTENSION cl_khr_local_int32_base_atomics : enable
+//Keep the histogram bin calculation the same as on the host
+#pragma OPENCL FP_CONTRACT OFF
+
+#define ADD(a, b) ((a) + (b))
+
+/*
+* One pass of a reduction. Each work item combines elements gid, gid + global size and so on, then the
+* group combines the work item results as a tree in local memory and writes one partial result. Passes are
+* repeated on the partial results until one group is left. The group size must be a power of two.
+*/
+#define REDUCE(NAME, IN, ACC, IDENTITY, OP) \
+kernel void NAME(global const IN* in, const int count, global ACC* out, local ACC* scratch) { \
+	int lid = get_local_id(0); \
+	ACC acc = IDENTITY; \
+	for (int i = get_global_id(0); i < count; i += get_global_size(0)) { \
+		acc = OP(acc, (ACC)in[i]); \
+	} \
+	scratch[lid] = acc; \
+	barrier(CLK_LOCAL_MEM_FENCE); \
+	for (int offset = get_local_size(0) / 2; offset > 0; offset /= 2) { \
+		if (lid < offset) { \
+			scratch[lid] = OP(scratch[lid], scratch[lid + offset]); \
+		} \
+		barrier(CLK_LOCAL_MEM_FENCE); \
+	} \
+	if (0 == lid) { \
+		out[get_group_id(0)] = scratch[0]; \
+	} \
+}
+
+REDUCE(reduce_sum_float, float, float, 0.0f, ADD)
+//fmin and fmax ignore NaN
+REDUCE(reduce_min_float, float, float, INFINITY, fmin)
+REDUCE(reduce_max_float, float, float, -INFINITY, fmax)
+//Int sums are accumulated as long, so they do not overflow
+REDUCE(reduce_sum_int, int, long, 0, ADD)
+REDUCE(reduce_sum_long, long, long, 0, ADD)
+REDUCE(reduce_min_int, int, int, INT_MAX, min)
+REDUCE(reduce_max_int, int, int, INT_MIN, max)
+
+//Candidate (v, i) replaces (b, bi): not empty, not NaN, and better, or equal with a lower index
+#define LOWER(v, i, b, bi) ((i) >= 0 && !isnan(v) && ((bi) < 0 || (v) < (b) || ((v) == (b) && (i) < (bi))))
+#define HIGHER(v, i, b, bi) ((i) >= 0 && !isnan(v) && ((bi) < 0 || (v) > (b) || ((v) == (b) && (i) < (bi))))
+
+/*
+* One pass of argmin or argmax, like REDUCE but carrying the index of the value. The first pass uses the
+* element index, later passes the indices from the previous pass. Index -1 means no value.
+*/
+#define ARG_REDUCE(NAME, BETTER) \
+kernel void NAME(global const float* values, global const int* indices, const int firstPass, const int count, \
+		global float* outValues, global int* outIndices, local float* scratchValues, local int* scratchIndices) { \
+	int lid = get_local_id(0); \
+	float best = 0.0f; \
+	int bestIndex = -1; \
+	for (int i = get_global_id(0); i < count; i += get_global_size(0)) { \
+		float v = values[i]; \
+		int index = firstPass ? i : indices[i]; \
+		if (BETTER(v, index, best, bestIndex)) { \
+			best = v; \
+			bestIndex = index; \
+		} \
+	} \
+	scratchValues[lid] = best; \
+	scratchIndices[lid] = bestIndex; \
+	barrier(CLK_LOCAL_MEM_FENCE); \
+	for (int offset = get_local_size(0) / 2; offset > 0; offset /= 2) { \
+		if (lid < offset && BETTER(scratchValues[lid + offset], scratchIndices[lid + offset], \
+				scratchValues[lid], scratchIndices[lid])) { \
+			scratchValues[lid] = scratchValues[lid + offset]; \
+			scratchIndices[lid] = scratchIndices[lid + offset]; \
+		} \
+		barrier(CLK_LOCAL_MEM_FENCE); \
+	} \
+	if (0 == lid) { \
+		outValues[get_group_id(0)] = scratchValues[0]; \
+		outIndices[get_group_id(0)] = scratchIndices[0]; \
+	} \
+}
+
+ARG_REDUCE(reduce_argmin_float, LOWER)
+ARG_REDUCE(reduce_argmax_float, HIGHER)
+
+/*
+* Histogram of values in [min, min + bins / scale), other values and NaN are not counted. Each group counts
+* in local memory and adds its counts to the global bins, which must be zero before the first group runs.
+*/
+kernel void histogram_float(global const float* in, const int count, const float min, const float scale,
+		const int bins, global uint* out, local uint* localBins) {
+	int lid = get_local_id(0);
+	int groupSize = get_local_size(0);
+	for (int b = lid; b < bins; b += groupSize) {
+		localBins[b] = 0;
+	}
+	barrier(CLK_LOCAL_MEM_FENCE);
+	for (int i = get_global_id(0); i < count; i += get_global_size(0)) {
+		float v = in[i];
+		if (v >= min) {
+			float position = (v - min) * scale;
+			if (position < bins) {
+				atom_inc(&localBins[(int)position]);
+			}
+		}
+	}
+	barrier(CLK_LOCAL_MEM_FENCE);
+	for (int b = lid; b < bins; b += groupSize) {
+		uint c = localBins[b];
+		if (0 != c) {
+			atom_add(&out[b], c);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/*
+* Scan of one block per work group. Each work item loads one element, the group scans in local memory
+* (Hillis-Steele, log2(group size) steps) and writes the inclusive or exclusive result. The last work item
+* writes the block total, which is scanned in turn and added back with scan_add for inputs longer than one
+* block. in and out may be the same buffer.
+*/
+kernel void scan_blocks(global const int* in, global int* out, const int count, const int inclusive,
+		global int* blockSums, local int* scratch) {
+	int lid = get_local_id(0);
+	int gid = get_global_id(0);
+	int size = get_local_size(0);
+	int value = gid < count ? in[gid] : 0;
+	scratch[lid] = value;
+	barrier(CLK_LOCAL_MEM_FENCE);
+	for (int offset = 1; offset < size; offset *= 2) {
+		int add = lid >= offset ? scratch[lid - offset] : 0;
+		barrier(CLK_LOCAL_MEM_FENCE);
+		scratch[lid] += add;
+		barrier(CLK_LOCAL_MEM_FENCE);
+	}
+	if (gid < count) {
+		out[gid] = inclusive ? scratch[lid] : scratch[lid] - value;
+	}
+	if (lid == size - 1) {
+		blockSums[get_group_id(0)] = scratch[lid];
+	}
+}
+
+//Add the scanned block totals, run with the same group size as scan_blocks
+kernel void scan_add(global int* out, const int count, global const int* blockOffsets) {
+	int gid = get_global_id(0);
+	if (gid < count) {
+		out[gid] += blockOffsets[get_group_id(0)];
+	}
+}
+
+kernel void flag_greater_float(global const float* in, const int count, const float threshold, global int* flags) {
+	int i = get_global_id(0);
+	if (i < count) {
+		flags[i] = in[i] > threshold ? 1 : 0;
+	}
+}
+
+kernel void flag_less_float(global const float* in, const int count, const float threshold, global int* flags) {
+	int i = get_global_id(0);
+	if (i < count) {
+		flags[i] = in[i] < threshold ? 1 : 0;
+	}
+}
+
+//Write the flagged elements to the positions from the exclusive scan of the flags, keeping their order
+kernel void compact_float(global const float* in, global const int* flags, global const int* positions,
+		const int count, global float* out) {
+	int i = get_global_id(0);
+	if (i < count && 0 != flags[i]) {
+		out[positions[i]] = in[i];
+	}
+}
+
+kernel void compact_index(global const int* flags, global const int* positions, const int count, global int* out) {
+	int i = get_global_id(0);
+	if (i < count && 0 != flags[i]) {
+		out[positions[i]] = i;
+	}
+}
@@ -10,11 +10,25 @@ import org.lwjgl.opencl.CL10;
 import org.lwjgl.opencl.CLKernel;
 import org.lwjgl.opencl.CLMem;
 import org.lwjgl.opencl.CLProgram;
-import org.lwjgl.opencl.Util;
 
 public class App extends AbstractLWJGLApp {
 
+	private static final String KERNEL_NAME = "sum";
+	
 	private static boolean useOpenCL = true;
+	//Share memory between host and device instead of copying, when the device supports it
+	private static boolean allowZeroCopy = true;
+	//Stream the data through the device in chunks, so only a few chunks are on the device at a time
+	private static boolean useStreaming = false;
+	private static int streamChunkSize = 4194304;
+	//Evaluate the answer with a generated kernel from the expression engine instead of modulo.cl
+	private static boolean useExpression = false;
+	//Without OpenCL, calculate on all cores with vectorized loops instead of the single threaded loop
+	private static boolean useVectorCPU = true;
+	//Generate the input with kernels in device memory, instead of filling host buffers and uploading them
+	private static boolean generateOnDevice = true;
+	//Reduce the answer to statistics on the device, instead of reading the whole answer back
+	private static boolean useReduction = true;
 	
 	public static void main(String[] args) throws LWJGLException, FileNotFoundException {
 		App app = new App();
@@ -28,16 +42,18 @@ public class App extends AbstractLWJGLApp {
   	long startTime = System.currentTimeMillis();
   	if (useOpenCL) {
     	app.calculateOpenCL();
+  	} else if (useVectorCPU) {
+  		app.calculateVectorCPU();
   	} else {
   		app.calculateNormal();
   	}
   	long endTime = System.currentTimeMillis();
+  	//Print results, before cleaning up since the answer may be mapped device memory
+  	app.printResults(startTime, endTime);
   	//Clean up data and program
   	app.cleanupDataAndProgram();
   	//Clean up OpenCL
   	app.cleanupOpenCL();
-  	//Print results
-  	app.printResults(startTime, endTime);
 	}
 	
 	static int dataSize = 67108864;
@@ -50,47 +66,146 @@ public class App extends AbstractLWJGLApp {
 	private CLMem bMem = null;
 	private CLMem answerMem = null;
 	
+	//Only used in zero copy mode, the memory objects above belong to these
+	private CLMappedBuffer aMapped = null;
+	private CLMappedBuffer bMapped = null;
+	private CLMappedBuffer answerMapped = null;
+	
+	//Only used in streaming mode
+	private CLStreamExecutor streamExecutor = null;
+	
+	//Only used in expression mode
+	private CLExpressionEngine expressionEngine = null;
+	
+	//Only used when generating the input on the device
+	private CLGenerators generators = null;
+	
+	//Only used when reducing on the device
+	private CLReduction reduction = null;
+	//Statistics of the answer, when calculated
+	private String statistics = null;
+	
 	private CLProgram program = null;
 	private CLKernel kernel = null;
 	
 	private void prepareDataAndProgram() throws LWJGLException, FileNotFoundException {
-		aBuffer = BufferUtils.createFloatBuffer(dataSize);
-		bBuffer = BufferUtils.createFloatBuffer(dataSize);
-		for (int i = 0; i < dataSize; i++) {
-			aBuffer.put(i, i);
-			bBuffer.put(i, dataSize - i);
+		if (useOpenCL && generateOnDevice && !useStreaming) {
+			generators = new CLGenerators(context, deviceList.get(0), commandQueue, programCache);
+		}
+		if (useOpenCL && useReduction && !useStreaming) {
+			reduction = new CLReduction(context, deviceList.get(0), commandQueue, programCache);
+			reduction.setProfiler(profiler);
+		}
+		if (useOpenCL && useStreaming) {
+			prepareStreaming();
+		} else if (useOpenCL && allowZeroCopy && CLMappedBuffer.isZeroCopyDevice(deviceList.get(0))) {
+			prepareDataZeroCopy();
+		} else {
+			prepareData();
 		}
-		aBuffer.rewind();
-		bBuffer.rewind();
-		answerBuffer = BufferUtils.createFloatBuffer(dataSize);
-		System.out.println("Data ready");
-		
-		//Allocate memory and copy data
-		aMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_ONLY | CL10.CL_MEM_COPY_HOST_PTR, aBuffer, errorCodeBuffer);
-		checkErrorCodeBuffer(errorCodeBuffer);
-		CL10.clEnqueueWriteBuffer(commandQueue, aMem, CL10.CL_TRUE, 0, aBuffer, null, null);
-		bMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_ONLY | CL10.CL_MEM_COPY_HOST_PTR, bBuffer, errorCodeBuffer);
-		checkErrorCodeBuffer(errorCodeBuffer);
-		CL10.clEnqueueWriteBuffer(commandQueue, bMem, CL10.CL_TRUE, 0, bBuffer, null, null);
-		answerMem = CL10.clCreateBuffer(context, CL10.CL_MEM_WRITE_ONLY | CL10.CL_MEM_COPY_HOST_PTR, answerBuffer, errorCodeBuffer);
-		checkErrorCodeBuffer(errorCodeBuffer);
-		CL10.clEnqueueWriteBuffer(commandQueue, answerMem, CL10.CL_TRUE, 0, answerBuffer, null, null);
-		CL10.clFinish(commandQueue);
-		System.out.println("Data copied to OpenCL");
 		
 		//Load program source
 		String source = loadTextFile("/cl/modulo.cl");
 		
-		//Create the program
-		program = CL10.clCreateProgramWithSource(context, source, errorCodeBuffer);
-		checkErrorCodeBuffer(errorCodeBuffer);
-		Util.checkCLError(CL10.clBuildProgram(program, deviceList.get(0), "", null));
+		//Create the program, or load it from the program cache
+		program = buildProgram(source, "");
 		//Sum has to match a kernel method name in the OpenCL source
-		kernel = CL10.clCreateKernel(program, "sum", errorCodeBuffer);
+		kernel = CL10.clCreateKernel(program, KERNEL_NAME, errorCodeBuffer);
 		checkErrorCodeBuffer(errorCodeBuffer);
+		if (useExpression) {
+			expressionEngine = new CLExpressionEngine(context, deviceList.get(0), commandQueue, programCache);
+		}
 		System.out.println("OpenCL program ready");
 	}
-
+	
+	private void prepareData() {
+		if (null == reduction) {
+			answerBuffer = BufferUtils.createFloatBuffer(dataSize);
+		}
+		//The generator kernels write the input
+		long inputFlags = null != generators ? CL10.CL_MEM_READ_WRITE : CL10.CL_MEM_READ_ONLY;
+		aMem = CL10.clCreateBuffer(context, inputFlags, dataSize * 4, errorCodeBuffer);
+		checkErrorCodeBuffer(errorCodeBuffer);
+		bMem = CL10.clCreateBuffer(context, inputFlags, dataSize * 4, errorCodeBuffer);
+		checkErrorCodeBuffer(errorCodeBuffer);
+		//The answer is written by the kernel, nothing to upload, and read by the reduction kernels
+		long answerFlags = null != reduction ? CL10.CL_MEM_READ_WRITE : CL10.CL_MEM_WRITE_ONLY;
+		answerMem = CL10.clCreateBuffer(context, answerFlags, dataSize * 4, errorCodeBuffer);
+		checkErrorCodeBuffer(errorCodeBuffer);
+		if (null != generators) {
+			//No host copy of the input at all
+			generateData(aMem, bMem);
+			System.out.println("Data generated in OpenCL");
+			return;
+		}
+		
+		aBuffer = BufferUtils.createFloatBuffer(dataSize);
+		bBuffer = BufferUtils.createFloatBuffer(dataSize);
+		fillData(aBuffer, bBuffer);
+		System.out.println("Data ready");
+		
+		//Copy data, once
+		CL10.clEnqueueWriteBuffer(commandQueue, aMem, CL10.CL_TRUE, 0, aBuffer, null, profiler.event());
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.UPLOAD);
+		CL10.clEnqueueWriteBuffer(commandQueue, bMem, CL10.CL_TRUE, 0, bBuffer, null, profiler.event());
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.UPLOAD);
+		CL10.clFinish(commandQueue);
+		System.out.println("Data copied to OpenCL");
+	}
+	
+	private void prepareDataZeroCopy() {
+		//Fill the input directly in memory the device can use, and map the answer when it is done
+		//The generator kernels write the input
+		long inputFlags = null != generators ? CL10.CL_MEM_READ_WRITE : CL10.CL_MEM_READ_ONLY;
+		aMapped = CLMappedBuffer.allocate(context, commandQueue, inputFlags, dataSize * 4);
+		bMapped = CLMappedBuffer.allocate(context, commandQueue, inputFlags, dataSize * 4);
+		//The reduction kernels read the answer
+		long answerFlags = null != reduction ? CL10.CL_MEM_READ_WRITE : CL10.CL_MEM_WRITE_ONLY;
+		answerMapped = CLMappedBuffer.allocate(context, commandQueue, answerFlags, dataSize * 4);
+		aMem = aMapped.getMem();
+		bMem = bMapped.getMem();
+		answerMem = answerMapped.getMem();
+		if (null != generators) {
+			generateData(aMem, bMem);
+		} else {
+			FloatBuffer a = aMapped.map(CL10.CL_MAP_WRITE, profiler.event()).asFloatBuffer();
+			profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.UPLOAD);
+			FloatBuffer b = bMapped.map(CL10.CL_MAP_WRITE, profiler.event()).asFloatBuffer();
+			profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.UPLOAD);
+			fillData(a, b);
+			aMapped.unmap();
+			bMapped.unmap();
+		}
+		CL10.clFinish(commandQueue);
+		System.out.println("Data ready in memory shared with OpenCL");
+	}
+	
+	private void prepareStreaming() {
+		//The inputs are generated chunk by chunk, only the answer is kept on the host
+		answerBuffer = BufferUtils.createFloatBuffer(dataSize);
+		streamExecutor = new CLStreamExecutor(context, deviceList.get(0), streamChunkSize, 3);
+		streamExecutor.setProfiler(profiler);
+		System.out.println("Streaming in chunks of " + streamChunkSize + " elements");
+	}
+	
+	private void generateData(CLMem a, CLMem b) {
+		//Same values as fillData
+		generators.iotaFloat(a, dataSize, 0, 1, profiler.event());
+		profiler.record(commandQueue, "iota_float", CLProfiler.Category.KERNEL);
+		generators.iotaFloat(b, dataSize, dataSize, -1, profiler.event());
+		profiler.record(commandQueue, "iota_float", CLProfiler.Category.KERNEL);
+		CL10.clFinish(commandQueue);
+	}
+	
+	private void fillData(FloatBuffer a, FloatBuffer b) {
+		for (int i = 0; i < dataSize; i++) {
+			a.put(i, i);
+			b.put(i, dataSize - i);
+		}
+		a.rewind();
+		b.rewind();
+	}
+	
 	private void cleanupDataAndProgram() {
 		//Clean up OpenCL resources
 		if (null != kernel) {
@@ -99,6 +214,26 @@ public class App extends AbstractLWJGLApp {
 		if (null != program) {
 			CL10.clReleaseProgram(program);
 		}
+		if (null != expressionEngine) {
+			expressionEngine.release();
+		}
+		if (null != generators) {
+			generators.release();
+		}
+		if (null != reduction) {
+			reduction.release();
+		}
+		if (null != streamExecutor) {
+			streamExecutor.release();
+			return;
+		}
+		if (null != answerMapped) {
+			//Zero copy mode, the mapped buffers own the memory objects
+			aMapped.release();
+			bMapped.release();
+			answerMapped.release();
+			return;
+		}
 		if (null != aMem) {
 			CL10.clReleaseMemObject(aMem);
 		}
@@ -116,18 +251,74 @@ public class App extends AbstractLWJGLApp {
 		}
 	}
 	
+	private void calculateVectorCPU() {
+		CPUVectorOps vectorOps = new CPUVectorOps();
+		vectorOps.apply(CPUVectorOps.Operation.FMOD, aBuffer, bBuffer, answerBuffer);
+		statistics = "sum " + vectorOps.sum(answerBuffer) + ", min " + vectorOps.min(answerBuffer)
+				+ ", max " + vectorOps.max(answerBuffer) + " at " + vectorOps.argMax(answerBuffer);
+		vectorOps.shutdown();
+	}
+	
 	private void calculateOpenCL() throws LWJGLException {
+		if (null != streamExecutor) {
+			calculateStreaming();
+			return;
+		}
 		//Execute the kernel
-		PointerBuffer kernel1DGlobalWorkSize = BufferUtils.createPointerBuffer(1);
-		kernel1DGlobalWorkSize.put(0, Math.max(dataSize, 1));
-		kernel.setArg(0, aMem);
-		kernel.setArg(1, bMem);
-		kernel.setArg(2, answerMem);
-		CL10.clEnqueueNDRangeKernel(commandQueue, kernel, 1, null, kernel1DGlobalWorkSize, null, null, null);
+		if (null != expressionEngine) {
+			//Same calculation as modulo.cl
+			CLExpression expression = CLExpression.input(aMem).fmod(CLExpression.input(bMem));
+			expressionEngine.evaluate(expression, answerMem, dataSize, profiler.event());
+			profiler.record(commandQueue, "expression", CLProfiler.Category.KERNEL);
+		} else {
+			PointerBuffer kernel1DGlobalWorkSize = BufferUtils.createPointerBuffer(1);
+			kernel1DGlobalWorkSize.put(0, Math.max(dataSize, 1));
+			kernel.setArg(0, aMem);
+			kernel.setArg(1, bMem);
+			kernel.setArg(2, answerMem);
+			CL10.clEnqueueNDRangeKernel(commandQueue, kernel, 1, null, kernel1DGlobalWorkSize, null, null, profiler.event());
+			profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.KERNEL);
+		}
 		
 		//Read back results
-		CL10.clEnqueueReadBuffer(commandQueue, answerMem, CL10.CL_TRUE, 0, answerBuffer, null, null);
+		if (null != reduction) {
+			//Only the statistics and the first elements come back
+			statistics = "sum " + reduction.sum(answerMem, dataSize) + ", min " + reduction.min(answerMem, dataSize)
+					+ ", max " + reduction.max(answerMem, dataSize) + " at " + reduction.argMax(answerMem, dataSize);
+			answerBuffer = BufferUtils.createFloatBuffer(2);
+			CL10.clEnqueueReadBuffer(commandQueue, answerMem, CL10.CL_TRUE, 0, answerBuffer, null, profiler.event());
+		} else if (null != answerMapped) {
+			answerBuffer = answerMapped.map(CL10.CL_MAP_READ, profiler.event()).asFloatBuffer();
+		} else {
+			CL10.clEnqueueReadBuffer(commandQueue, answerMem, CL10.CL_TRUE, 0, answerBuffer, null, profiler.event());
+		}
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.READBACK);
 		CL10.clFinish(commandQueue);
+		profiler.collect();
+	}
+	
+	private void calculateStreaming() {
+		CLStreamExecutor.ChunkSource a = new CLStreamExecutor.ChunkSource() {
+			@Override
+			public FloatBuffer read(long offset, int count, FloatBuffer staging) {
+				for (int i = 0; i < count; i++) {
+					staging.put(i, offset + i);
+				}
+				return staging;
+			}
+		};
+		CLStreamExecutor.ChunkSource b = new CLStreamExecutor.ChunkSource() {
+			@Override
+			public FloatBuffer read(long offset, int count, FloatBuffer staging) {
+				for (int i = 0; i < count; i++) {
+					staging.put(i, dataSize - (offset + i));
+				}
+				return staging;
+			}
+		};
+		streamExecutor.run(kernel, KERNEL_NAME, dataSize, new CLStreamExecutor.ChunkSource[]{a, b},
+				CLStreamExecutor.sink(answerBuffer));
+		profiler.collect();
 	}
 	
 	private void printResults(long startTime, long endTime) {
@@ -135,6 +326,9 @@ public class App extends AbstractLWJGLApp {
 		System.out.println("End time: " + startTime);
 		System.out.println("Time used: " + (endTime - startTime));
 		System.out.println("" + answerBuffer.get(1));
+		if (null != statistics) {
+			System.out.println("Answer " + statistics);
+		}
 	}
 	
 	private void print(FloatBuffer buffer) {
@@ -1,19 +1,14 @@
 package no.plasmid.opencl;
 
-import java.io.FileNotFoundException;
-import java.nio.ByteBuffer;
+import java.io.File;
+import java.io.IOException;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 
 import org.lwjgl.BufferUtils;
 import org.lwjgl.LWJGLException;
-import org.lwjgl.PointerBuffer;
 import org.lwjgl.opencl.CL10;
-import org.lwjgl.opencl.CLKernel;
 import org.lwjgl.opencl.CLMem;
-import org.lwjgl.opencl.CLProgram;
-import org.lwjgl.opencl.OpenCLException;
-import org.lwjgl.opencl.Util;
 
 public class App extends AbstractLWJGLApp {
 
@@ -23,7 +18,33 @@ public class App extends AbstractLWJGLApp {
 	public static final int NOISE_OCTAVES			= 10;
 	public static final int NOISE_RANDOM_SEED		= 3;
 	
-	public static void main(String[] args) throws LWJGLException, FileNotFoundException {
+	private static final String KERNEL_NAME = "getheight_block";
+	
+	private static boolean useOpenCL = true;
+	//Without OpenCL, calculate in bands on all cores instead of the single threaded loop
+	private static boolean useParallelCPU = true;
+	//Reduce the heights to statistics on the device, instead of reading all heights back
+	private static boolean useReduction = true;
+	//Find the samples above a height on the device, with only their number and first index read back
+	private static boolean useCompaction = true;
+	private static final float HEIGHT_THRESHOLD = 0.0f;
+	//Assemble the heights from cached tiles, calculated with OpenCL, instead of one kernel launch
+	private static boolean useTileService = false;
+	private static final int TILE_SIZE = 64;
+	private static final int MAX_TILES = 256;
+	//Write a larger map to a memory mapped file in bands calculated with OpenCL, instead of one region in memory
+	private static boolean useFileOutput = false;
+	private static final String MAP_FILE = "heightmap.raw";
+	private static final int MAP_SIZE = 8192;
+	private static final int MAP_BAND_ROWS = 256;
+	//Calculate one band of the region for each of a few seeds, in one kernel launch
+	private static boolean useBatch = false;
+	private static final int BATCH_SEEDS = 4;
+	//Calculate a preview with the first octaves, then refine it with the remaining octaves
+	private static boolean useProgressive = false;
+	private static final int PREVIEW_OCTAVES = 3;
+	
+	public static void main(String[] args) throws LWJGLException, IOException {
 		App app = new App();
   	app.loadNatives(SupportedPlatform.getPlatformForOS());
 
@@ -33,8 +54,21 @@ public class App extends AbstractLWJGLApp {
   	app.prepareDataAndProgram();
   	//Do calculations
   	long startTime = System.currentTimeMillis();
-  	app.calculateOpenCL();
-//  	app.calculateNormal();
+  	if (useFileOutput) {
+  		app.calculateToFile();
+  	} else if (useProgressive) {
+  		app.calculateProgressive();
+  	} else if (useBatch) {
+  		app.calculateBatch();
+  	} else if (useTileService) {
+  		app.calculateTiled();
+  	} else if (useOpenCL) {
+  		app.calculateOpenCL();
+  	} else if (useParallelCPU) {
+  		app.calculateParallel();
+  	} else {
+  		app.calculateNormal();
+  	}
   	long endTime = System.currentTimeMillis();
   	//Clean up data and program
   	app.cleanupDataAndProgram();
@@ -48,80 +82,58 @@ public class App extends AbstractLWJGLApp {
 	
 	private int dataSize = 256;
 	
-	private IntBuffer xPosBuffer;
-	private IntBuffer yPosBuffer;
 	private FloatBuffer answerBuffer;
 	
-	private CLMem xPosMem = null;
-	private CLMem yPosMem = null;
 	private CLMem answerMem = null;
 	
-	private CLProgram program = null;
-	private CLKernel kernel = null;
+	private CLPerlinNoise clNoise = null;
+	private CLReduction reduction = null;
+	private String statistics = null;
+	private CLScan scan = null;
+	private CLMem flagsMem = null;
+	private CLMem indicesMem = null;
+	private String aboveThreshold = null;
 	
-	private void prepareDataAndProgram() throws LWJGLException, FileNotFoundException {
+	private void prepareDataAndProgram() throws LWJGLException {
 		//Prepare the noise implemented in Java
 		noise = new PerlinNoise(NOISE_PERSISTENCE, NOISE_FREQUENCY, NOISE_AMPLITUDE, NOISE_OCTAVES, NOISE_RANDOM_SEED);
 		
-		xPosBuffer = BufferUtils.createIntBuffer(dataSize * dataSize);
-		yPosBuffer = BufferUtils.createIntBuffer(dataSize * dataSize);
-		for (int i = 0; i < dataSize * dataSize; i++) {
-			xPosBuffer.put(i, i % dataSize);
-			yPosBuffer.put(i, i / dataSize);
-		}
-		xPosBuffer.rewind();
-		yPosBuffer.rewind();
 		answerBuffer = BufferUtils.createFloatBuffer(dataSize * dataSize);
-		System.out.println("Data ready");
-		
-		//Allocate memory and copy data
-		xPosMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_ONLY | CL10.CL_MEM_COPY_HOST_PTR, xPosBuffer, errorCodeBuffer);
-		checkErrorCodeBuffer(errorCodeBuffer);
-		CL10.clEnqueueWriteBuffer(commandQueue, xPosMem, CL10.CL_TRUE, 0, xPosBuffer, null, null);
-		yPosMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_ONLY | CL10.CL_MEM_COPY_HOST_PTR, yPosBuffer, errorCodeBuffer);
-		checkErrorCodeBuffer(errorCodeBuffer);
-		CL10.clEnqueueWriteBuffer(commandQueue, yPosMem, CL10.CL_TRUE, 0, yPosBuffer, null, null);
-		answerMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_ONLY | CL10.CL_MEM_COPY_HOST_PTR, answerBuffer, errorCodeBuffer);
-		checkErrorCodeBuffer(errorCodeBuffer);
-		CL10.clEnqueueWriteBuffer(commandQueue, answerMem, CL10.CL_TRUE, 0, answerBuffer, null, null);
-		CL10.clFinish(commandQueue);
-		System.out.println("Data copied to OpenCL");
 		
-		//Load program source
-		String source = loadTextFile("/cl/noise.cl");
-		
-		//Create the program
-		program = CL10.clCreateProgramWithSource(context, source, errorCodeBuffer);
+		//Allocate memory, the kernel derives the coordinates from its ids, so only the answer is needed
+		answerMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_WRITE, dataSize * dataSize * 4, errorCodeBuffer);
 		checkErrorCodeBuffer(errorCodeBuffer);
-		try {
-			Util.checkCLError(CL10.clBuildProgram(program, deviceList.get(0), "", null));
-		} catch (OpenCLException e) {
-			ByteBuffer buffer = BufferUtils.createByteBuffer(1000);
-			CL10.clGetProgramBuildInfo(program, deviceList.get(0), CL10.CL_PROGRAM_BUILD_LOG, buffer, null);
-			printChars(buffer);
-			
-			System.out.println(program.getBuildInfoString(deviceList.get(0), CL10.CL_PROGRAM_BUILD_LOG));
-			throw e;
+		if (useReduction) {
+			reduction = new CLReduction(context, deviceList.get(0), commandQueue, programCache);
+			reduction.setProfiler(profiler);
 		}
-		//Sum has to match a kernel method name in the OpenCL source
-		kernel = CL10.clCreateKernel(program, "getheight", errorCodeBuffer);
-		checkErrorCodeBuffer(errorCodeBuffer);
+		if (useCompaction) {
+			scan = new CLScan(context, deviceList.get(0), commandQueue, programCache);
+			scan.setProfiler(profiler);
+			flagsMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_WRITE, dataSize * dataSize * 4, errorCodeBuffer);
+			checkErrorCodeBuffer(errorCodeBuffer);
+			indicesMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_WRITE, dataSize * dataSize * 4, errorCodeBuffer);
+			checkErrorCodeBuffer(errorCodeBuffer);
+		}
+		System.out.println("Data ready");
+		
+		//Create the noise on the device, the program is loaded from the program cache when possible
+		clNoise = new CLPerlinNoise(context, deviceList.get(0), commandQueue, programCache, noise);
 		System.out.println("OpenCL program ready");
 	}
 
 	private void cleanupDataAndProgram() {
 		//Clean up OpenCL resources
-		if (null != kernel) {
-			CL10.clReleaseKernel(kernel);
+		if (null != clNoise) {
+			clNoise.release();
 		}
-		if (null != program) {
-			CL10.clReleaseProgram(program);
+		if (null != reduction) {
+			reduction.release();
 		}
-		if (null != xPosMem) {
-			CL10.clReleaseMemObject(xPosMem);
-		}
-		if (null != yPosMem) {
-			CL10.clReleaseMemObject(yPosMem);
+		if (null != scan) {
+			scan.release();
+			CL10.clReleaseMemObject(flagsMem);
+			CL10.clReleaseMemObject(indicesMem);
 		}
 		if (null != answerMem) {
 			CL10.clReleaseMemObject(answerMem);
@@ -129,33 +141,99 @@ public class App extends AbstractLWJGLApp {
 	}
 	
 	private void calculateNormal() {
-		for (int x = 0; x < dataSize; x++) {
-			for (int y = 0; y < dataSize; y++) {
-				answerBuffer.put((float)noise.getHeight(x, y));
+		//Row by row, the same layout as the kernel
+		for (int y = 0; y < dataSize; y++) {
+			for (int x = 0; x < dataSize; x++) {
+				answerBuffer.put(y * dataSize + x, noise.getHeight(x, y));
 			}
 		}
 	}
 	
+	private void calculateParallel() {
+		ParallelNoiseGenerator generator = new ParallelNoiseGenerator();
+		generator.generate(noise, 0.0f, 0.0f, 1.0f, 1.0f, dataSize, dataSize, answerBuffer);
+		generator.shutdown();
+	}
+	
+	private void calculateTiled() {
+		CLTileGenerator generator = new CLTileGenerator(context, deviceList.get(0), commandQueue, programCache);
+		HeightTileService service = new HeightTileService(generator, TILE_SIZE, MAX_TILES);
+		service.getRegion(noise, 0, 0, dataSize, dataSize, answerBuffer);
+		//An overlapping region, only the tiles outside the first one are calculated
+		service.getRegion(noise, TILE_SIZE / 2, TILE_SIZE / 2, dataSize, dataSize, null);
+		statistics = "from tiles, " + service.getMisses() + " calculated, " + service.getHits() + " from cache";
+		service.clear();
+		generator.release();
+	}
+	
+	private void calculateToFile() throws IOException {
+		File file = new File(MAP_FILE);
+		HeightmapFileWriter writer = new HeightmapFileWriter(HeightmapFileWriter.createGenerator(clNoise),
+				HeightmapFileWriter.Layout.RAW, MAP_BAND_ROWS);
+		writer.write(file, 0.0f, 0.0f, 1.0f, 1.0f, MAP_SIZE, MAP_SIZE);
+		statistics = MAP_SIZE + "x" + MAP_SIZE + " written to " + file.getAbsolutePath();
+	}
+	
+	private void calculateProgressive() {
+		CLMem accumulationMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_WRITE, dataSize * dataSize * 4,
+				errorCodeBuffer);
+		checkErrorCodeBuffer(errorCodeBuffer);
+		clNoise.enqueueOctaves(answerMem, accumulationMem, 0, PREVIEW_OCTAVES, 0.0f, 0.0f, 1.0f, 1.0f, dataSize,
+				dataSize, null);
+		CL10.clEnqueueReadBuffer(commandQueue, answerMem, CL10.CL_TRUE, 0, answerBuffer, null, null);
+		statistics = "preview with " + PREVIEW_OCTAVES + " octaves " + answerBuffer.get(1000);
+		//Only the remaining octaves are calculated
+		clNoise.enqueueOctaves(answerMem, accumulationMem, PREVIEW_OCTAVES, NOISE_OCTAVES, 0.0f, 0.0f, 1.0f, 1.0f,
+				dataSize, dataSize, null);
+		CL10.clEnqueueReadBuffer(commandQueue, answerMem, CL10.CL_TRUE, 0, answerBuffer, null, null);
+		CL10.clReleaseMemObject(accumulationMem);
+	}
+	
+	private void calculateBatch() {
+		NoiseRegion[] regions = new NoiseRegion[BATCH_SEEDS];
+		int bandRows = dataSize / BATCH_SEEDS;
+		for (int i = 0; i < BATCH_SEEDS; i++) {
+			PerlinNoise seedNoise = new PerlinNoise(NOISE_PERSISTENCE, NOISE_FREQUENCY, NOISE_AMPLITUDE, NOISE_OCTAVES,
+					NOISE_RANDOM_SEED + i);
+			regions[i] = new NoiseRegion(seedNoise, 0.0f, i * bandRows, 1.0f, 1.0f, dataSize, bandRows);
+		}
+		CLNoiseBatch batch = new CLNoiseBatch(context, deviceList.get(0), commandQueue, programCache);
+		batch.evaluate(regions, answerBuffer);
+		batch.release();
+		statistics = "from " + BATCH_SEEDS + " seeds in one launch";
+	}
+	
 	private void calculateOpenCL() throws LWJGLException {
-		//Execute the kernel
-		PointerBuffer kernel1DGlobalWorkSize = BufferUtils.createPointerBuffer(1);
-		kernel1DGlobalWorkSize.put(0, Math.max(dataSize * dataSize, 1));
-		kernel.setArg(0, NOISE_PERSISTENCE);
-		kernel.setArg(1, NOISE_FREQUENCY);
-		kernel.setArg(2, NOISE_AMPLITUDE);
-		kernel.setArg(3, NOISE_OCTAVES);
-		kernel.setArg(4, NOISE_RANDOM_SEED);
-		kernel.setArg(5, xPosMem);
-		kernel.setArg(6, yPosMem);
-		kernel.setArg(7, answerMem);
-//		kernel.setArg(0, xPosMem);
-//		kernel.setArg(1, yPosMem);
-//		kernel.setArg(2, answerMem);
-		CL10.clEnqueueNDRangeKernel(commandQueue, kernel, 1, null, kernel1DGlobalWorkSize, null, null, null);
+		//Execute the kernel for the region from (0, 0), one sample per unit
+		clNoise.enqueueRegion(answerMem, 0.0f, 0.0f, 1.0f, 1.0f, dataSize, dataSize, profiler.event());
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.KERNEL);
 		
 		//Read back results
-		CL10.clEnqueueReadBuffer(commandQueue, answerMem, CL10.CL_TRUE, 0, answerBuffer, null, null);
+		if (null != reduction) {
+			//Only the statistics and the printed height come back
+			int count = dataSize * dataSize;
+			statistics = "min " + reduction.min(answerMem, count) + ", max " + reduction.max(answerMem, count)
+					+ ", mean " + reduction.sum(answerMem, count) / count;
+			answerBuffer.position(1000).limit(1001);
+			CL10.clEnqueueReadBuffer(commandQueue, answerMem, CL10.CL_TRUE, 1000 * 4, answerBuffer, null, profiler.event());
+			answerBuffer.clear();
+		} else {
+			CL10.clEnqueueReadBuffer(commandQueue, answerMem, CL10.CL_TRUE, 0, answerBuffer, null, profiler.event());
+		}
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.READBACK);
+		if (null != scan) {
+			int count = dataSize * dataSize;
+			scan.flagGreater(answerMem, count, HEIGHT_THRESHOLD, flagsMem);
+			int above = scan.compactIndices(flagsMem, count, indicesMem);
+			aboveThreshold = above + " of " + count;
+			if (above > 0) {
+				IntBuffer first = BufferUtils.createIntBuffer(1);
+				CL10.clEnqueueReadBuffer(commandQueue, indicesMem, CL10.CL_TRUE, 0, first, null, null);
+				aboveThreshold += ", first at index " + first.get(0);
+			}
+		}
 		CL10.clFinish(commandQueue);
+		profiler.collect();
 	}
 	
 	private void printResults(long startTime, long endTime) {
@@ -163,6 +241,12 @@ public class App extends AbstractLWJGLApp {
 		System.out.println("End time: " + startTime);
 		System.out.println("Time used: " + (endTime - startTime));
 		System.out.println(answerBuffer.get(1000));
+		if (null != statistics) {
+			System.out.println("Height " + statistics);
+		}
+		if (null != aboveThreshold) {
+			System.out.println("Heights above " + HEIGHT_THRESHOLD + ": " + aboveThreshold);
+		}
 	}
 	
 	private void print(FloatBuffer buffer) {
@@ -0,0 +1,277 @@
+package no.plasmid.opencl;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Evaluates {@link PerlinNoise} for whole regions, with the same results as getHeight per sample.
+ *
+ * Every genValue call hashes 16 lattice points and smooths the four corners around the sample, although
+ * neighbouring samples share the same corners. For each octave the evaluator hashes the lattice covering
+ * the region once, smooths each lattice point once, and interpolates all samples from the smoothed
+ * lattice, with the interpolation factors calculated once per row and column. The smoothing and
+ * interpolation are the same float operations in the same order as genValue, so the results are bit for
+ * bit the same.
+ *
+ * When an octave has more lattice points than the region has samples, there is nothing to share, and
+ * genValue is called per sample.
+ *
+ * A region is width x height samples at x = originX + stepX * i and y = originY + stepY * j, stored row by
+ * row at j * width + i, like the regions of {@link CLPerlinNoise}.
+ */
+public final class BlockNoiseEvaluator {
+
+	private BlockNoiseEvaluator() {
+	}
+
+	/**
+	 * Calculate the heights of a region.
+	 * @param noise the noise.
+	 * @param originX x of the first sample.
+	 * @param originY y of the first sample.
+	 * @param stepX distance between samples in x.
+	 * @param stepY distance between samples in y.
+	 * @param width the number of samples in x.
+	 * @param height the number of samples in y.
+	 * @param out the heights are written from its position.
+	 */
+	public static void evaluate(PerlinNoise noise, float originX, float originY, float stepX, float stepY, int width,
+			int height, FloatBuffer out) {
+		if (out.remaining() < (long)width * height) {
+			throw new IllegalArgumentException("Region has " + (long)width * height + " samples, buffer has room for "
+					+ out.remaining());
+		}
+		if (out.hasArray()) {
+			evaluate(noise, originX, originY, stepX, stepY, width, height, out.array(), out.arrayOffset() + out.position());
+		} else {
+			float[] heights = evaluate(noise, originX, originY, stepX, stepY, width, height);
+			out.duplicate().put(heights);
+		}
+	}
+
+	/**
+	 * Calculate the heights of a region.
+	 * @param noise the noise.
+	 * @param originX x of the first sample.
+	 * @param originY y of the first sample.
+	 * @param stepX distance between samples in x.
+	 * @param stepY distance between samples in y.
+	 * @param width the number of samples in x.
+	 * @param height the number of samples in y.
+	 * @return the heights.
+	 */
+	public static float[] evaluate(PerlinNoise noise, float originX, float originY, float stepX, float stepY,
+			int width, int height) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Region size must be positive, was " + width + "x" + height);
+		}
+		float[] rc = new float[width * height];
+		evaluate(noise, originX, originY, stepX, stepY, width, height, rc, 0);
+		return rc;
+	}
+
+	/**
+	 * Calculate the heights of a region into an array.
+	 * @param noise the noise.
+	 * @param originX x of the first sample.
+	 * @param originY y of the first sample.
+	 * @param stepX distance between samples in x.
+	 * @param stepY distance between samples in y.
+	 * @param width the number of samples in x.
+	 * @param height the number of samples in y.
+	 * @param out the array for the heights.
+	 * @param offset index of the first height in out.
+	 */
+	public static void evaluate(PerlinNoise noise, float originX, float originY, float stepX, float stepY, int width,
+			int height, float[] out, int offset) {
+		evaluate(noise, originX, originY, stepX, stepY, width, height, 0, out, offset);
+	}
+
+	/**
+	 * Calculate rows firstRow to firstRow + height - 1 of a region into an array, for splitting a region in
+	 * bands. Row j is at y = originY + stepY * (firstRow + j), like in the whole region.
+	 */
+	static void evaluate(PerlinNoise noise, float originX, float originY, float stepX, float stepY, int width,
+			int height, int firstRow, float[] out, int offset) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Region size must be positive, was " + width + "x" + height);
+		}
+		if (offset < 0 || out.length - offset < (long)width * height) {
+			throw new IllegalArgumentException("Region has " + (long)width * height + " samples, array has room for "
+					+ (out.length - offset) + " from " + offset);
+		}
+		int end = offset + width * height;
+		Arrays.fill(out, offset, end, 0.0f);
+		new Accumulator(noise, originX, originY, stepX, stepY, width, height, firstRow).addOctaves(noise.octaves, out,
+				offset);
+		for (int s = offset; s < end; s++) {
+			out[s] = noise.amplitude * out[s];
+		}
+	}
+
+	/**
+	 * Adds the octaves of a region to a sum, one or more at a time, with the same sequence of operations as
+	 * PerlinNoise.total. The sum is without the amplitude of the noise.
+	 */
+	static final class Accumulator {
+
+		private final PerlinNoise noise;
+		private final float[] xs;
+		private final float[] ys;
+		private final Axis rows;
+		private final Axis columns;
+		//Properties of the next octave
+		private int octave = 0;
+		private float amp = 1;
+		private float freq;
+
+		Accumulator(PerlinNoise noise, float originX, float originY, float stepX, float stepY, int width, int height,
+				int firstRow) {
+			this.noise = noise;
+			xs = new float[width];
+			for (int i = 0; i < width; i++) {
+				xs[i] = originX + stepX * i;
+			}
+			ys = new float[height];
+			for (int j = 0; j < height; j++) {
+				ys[j] = originY + stepY * (firstRow + j);
+			}
+			rows = new Axis(height);
+			columns = new Axis(width);
+			freq = noise.frequency;
+		}
+
+		/**
+		 * Add the next octaves to the sum, up to the octaves of the noise.
+		 * @param count the number of octaves to add.
+		 * @param t the sum of the octaves so far, row by row.
+		 * @param offset index of the first sample in t.
+		 */
+		void addOctaves(int count, float[] t, int offset) {
+			int width = xs.length;
+			int height = ys.length;
+			int last = (int)Math.min((long)octave + count, noise.octaves);
+			for (; octave < last; octave++) {
+				//genValue is called with (y, x), so rows give the first lattice coordinate
+				rows.update(ys, freq, noise.randomseed);
+				columns.update(xs, freq, noise.randomseed);
+				long latticePoints = (long)(rows.max - rows.min + 2) * (columns.max - columns.min + 2);
+				if (latticePoints <= (long)width * height) {
+					addInterpolated(t, offset, rows, columns, amp);
+				} else {
+					for (int j = 0; j < height; j++) {
+						for (int i = 0; i < width; i++) {
+							t[offset + j * width + i] += PerlinNoise.genValue(rows.coordinate[j], columns.coordinate[i]) * amp;
+						}
+					}
+				}
+				amp *= noise.persistence;
+				freq *= 2;
+			}
+		}
+
+		/**
+		 * @return the number of octaves added so far.
+		 */
+		int getOctave() {
+			return octave;
+		}
+
+	}
+
+	private static void addInterpolated(float[] t, int offset, Axis rows, Axis columns, float amp) {
+		//Smoothed values of lattice points min to max + 1 in both directions
+		int nx = rows.max - rows.min + 2;
+		int ny = columns.max - columns.min + 2;
+		float[] smoothed = smoothedLattice(rows.min, columns.min, nx, ny);
+
+		int width = columns.size;
+		for (int j = 0; j < rows.size; j++) {
+			int rowBase = (rows.integer[j] - rows.min) * ny - columns.min;
+			int rowOffset = offset + j * width;
+			float xFac1 = rows.fac1[j];
+			float xFac2 = rows.fac2[j];
+			for (int i = 0; i < width; i++) {
+				int base = rowBase + columns.integer[i];
+				float x0y0 = smoothed[base];
+				float x1y0 = smoothed[base + ny];
+				float x0y1 = smoothed[base + 1];
+				float x1y1 = smoothed[base + ny + 1];
+				//interpolate(x0y0, x1y0, Xfrac), interpolate(x0y1, x1y1, Xfrac) and interpolate(v1, v2, Yfrac)
+				float v1 = x0y0 * xFac1 + x1y0 * xFac2;
+				float v2 = x0y1 * xFac1 + x1y1 * xFac2;
+				float fin = v1 * columns.fac1[i] + v2 * columns.fac2[i];
+				t[rowOffset + i] += fin * amp;
+			}
+		}
+	}
+
+	/**
+	 * Hash the lattice with a border of one point, and smooth each point like the corners in genValue.
+	 * @return nx x ny smoothed values, point (minX + a, minY + b) at a * ny + b.
+	 */
+	private static float[] smoothedLattice(int minX, int minY, int nx, int ny) {
+		int hx = nx + 2;
+		int hy = ny + 2;
+		float[] n = new float[hx * hy];
+		for (int a = 0; a < hx; a++) {
+			for (int b = 0; b < hy; b++) {
+				n[a * hy + b] = PerlinNoise.noise(minX - 1 + a, minY - 1 + b);
+			}
+		}
+		float[] rc = new float[nx * ny];
+		for (int a = 0; a < nx; a++) {
+			for (int b = 0; b < ny; b++) {
+				//Centre (a + 1, b + 1) in the hashed lattice
+				int c = (a + 1) * hy + b + 1;
+				rc[a * ny + b] = 0.0625f*(n[c - hy - 1] + n[c + hy - 1] + n[c - hy + 1] + n[c + hy + 1])
+						+ 0.125f*(n[c - hy] + n[c + hy] + n[c - 1] + n[c + 1]) + 0.25f*(n[c]);
+			}
+		}
+		return rc;
+	}
+
+	/**
+	 * Lattice coordinates and interpolation factors of the samples along one axis, for one octave.
+	 */
+	private static class Axis {
+
+		private final int size;
+		private final float[] coordinate;
+		private final int[] integer;
+		private final float[] fac1;
+		private final float[] fac2;
+		private int min;
+		private int max;
+
+		Axis(int size) {
+			this.size = size;
+			coordinate = new float[size];
+			integer = new int[size];
+			fac1 = new float[size];
+			fac2 = new float[size];
+		}
+
+		void update(float[] positions, float freq, int randomseed) {
+			min = Integer.MAX_VALUE;
+			max = Integer.MIN_VALUE;
+			for (int i = 0; i < size; i++) {
+				float c = positions[i] * freq + randomseed;
+				int ci = (int)c;
+				float frac = c - ci;
+				coordinate[i] = c;
+				integer[i] = ci;
+				min = Math.min(min, ci);
+				max = Math.max(max, ci);
+				//The factors of PerlinNoise.interpolate
+				float negA = 1.0f - frac;
+				float negASqr = negA * negA;
+				fac1[i] = 3.0f * (negASqr) - 2.0f * (negASqr * negA);
+				float aSqr = frac * frac;
+				fac2[i] = 3.0f * aSqr - 2.0f * (aSqr * frac);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,176 @@
+package no.plasmid.opencl;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opencl.CL10;
+import org.lwjgl.opencl.CLCommandQueue;
+import org.lwjgl.opencl.CLContext;
+import org.lwjgl.opencl.CLDevice;
+import org.lwjgl.opencl.CLKernel;
+import org.lwjgl.opencl.CLMem;
+import org.lwjgl.opencl.CLProgram;
+import org.lwjgl.opencl.Util;
+
+/**
+ * Batches of {@link NoiseRegion}s on an OpenCL device, evaluated with one launch of the getheight_batch
+ * kernel, instead of one launch per parameter set. The parameters of the batch are uploaded as two small
+ * arrays, and the heights are packed in one buffer, region after region, like
+ * {@link PerlinNoise#getHeights(NoiseRegion[], float[])}. The heights are the same as getHeight, unless
+ * the device flushes denormals.
+ */
+public class CLNoiseBatch {
+
+	private static final String SOURCE_PATH = "/cl/noise.cl";
+	private static final String KERNEL_NAME = "getheight_batch";
+	//Parameters per region, see getheight_batch
+	private static final int FLOAT_PARAMS = 7;
+	private static final int INT_PARAMS = 5;
+
+	private final CLContext context;
+	private final CLCommandQueue queue;
+	private final CLProgram program;
+	private final CLKernel kernel;
+
+	private final IntBuffer errorCodeBuffer = BufferUtils.createIntBuffer(1);
+	private final PointerBuffer globalWorkSize = BufferUtils.createPointerBuffer(1);
+
+	//Parameters on the host and the device, grown when needed
+	private FloatBuffer floatParams = null;
+	private IntBuffer intParams = null;
+	private CLMem floatParamsMem = null;
+	private CLMem intParamsMem = null;
+	private int regionCapacity = 0;
+
+	//Device buffer for batches that are read back, grown when needed
+	private CLMem answerMem = null;
+	private long answerCapacity = 0;
+
+	/**
+	 * @param context the context.
+	 * @param device the device to build the kernel for.
+	 * @param queue the queue to enqueue on.
+	 * @param programCache the cache to build the program with.
+	 */
+	public CLNoiseBatch(CLContext context, CLDevice device, CLCommandQueue queue, CLProgramCache programCache) {
+		this.context = context;
+		this.queue = queue;
+		program = programCache.buildProgram(context, device, CLSources.load(SOURCE_PATH), "");
+		kernel = CL10.clCreateKernel(program, KERNEL_NAME, errorCodeBuffer);
+		Util.checkCLError(errorCodeBuffer.get(0));
+	}
+
+	/**
+	 * Upload the parameters of a batch and enqueue the calculation of its heights into a device buffer. The
+	 * parameters are uploaded before this returns.
+	 * @param regions the regions.
+	 * @param out the device buffer, at least as many floats as all regions together.
+	 * @param event event buffer for the kernel, may be null.
+	 * @return the number of heights.
+	 */
+	public int enqueue(NoiseRegion[] regions, CLMem out, PointerBuffer event) {
+		int total = checkBatch(regions);
+		if (regionCapacity < regions.length) {
+			releaseParams();
+			regionCapacity = regions.length;
+			floatParams = BufferUtils.createFloatBuffer(regionCapacity * FLOAT_PARAMS);
+			intParams = BufferUtils.createIntBuffer(regionCapacity * INT_PARAMS);
+			floatParamsMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_ONLY, floatParams.capacity() * 4,
+					errorCodeBuffer);
+			Util.checkCLError(errorCodeBuffer.get(0));
+			intParamsMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_ONLY, intParams.capacity() * 4, errorCodeBuffer);
+			Util.checkCLError(errorCodeBuffer.get(0));
+		}
+
+		floatParams.clear();
+		intParams.clear();
+		int offset = 0;
+		for (NoiseRegion region : regions) {
+			PerlinNoise noise = region.getNoise();
+			floatParams.put(noise.persistence).put(noise.frequency).put(noise.amplitude);
+			floatParams.put(region.getOriginX()).put(region.getOriginY()).put(region.getStepX()).put(region.getStepY());
+			intParams.put(noise.octaves).put(noise.randomseed).put(region.getWidth()).put(region.getHeight()).put(offset);
+			offset += region.getWidth() * region.getHeight();
+		}
+		floatParams.flip();
+		intParams.flip();
+		Util.checkCLError(CL10.clEnqueueWriteBuffer(queue, floatParamsMem, CL10.CL_TRUE, 0, floatParams, null, null));
+		Util.checkCLError(CL10.clEnqueueWriteBuffer(queue, intParamsMem, CL10.CL_TRUE, 0, intParams, null, null));
+
+		kernel.setArg(0, floatParamsMem);
+		kernel.setArg(1, intParamsMem);
+		kernel.setArg(2, regions.length);
+		kernel.setArg(3, total);
+		kernel.setArg(4, out);
+		globalWorkSize.put(0, total);
+		Util.checkCLError(CL10.clEnqueueNDRangeKernel(queue, kernel, 1, null, globalWorkSize, null, null, event));
+		return total;
+	}
+
+	/**
+	 * Calculate the heights of a batch and read them back.
+	 * @param regions the regions.
+	 * @param out the heights are written from its position, or null to allocate a buffer.
+	 * @return the buffer with the heights, from the position of out.
+	 */
+	public FloatBuffer evaluate(NoiseRegion[] regions, FloatBuffer out) {
+		int total = checkBatch(regions);
+		if (null == out) {
+			out = BufferUtils.createFloatBuffer(total);
+		} else if (out.remaining() < total) {
+			throw new IllegalArgumentException("Batch has " + total + " samples, buffer has room for "
+					+ out.remaining());
+		}
+		if (answerCapacity < total) {
+			if (null != answerMem) {
+				CL10.clReleaseMemObject(answerMem);
+			}
+			answerMem = CL10.clCreateBuffer(context, CL10.CL_MEM_WRITE_ONLY, (long)total * 4, errorCodeBuffer);
+			Util.checkCLError(errorCodeBuffer.get(0));
+			answerCapacity = total;
+		}
+		enqueue(regions, answerMem, null);
+		FloatBuffer target = out.duplicate();
+		target.limit(target.position() + total);
+		Util.checkCLError(CL10.clEnqueueReadBuffer(queue, answerMem, CL10.CL_TRUE, 0, target, null, null));
+		return out;
+	}
+
+	private static int checkBatch(NoiseRegion[] regions) {
+		if (0 == regions.length) {
+			throw new IllegalArgumentException("Batch has no regions");
+		}
+		long total = NoiseRegion.getSampleCount(regions);
+		if (total > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Batch has " + total + " samples, more than one buffer can hold");
+		}
+		return (int)total;
+	}
+
+	private void releaseParams() {
+		if (null != floatParamsMem) {
+			CL10.clReleaseMemObject(floatParamsMem);
+			CL10.clReleaseMemObject(intParamsMem);
+			floatParamsMem = null;
+			intParamsMem = null;
+		}
+		regionCapacity = 0;
+	}
+
+	/**
+	 * Release the kernel, the program and the buffers.
+	 */
+	public void release() {
+		CL10.clReleaseKernel(kernel);
+		CL10.clReleaseProgram(program);
+		releaseParams();
+		if (null != answerMem) {
+			CL10.clReleaseMemObject(answerMem);
+			answerMem = null;
+			answerCapacity = 0;
+		}
+	}
+
+}
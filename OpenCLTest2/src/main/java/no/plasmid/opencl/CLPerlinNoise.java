@@ -0,0 +1,344 @@
+package no.plasmid.opencl;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opencl.CL10;
+import org.lwjgl.opencl.CLCommandQueue;
+import org.lwjgl.opencl.CLContext;
+import org.lwjgl.opencl.CLDevice;
+import org.lwjgl.opencl.CLKernel;
+import org.lwjgl.opencl.CLMem;
+import org.lwjgl.opencl.CLProgram;
+import org.lwjgl.opencl.Util;
+
+/**
+ * {@link PerlinNoise} on an OpenCL device, for rectangular regions. The getheight2d kernel derives the
+ * coordinates of each sample from its global ids, so only the heights are transferred.
+ *
+ * A region is width x height samples at x = originX + stepX * i and y = originY + stepY * j, stored row by
+ * row at j * width + i. Heights can be left on the device for other kernels, or read back.
+ *
+ * By default regions are calculated with the getheight_block kernel, where each work group hashes and
+ * smooths the lattice under its samples once per octave in local memory, like {@link BlockNoiseEvaluator}.
+ * Its heights are the same as {@link PerlinNoise#getHeight(float, float)}, unless the device flushes
+ * denormals.
+ */
+public class CLPerlinNoise {
+
+	private static final String SOURCE_PATH = "/cl/noise.cl";
+	private static final String KERNEL_NAME = "getheight2d";
+	private static final String BLOCK_KERNEL_NAME = "getheight_block";
+	private static final String OCTAVES_KERNEL_NAME = "getheight_octaves";
+	//Floats of local memory per work item for the lattice of the block kernel
+	private static final int LATTICE_PER_ITEM = 4;
+
+	private final float persistence;
+	private final float frequency;
+	private final float amplitude;
+	private final int octaves;
+	private final int randomseed;
+
+	private final CLContext context;
+	private final CLCommandQueue queue;
+	private final CLProgram program;
+	private final CLKernel kernel;
+	private final CLKernel blockKernel;
+	private final CLKernel octavesKernel;
+	//Side of the square work groups of the block kernel
+	private final int groupSide;
+	private boolean latticeCached = true;
+
+	private final IntBuffer errorCodeBuffer = BufferUtils.createIntBuffer(1);
+	private final PointerBuffer globalWorkSize = BufferUtils.createPointerBuffer(2);
+	private final PointerBuffer localWorkSize = BufferUtils.createPointerBuffer(2);
+
+	//Device buffer for regions that are read back, grown when needed
+	private CLMem regionMem = null;
+	private long regionCapacity = 0;
+
+	/**
+	 * @param context the context.
+	 * @param device the device to build the kernel for.
+	 * @param queue the queue to enqueue on.
+	 * @param programCache the cache to build the program with.
+	 * @param persistence amount of small bumps
+	 * @param frequency amount of big bumps
+	 * @param amplitude height difference
+	 * @param octaves
+	 * @param randomseed random seed
+	 */
+	public CLPerlinNoise(CLContext context, CLDevice device, CLCommandQueue queue, CLProgramCache programCache,
+			float persistence, float frequency, float amplitude, int octaves, int randomseed) {
+		this.context = context;
+		this.queue = queue;
+		this.persistence = persistence;
+		this.frequency = frequency;
+		this.amplitude = amplitude;
+		this.octaves = octaves;
+		this.randomseed = randomseed;
+
+		program = programCache.buildProgram(context, device, CLSources.load(SOURCE_PATH), "");
+		kernel = createKernel(KERNEL_NAME);
+		blockKernel = createKernel(BLOCK_KERNEL_NAME);
+		octavesKernel = createKernel(OCTAVES_KERNEL_NAME);
+
+		//The largest power of two square group the block kernel can run with
+		long maxGroupSize = Math.min(256, blockKernel.getWorkGroupInfoSize(device, CL10.CL_KERNEL_WORK_GROUP_SIZE));
+		int side = 1;
+		while (side * 2 * side * 2 <= maxGroupSize) {
+			side *= 2;
+		}
+		groupSide = side;
+		localWorkSize.put(0, groupSide);
+		localWorkSize.put(1, groupSide);
+		int latticeCapacity = LATTICE_PER_ITEM * groupSide * groupSide;
+		blockKernel.setArgSize(12, latticeCapacity * 4);
+		blockKernel.setArg(13, latticeCapacity);
+	}
+
+	private CLKernel createKernel(String name) {
+		CLKernel rc = CL10.clCreateKernel(program, name, errorCodeBuffer);
+		Util.checkCLError(errorCodeBuffer.get(0));
+		rc.setArg(0, persistence);
+		rc.setArg(1, frequency);
+		rc.setArg(2, amplitude);
+		rc.setArg(3, octaves);
+		rc.setArg(4, randomseed);
+		return rc;
+	}
+
+	/**
+	 * Create the device version of a noise, with the same parameters.
+	 * @param context the context.
+	 * @param device the device to build the kernel for.
+	 * @param queue the queue to enqueue on.
+	 * @param programCache the cache to build the program with.
+	 * @param noise the noise.
+	 */
+	public CLPerlinNoise(CLContext context, CLDevice device, CLCommandQueue queue, CLProgramCache programCache,
+			PerlinNoise noise) {
+		this(context, device, queue, programCache, noise.persistence, noise.frequency, noise.amplitude,
+				noise.octaves, noise.randomseed);
+	}
+
+	/**
+	 * Enqueue the calculation of the heights of a region into a device buffer.
+	 * @param out the device buffer, at least width * height floats.
+	 * @param originX x of the first sample.
+	 * @param originY y of the first sample.
+	 * @param stepX distance between samples in x.
+	 * @param stepY distance between samples in y.
+	 * @param width the number of samples in x.
+	 * @param height the number of samples in y.
+	 * @param event event buffer for the kernel, may be null.
+	 */
+	public void enqueueRegion(CLMem out, float originX, float originY, float stepX, float stepY, int width, int height,
+			PointerBuffer event) {
+		enqueueRows(out, originX, originY, stepX, stepY, width, 0, height, event);
+	}
+
+	/**
+	 * Enqueue the calculation of rows firstRow to firstRow + rows - 1 of a region into a device buffer, for
+	 * calculating a region in bands. Row j of the band is at y = originY + stepY * (firstRow + j), like in the
+	 * whole region, so the bands have the same heights as the whole region.
+	 * @param out the device buffer, at least width * rows floats.
+	 * @param originX x of the first sample of the region.
+	 * @param originY y of the first sample of the region.
+	 * @param stepX distance between samples in x.
+	 * @param stepY distance between samples in y.
+	 * @param width the number of samples in x.
+	 * @param firstRow the index of the first row of the band in the region.
+	 * @param rows the number of rows in the band.
+	 * @param event event buffer for the kernel, may be null.
+	 */
+	public void enqueueRows(CLMem out, float originX, float originY, float stepX, float stepY, int width, int firstRow,
+			int rows, PointerBuffer event) {
+		if (width <= 0 || rows <= 0) {
+			throw new IllegalArgumentException("Region size must be positive, was " + width + "x" + rows);
+		}
+		int height = rows;
+		CLKernel regionKernel = latticeCached ? blockKernel : kernel;
+		regionKernel.setArg(5, originX);
+		regionKernel.setArg(6, originY);
+		regionKernel.setArg(7, stepX);
+		regionKernel.setArg(8, stepY);
+		regionKernel.setArg(9, width);
+		regionKernel.setArg(10, height);
+		regionKernel.setArg(11, out);
+		if (latticeCached) {
+			blockKernel.setArg(14, firstRow);
+			//Whole groups, the kernel skips the samples outside the region
+			globalWorkSize.put(0, roundUp(width, groupSide));
+			globalWorkSize.put(1, roundUp(height, groupSide));
+			Util.checkCLError(CL10.clEnqueueNDRangeKernel(queue, blockKernel, 2, null, globalWorkSize, localWorkSize,
+					null, event));
+		} else {
+			kernel.setArg(12, firstRow);
+			globalWorkSize.put(0, width);
+			globalWorkSize.put(1, height);
+			Util.checkCLError(CL10.clEnqueueNDRangeKernel(queue, kernel, 2, null, globalWorkSize, null, null, event));
+		}
+	}
+
+	/**
+	 * Enqueue the refinement of a region with octaves firstOctave to lastOctave - 1, for previews that are
+	 * refined progressively like {@link ProgressiveNoiseRegion}. The sum of the earlier octaves is kept in an
+	 * accumulation buffer, so they are not calculated again. Octaves past the octaves of the noise are not
+	 * added. Refining in several steps gives the same heights as all octaves at once.
+	 * @param out the device buffer for the heights with the octaves so far, at least width * height floats.
+	 * @param accumulation the device buffer with the sum of the earlier octaves, updated, at least
+	 * width * height floats. Not read when firstOctave is 0.
+	 * @param firstOctave the first octave to add, the number of octaves in accumulation.
+	 * @param lastOctave the octave after the last octave to add.
+	 * @param originX x of the first sample.
+	 * @param originY y of the first sample.
+	 * @param stepX distance between samples in x.
+	 * @param stepY distance between samples in y.
+	 * @param width the number of samples in x.
+	 * @param height the number of samples in y.
+	 * @param event event buffer for the kernel, may be null.
+	 */
+	public void enqueueOctaves(CLMem out, CLMem accumulation, int firstOctave, int lastOctave, float originX,
+			float originY, float stepX, float stepY, int width, int height, PointerBuffer event) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Region size must be positive, was " + width + "x" + height);
+		}
+		if (firstOctave < 0 || lastOctave < firstOctave) {
+			throw new IllegalArgumentException("Invalid octave range " + firstOctave + " to " + lastOctave);
+		}
+		octavesKernel.setArg(5, originX);
+		octavesKernel.setArg(6, originY);
+		octavesKernel.setArg(7, stepX);
+		octavesKernel.setArg(8, stepY);
+		octavesKernel.setArg(9, width);
+		octavesKernel.setArg(10, height);
+		octavesKernel.setArg(11, out);
+		octavesKernel.setArg(12, accumulation);
+		octavesKernel.setArg(13, firstOctave);
+		octavesKernel.setArg(14, lastOctave);
+		globalWorkSize.put(0, width);
+		globalWorkSize.put(1, height);
+		Util.checkCLError(CL10.clEnqueueNDRangeKernel(queue, octavesKernel, 2, null, globalWorkSize, null, null,
+				event));
+	}
+
+	private static long roundUp(int size, int multiple) {
+		return ((long)size + multiple - 1) / multiple * multiple;
+	}
+
+	/**
+	 * Calculate the heights of a region and read them back.
+	 * @param originX x of the first sample.
+	 * @param originY y of the first sample.
+	 * @param stepX distance between samples in x.
+	 * @param stepY distance between samples in y.
+	 * @param width the number of samples in x.
+	 * @param height the number of samples in y.
+	 * @param out the heights are written from its position, or null to allocate a buffer.
+	 * @return the buffer with the heights, from the position of out.
+	 */
+	public FloatBuffer getRegion(float originX, float originY, float stepX, float stepY, int width, int height,
+			FloatBuffer out) {
+		return getRows(originX, originY, stepX, stepY, width, 0, height, out);
+	}
+
+	/**
+	 * Calculate rows firstRow to firstRow + rows - 1 of a region and read them back, like
+	 * {@link #enqueueRows}.
+	 * @param originX x of the first sample of the region.
+	 * @param originY y of the first sample of the region.
+	 * @param stepX distance between samples in x.
+	 * @param stepY distance between samples in y.
+	 * @param width the number of samples in x.
+	 * @param firstRow the index of the first row of the band in the region.
+	 * @param rows the number of rows in the band.
+	 * @param out the heights are written from its position, or null to allocate a buffer.
+	 * @return the buffer with the heights, from the position of out.
+	 */
+	public FloatBuffer getRows(float originX, float originY, float stepX, float stepY, int width, int firstRow,
+			int rows, FloatBuffer out) {
+		long count = (long)width * rows;
+		if (null == out) {
+			out = BufferUtils.createFloatBuffer((int)count);
+		} else if (out.remaining() < count) {
+			throw new IllegalArgumentException("Region has " + count + " samples, buffer has room for "
+					+ out.remaining());
+		}
+		if (regionCapacity < count) {
+			if (null != regionMem) {
+				CL10.clReleaseMemObject(regionMem);
+			}
+			regionMem = CL10.clCreateBuffer(context, CL10.CL_MEM_WRITE_ONLY, count * 4, errorCodeBuffer);
+			Util.checkCLError(errorCodeBuffer.get(0));
+			regionCapacity = count;
+		}
+		enqueueRows(regionMem, originX, originY, stepX, stepY, width, firstRow, rows, null);
+		FloatBuffer target = out.duplicate();
+		target.limit(target.position() + (int)count);
+		Util.checkCLError(CL10.clEnqueueReadBuffer(queue, regionMem, CL10.CL_TRUE, 0, target, null, null));
+		return out;
+	}
+
+	/**
+	 * The height at one point, like {@link PerlinNoise#getHeight(float, float)}. Use regions for more than
+	 * a few points.
+	 * @param x the x coordinate.
+	 * @param y the y coordinate.
+	 * @return the height.
+	 */
+	public float getHeight(float x, float y) {
+		return getRegion(x, y, 1.0f, 1.0f, 1, 1, null).get(0);
+	}
+
+	/**
+	 * Choose between the getheight_block kernel, sharing the lattice within each work group, and the
+	 * getheight2d kernel, calculating each sample on its own.
+	 * @param latticeCached true for getheight_block, the default.
+	 */
+	public void setLatticeCached(boolean latticeCached) {
+		this.latticeCached = latticeCached;
+	}
+
+	public boolean isLatticeCached() {
+		return latticeCached;
+	}
+
+	public float getPersistence() {
+		return persistence;
+	}
+
+	public float getFrequency() {
+		return frequency;
+	}
+
+	public float getAmplitude() {
+		return amplitude;
+	}
+
+	public int getOctaves() {
+		return octaves;
+	}
+
+	public int getRandomseed() {
+		return randomseed;
+	}
+
+	/**
+	 * Release the kernels, the program and the region buffer.
+	 */
+	public void release() {
+		CL10.clReleaseKernel(kernel);
+		CL10.clReleaseKernel(blockKernel);
+		CL10.clReleaseKernel(octavesKernel);
+		CL10.clReleaseProgram(program);
+		if (null != regionMem) {
+			CL10.clReleaseMemObject(regionMem);
+			regionMem = null;
+			regionCapacity = 0;
+		}
+	}
+
+}
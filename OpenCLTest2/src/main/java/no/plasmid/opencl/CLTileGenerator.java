@@ -0,0 +1,91 @@
+package no.plasmid.opencl;
+
+import java.nio.FloatBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.lwjgl.opencl.CLCommandQueue;
+import org.lwjgl.opencl.CLContext;
+import org.lwjgl.opencl.CLDevice;
+
+/**
+ * Tile generator for {@link HeightTileService} running the noise kernels. There is one
+ * {@link CLPerlinNoise} per set of noise parameters, for at most maxNoises sets, and the least recently used
+ * one is released first, so many biomes or seeds do not pile up programs and buffers on the device. Tiles
+ * are generated one at a time, since the kernel arguments and the queue are shared.
+ */
+public class CLTileGenerator implements HeightTileService.TileGenerator {
+
+	private static final int DEFAULT_MAX_NOISES = 8;
+
+	private final CLContext context;
+	private final CLDevice device;
+	private final CLCommandQueue queue;
+	private final CLProgramCache programCache;
+
+	//Noises in access order, guarded by this
+	private final LinkedHashMap<HeightTileService.TileKey, CLPerlinNoise> noises;
+
+	/**
+	 * @param context the context.
+	 * @param device the device to build the kernel for.
+	 * @param queue the queue to enqueue on.
+	 * @param programCache the cache to build the program with.
+	 */
+	public CLTileGenerator(CLContext context, CLDevice device, CLCommandQueue queue, CLProgramCache programCache) {
+		this(context, device, queue, programCache, DEFAULT_MAX_NOISES);
+	}
+
+	/**
+	 * @param context the context.
+	 * @param device the device to build the kernel for.
+	 * @param queue the queue to enqueue on.
+	 * @param programCache the cache to build the program with.
+	 * @param maxNoises the number of parameter sets to keep on the device.
+	 */
+	public CLTileGenerator(CLContext context, CLDevice device, CLCommandQueue queue, CLProgramCache programCache,
+			final int maxNoises) {
+		if (maxNoises <= 0) {
+			throw new IllegalArgumentException("Noise count must be positive, was " + maxNoises);
+		}
+		this.context = context;
+		this.device = device;
+		this.queue = queue;
+		this.programCache = programCache;
+		noises = new LinkedHashMap<HeightTileService.TileKey, CLPerlinNoise>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<HeightTileService.TileKey, CLPerlinNoise> eldest) {
+				if (size() <= maxNoises) {
+					return false;
+				}
+				//Tiles are generated under the same lock, so the noise is not in use
+				eldest.getValue().release();
+				return true;
+			}
+		};
+	}
+
+	@Override
+	public synchronized void generate(HeightTileService.TileKey key, int tileSize, FloatBuffer out) {
+		HeightTileService.TileKey parameters = key.getParameters();
+		CLPerlinNoise noise = noises.get(parameters);
+		if (null == noise) {
+			noise = new CLPerlinNoise(context, device, queue, programCache, key.createNoise());
+			noises.put(parameters, noise);
+		}
+		noise.getRegion(key.getTileX() * tileSize, key.getTileY() * tileSize, 1.0f, 1.0f, tileSize, tileSize, out);
+	}
+
+	/**
+	 * Release the kernels of all noise parameters used so far.
+	 */
+	public synchronized void release() {
+		for (CLPerlinNoise noise : noises.values()) {
+			noise.release();
+		}
+		noises.clear();
+	}
+
+}
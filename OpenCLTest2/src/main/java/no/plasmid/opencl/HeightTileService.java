@@ -0,0 +1,444 @@
+package no.plasmid.opencl;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Heightmap regions assembled from cached tiles. A tile is tileSize x tileSize heights at integer
+ * coordinates, tile (tileX, tileY) starting at (tileX * tileSize, tileY * tileSize), stored row by row like
+ * the regions of {@link CLPerlinNoise}. Tiles are keyed by their position and the noise parameters.
+ *
+ * The tiles are kept in direct buffers from a {@link HostBufferPool}, at most maxTiles of them, and the
+ * least recently used tile is evicted first. Callers asking for the same missing tile at the same time
+ * wait for one computation. The service is safe to use from several threads.
+ */
+public class HeightTileService {
+
+	/**
+	 * Calculates the heights of a tile.
+	 */
+	public interface TileGenerator {
+
+		/**
+		 * @param key the tile.
+		 * @param tileSize the number of samples along each side.
+		 * @param out the heights are written from its position, row by row.
+		 */
+		void generate(TileKey key, int tileSize, FloatBuffer out);
+
+	}
+
+	/**
+	 * Tile position and noise parameters.
+	 */
+	public static final class TileKey {
+
+		private final int tileX;
+		private final int tileY;
+		private final float persistence;
+		private final float frequency;
+		private final float amplitude;
+		private final int octaves;
+		private final int randomseed;
+
+		public TileKey(int tileX, int tileY, float persistence, float frequency, float amplitude, int octaves,
+				int randomseed) {
+			this.tileX = tileX;
+			this.tileY = tileY;
+			this.persistence = persistence;
+			this.frequency = frequency;
+			this.amplitude = amplitude;
+			this.octaves = octaves;
+			this.randomseed = randomseed;
+		}
+
+		/**
+		 * @param tileX the tile column.
+		 * @param tileY the tile row.
+		 * @param noise the noise to take the parameters from.
+		 */
+		public TileKey(int tileX, int tileY, PerlinNoise noise) {
+			this(tileX, tileY, noise.persistence, noise.frequency, noise.amplitude, noise.octaves, noise.randomseed);
+		}
+
+		/**
+		 * @return the key of tile (0, 0) with the same parameters, to use as key for the parameters only.
+		 */
+		public TileKey getParameters() {
+			return new TileKey(0, 0, persistence, frequency, amplitude, octaves, randomseed);
+		}
+
+		/**
+		 * @return a noise with the parameters of the key.
+		 */
+		public PerlinNoise createNoise() {
+			return new PerlinNoise(persistence, frequency, amplitude, octaves, randomseed);
+		}
+
+		public int getTileX() {
+			return tileX;
+		}
+
+		public int getTileY() {
+			return tileY;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof TileKey)) {
+				return false;
+			}
+			TileKey other = (TileKey)obj;
+			return tileX == other.tileX && tileY == other.tileY
+					&& Float.floatToIntBits(persistence) == Float.floatToIntBits(other.persistence)
+					&& Float.floatToIntBits(frequency) == Float.floatToIntBits(other.frequency)
+					&& Float.floatToIntBits(amplitude) == Float.floatToIntBits(other.amplitude)
+					&& octaves == other.octaves && randomseed == other.randomseed;
+		}
+
+		@Override
+		public int hashCode() {
+			int rc = tileX;
+			rc = 31 * rc + tileY;
+			rc = 31 * rc + Float.floatToIntBits(persistence);
+			rc = 31 * rc + Float.floatToIntBits(frequency);
+			rc = 31 * rc + Float.floatToIntBits(amplitude);
+			rc = 31 * rc + octaves;
+			rc = 31 * rc + randomseed;
+			return rc;
+		}
+
+		@Override
+		public String toString() {
+			return "tile (" + tileX + ", " + tileY + ") persistence " + persistence + " frequency " + frequency
+					+ " amplitude " + amplitude + " octaves " + octaves + " seed " + randomseed;
+		}
+
+	}
+
+	/**
+	 * Generator calculating tiles with {@link BlockNoiseEvaluator} on the calling thread.
+	 */
+	public static final TileGenerator JVM_GENERATOR = new TileGenerator() {
+		@Override
+		public void generate(TileKey key, int tileSize, FloatBuffer out) {
+			BlockNoiseEvaluator.evaluate(key.createNoise(), key.getTileX() * tileSize, key.getTileY() * tileSize, 1.0f,
+					1.0f, tileSize, tileSize, out);
+		}
+	};
+
+	private final TileGenerator generator;
+	private final int tileSize;
+	private final int maxTiles;
+	private final HostBufferPool bufferPool = new HostBufferPool(Long.MAX_VALUE);
+
+	//Cached tiles in access order, guarded by itself. The cache holds one reference to each lease.
+	private final LinkedHashMap<TileKey, BufferLease<ByteBuffer>> tiles;
+	//Tiles being calculated, so callers asking for the same tile wait for the same computation
+	private final ConcurrentHashMap<TileKey, PendingTile> pending = new ConcurrentHashMap<TileKey, PendingTile>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * @param generator calculates missing tiles.
+	 * @param tileSize the number of samples along each side of a tile.
+	 * @param maxTiles the number of tiles to keep.
+	 */
+	public HeightTileService(TileGenerator generator, int tileSize, final int maxTiles) {
+		if (tileSize <= 0 || maxTiles <= 0) {
+			throw new IllegalArgumentException("Tile size and tile count must be positive, were " + tileSize + " and "
+					+ maxTiles);
+		}
+		this.generator = generator;
+		this.tileSize = tileSize;
+		this.maxTiles = maxTiles;
+		tiles = new LinkedHashMap<TileKey, BufferLease<ByteBuffer>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<TileKey, BufferLease<ByteBuffer>> eldest) {
+				if (size() <= maxTiles) {
+					return false;
+				}
+				//Readers copying from the tile hold their own reference
+				eldest.getValue().release();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Get the heights of a region, sample (x + i, y + j) is written to j * width + i from the position of out.
+	 * @param noise the noise parameters.
+	 * @param x the first x.
+	 * @param y the first y.
+	 * @param width the number of samples in x.
+	 * @param height the number of samples in y.
+	 * @param out the buffer for the heights, or null to allocate one.
+	 * @return the buffer with the heights, from the position of out.
+	 */
+	public FloatBuffer getRegion(PerlinNoise noise, int x, int y, int width, int height, FloatBuffer out) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Region size must be positive, was " + width + "x" + height);
+		}
+		long count = (long)width * height;
+		if (null == out) {
+			out = FloatBuffer.allocate((int)count);
+		} else if (out.remaining() < count) {
+			throw new IllegalArgumentException("Region has " + count + " samples, buffer has room for "
+					+ out.remaining());
+		}
+
+		int base = out.position();
+		for (int tileY = floorDiv(y, tileSize); tileY <= floorDiv(y + height - 1, tileSize); tileY++) {
+			for (int tileX = floorDiv(x, tileSize); tileX <= floorDiv(x + width - 1, tileSize); tileX++) {
+				BufferLease<ByteBuffer> lease = acquireTile(new TileKey(tileX, tileY, noise));
+				try {
+					FloatBuffer tile = lease.get().asFloatBuffer();
+					//Overlap of the tile and the region, in world coordinates
+					int startX = Math.max(x, tileX * tileSize);
+					int endX = Math.min(x + width, (tileX + 1) * tileSize);
+					int startY = Math.max(y, tileY * tileSize);
+					int endY = Math.min(y + height, (tileY + 1) * tileSize);
+					FloatBuffer target = out.duplicate();
+					for (int row = startY; row < endY; row++) {
+						int tileOffset = (row - tileY * tileSize) * tileSize + startX - tileX * tileSize;
+						tile.limit(tileOffset + endX - startX).position(tileOffset);
+						target.position(base + (row - y) * width + startX - x);
+						target.put(tile);
+					}
+				} finally {
+					lease.release();
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Get a tile from the cache, or calculate it.
+	 * @return the tile with a reference for the caller.
+	 */
+	private BufferLease<ByteBuffer> acquireTile(TileKey key) {
+		boolean first = true;
+		while (true) {
+			BufferLease<ByteBuffer> lease = lookupTile(key);
+			if (null != lease) {
+				if (first) {
+					hits.incrementAndGet();
+				}
+				return lease;
+			}
+
+			PendingTile tile = new PendingTile();
+			PendingTile running = pending.putIfAbsent(key, tile);
+			if (null == running) {
+				return generatePending(key, tile, first);
+			}
+			if (running.join()) {
+				if (first) {
+					coalesced.incrementAndGet();
+				}
+				try {
+					//The tile comes with a reference for this caller, even if it was evicted again right away
+					return running.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while waiting for " + key, e);
+				}
+			}
+			//The tile was finished before this caller could wait for it, so it is in the cache, or evicted
+			first = false;
+		}
+	}
+
+	/**
+	 * Calculate a tile as the owner of its pending entry, and hand it to the callers waiting for it.
+	 */
+	private BufferLease<ByteBuffer> generatePending(TileKey key, PendingTile tile, boolean first) {
+		BufferLease<ByteBuffer> lease;
+		try {
+			//Another caller may have inserted the tile between the lookup and taking the pending entry
+			lease = lookupTile(key);
+			if (null != lease) {
+				if (first) {
+					hits.incrementAndGet();
+				}
+			} else {
+				if (first) {
+					misses.incrementAndGet();
+				}
+				lease = generateTile(key);
+				insertTile(key, lease.retain());
+			}
+		} catch (RuntimeException e) {
+			pending.remove(key, tile);
+			tile.fail(e);
+			throw e;
+		}
+		//Removed before completing, so callers finding the entry either get the tile or find it in the cache
+		pending.remove(key, tile);
+		tile.complete(lease);
+		return lease;
+	}
+
+	/**
+	 * @return the cached tile with a reference for the caller, or null.
+	 */
+	private BufferLease<ByteBuffer> lookupTile(TileKey key) {
+		synchronized (tiles) {
+			BufferLease<ByteBuffer> lease = tiles.get(key);
+			return null != lease ? lease.retain() : null;
+		}
+	}
+
+	private BufferLease<ByteBuffer> generateTile(TileKey key) {
+		BufferLease<ByteBuffer> lease = bufferPool.acquire((long)tileSize * tileSize * 4);
+		try {
+			generator.generate(key, tileSize, lease.get().asFloatBuffer());
+		} catch (RuntimeException e) {
+			lease.release();
+			throw e;
+		}
+		return lease;
+	}
+
+	/**
+	 * A tile being calculated. The callers waiting for it are counted, and the tile is retained once for each
+	 * of them when it is done, so none of them has to look it up in the cache again.
+	 */
+	private static final class PendingTile {
+
+		private int waiters = 0;
+		private boolean done = false;
+		private BufferLease<ByteBuffer> lease = null;
+		private RuntimeException failure = null;
+
+		/**
+		 * @return true when the caller waits for the tile, false when the tile is already done.
+		 */
+		synchronized boolean join() {
+			if (done) {
+				return false;
+			}
+			waiters++;
+			return true;
+		}
+
+		synchronized void complete(BufferLease<ByteBuffer> tile) {
+			for (int i = 0; i < waiters; i++) {
+				tile.retain();
+			}
+			lease = tile;
+			done = true;
+			notifyAll();
+		}
+
+		synchronized void fail(RuntimeException e) {
+			failure = e;
+			done = true;
+			notifyAll();
+		}
+
+		/**
+		 * @return the tile with a reference for the caller, after {@link #join()}.
+		 */
+		synchronized BufferLease<ByteBuffer> await() throws InterruptedException {
+			try {
+				while (!done) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				//Give up the place, or the reference if the tile was done meanwhile
+				if (null != lease) {
+					lease.release();
+				} else {
+					waiters--;
+				}
+				throw e;
+			}
+			if (null != failure) {
+				throw new IllegalStateException("Could not generate tile", failure);
+			}
+			return lease;
+		}
+
+	}
+
+	private void insertTile(TileKey key, BufferLease<ByteBuffer> lease) {
+		BufferLease<ByteBuffer> replaced;
+		synchronized (tiles) {
+			replaced = tiles.put(key, lease);
+		}
+		if (null != replaced) {
+			replaced.release();
+		}
+	}
+
+	private static int floorDiv(int x, int y) {
+		int rc = x / y;
+		if ((x % y != 0) && ((x < 0) != (y < 0))) {
+			rc--;
+		}
+		return rc;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	public int getMaxTiles() {
+		return maxTiles;
+	}
+
+	/**
+	 * @return the number of tiles in the cache.
+	 */
+	public int getCachedTiles() {
+		synchronized (tiles) {
+			return tiles.size();
+		}
+	}
+
+	/**
+	 * @return the number of tile requests served from the cache.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of tiles calculated.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of tile requests that waited for a calculation started by another caller.
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Drop all cached tiles. Tiles still being copied are freed when the copy is done.
+	 */
+	public void clear() {
+		synchronized (tiles) {
+			for (Iterator<BufferLease<ByteBuffer>> it = tiles.values().iterator(); it.hasNext();) {
+				it.next().release();
+				it.remove();
+			}
+		}
+		bufferPool.trim(0);
+	}
+
+}
@@ -0,0 +1,202 @@
+package no.plasmid.opencl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Writes heightmaps larger than memory to files. The map is generated in bands of rows, and each band is
+ * copied into a memory mapped window of the file while the next band is generated. Only two bands are held
+ * in memory, and each window is forced to the file when the band is written.
+ *
+ * The file is headerless 32 bit floats in native byte order, so it can be mapped as is. With the RAW layout
+ * the samples are stored row by row, sample (i, j) at j * width + i. With the TILED layout the map is stored
+ * as tileSize x tileSize tiles, tile by tile and row by row within each tile, like the tiles of
+ * {@link HeightTileService}. Tile (tx, ty) starts at (ty * width / tileSize + tx) * tileSize * tileSize.
+ */
+public class HeightmapFileWriter {
+
+	/**
+	 * Order of the samples in the file.
+	 */
+	public enum Layout {
+		RAW,
+		TILED
+	}
+
+	/**
+	 * Calculates the heights of a band of rows of a map, row by row.
+	 */
+	public interface BandGenerator {
+
+		/**
+		 * Calculate rows firstRow to firstRow + rows - 1, row j of the band at y = originY + stepY * (firstRow + j).
+		 * @param originX x of the first sample of the map.
+		 * @param originY y of the first sample of the map.
+		 * @param stepX distance between samples in x.
+		 * @param stepY distance between samples in y.
+		 * @param width the number of samples in x.
+		 * @param firstRow the index of the first row of the band in the map.
+		 * @param rows the number of rows in the band.
+		 * @param out the heights are written from its position, row by row.
+		 */
+		void generate(float originX, float originY, float stepX, float stepY, int width, int firstRow, int rows,
+				FloatBuffer out);
+
+	}
+
+	/**
+	 * @param noise the noise.
+	 * @param generator the generator calculating the bands on all cores.
+	 * @return a band generator using the CPU.
+	 */
+	public static BandGenerator createGenerator(final PerlinNoise noise, final ParallelNoiseGenerator generator) {
+		return new BandGenerator() {
+			@Override
+			public void generate(float originX, float originY, float stepX, float stepY, int width, int firstRow,
+					int rows, FloatBuffer out) {
+				generator.generateRows(noise, originX, originY, stepX, stepY, width, firstRow, rows, out);
+			}
+		};
+	}
+
+	/**
+	 * @param noise the noise on the device, only used from the thread generating the bands.
+	 * @return a band generator using OpenCL.
+	 */
+	public static BandGenerator createGenerator(final CLPerlinNoise noise) {
+		return new BandGenerator() {
+			@Override
+			public void generate(float originX, float originY, float stepX, float stepY, int width, int firstRow,
+					int rows, FloatBuffer out) {
+				noise.getRows(originX, originY, stepX, stepY, width, firstRow, rows, out);
+			}
+		};
+	}
+
+	private final BandGenerator generator;
+	private final Layout layout;
+	private final int bandRows;
+
+	/**
+	 * @param generator calculates the bands.
+	 * @param layout the order of the samples in the file.
+	 * @param bandRows the number of rows per band, for the TILED layout this is the tile size.
+	 */
+	public HeightmapFileWriter(BandGenerator generator, Layout layout, int bandRows) {
+		if (bandRows <= 0) {
+			throw new IllegalArgumentException("Band rows must be positive, was " + bandRows);
+		}
+		this.generator = generator;
+		this.layout = layout;
+		this.bandRows = bandRows;
+	}
+
+	/**
+	 * Generate a width x height map at x = originX + stepX * i and y = originY + stepY * j, and write it to a
+	 * file. The heights are the same as when the whole map is calculated at once.
+	 * @param file the file, created or overwritten.
+	 * @param originX x of the first sample.
+	 * @param originY y of the first sample.
+	 * @param stepX distance between samples in x.
+	 * @param stepY distance between samples in y.
+	 * @param width the number of samples in x.
+	 * @param height the number of samples in y.
+	 * @throws IOException if the file could not be written.
+	 */
+	public void write(File file, final float originX, final float originY, final float stepX, final float stepY,
+			final int width, final int height) throws IOException {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Map size must be positive, was " + width + "x" + height);
+		}
+		if ((long)width * bandRows > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Band of " + bandRows + " rows of " + width + " samples is too large");
+		}
+		if (Layout.TILED == layout && (width % bandRows != 0 || height % bandRows != 0)) {
+			throw new IllegalArgumentException("Map size " + width + "x" + height + " is not a multiple of the tile size "
+					+ bandRows);
+		}
+
+		//Two bands, one being generated while the other is written
+		final FloatBuffer[] bands = new FloatBuffer[] {BufferUtils.createFloatBuffer(width * bandRows),
+				BufferUtils.createFloatBuffer(width * bandRows)};
+		int bandCount = (height + bandRows - 1) / bandRows;
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength((long)width * height * 4);
+			FileChannel channel = raf.getChannel();
+			Future<FloatBuffer> next = submitBand(executor, bands[0], 0, originX, originY, stepX, stepY, width, height);
+			for (int band = 0; band < bandCount; band++) {
+				FloatBuffer current = waitForBand(next, band);
+				if (band + 1 < bandCount) {
+					next = submitBand(executor, bands[(band + 1) % 2], band + 1, originX, originY, stepX, stepY, width,
+							height);
+				}
+				writeBand(channel, band, current, width, Math.min(bandRows, height - band * bandRows));
+			}
+		} finally {
+			executor.shutdownNow();
+			raf.close();
+		}
+	}
+
+	private Future<FloatBuffer> submitBand(ExecutorService executor, final FloatBuffer buffer, int band,
+			final float originX, final float originY, final float stepX, final float stepY, final int width, int height) {
+		final int firstRow = band * bandRows;
+		final int rows = Math.min(bandRows, height - firstRow);
+		return executor.submit(new Callable<FloatBuffer>() {
+			@Override
+			public FloatBuffer call() {
+				buffer.clear();
+				generator.generate(originX, originY, stepX, stepY, width, firstRow, rows, buffer);
+				buffer.limit(rows * width);
+				return buffer;
+			}
+		});
+	}
+
+	private static FloatBuffer waitForBand(Future<FloatBuffer> future, int band) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for band " + band, e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not generate band " + band, e.getCause());
+		}
+	}
+
+	private void writeBand(FileChannel channel, int band, FloatBuffer heights, int width, int rows) throws IOException {
+		//In both layouts a band is one contiguous part of the file
+		long position = (long)band * bandRows * width * 4;
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, position, (long)rows * width * 4);
+		FloatBuffer target = mapped.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		if (Layout.RAW == layout) {
+			target.put(heights);
+		} else {
+			//One row of tiles, tile by tile
+			int tileSize = bandRows;
+			for (int tileX = 0; tileX < width / tileSize; tileX++) {
+				for (int row = 0; row < tileSize; row++) {
+					int start = row * width + tileX * tileSize;
+					heights.limit(start + tileSize).position(start);
+					target.put(heights);
+				}
+			}
+		}
+		mapped.force();
+	}
+
+}
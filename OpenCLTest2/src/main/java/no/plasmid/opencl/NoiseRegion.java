@@ -0,0 +1,85 @@
+package no.plasmid.opencl;
+
+/**
+ * A noise parameter set and the region to evaluate it for, one entry of a batch. The region is
+ * width x height samples at x = originX + stepX * i and y = originY + stepY * j, stored row by row at
+ * j * width + i. In a batch the regions are packed one after the other, in the order of the batch.
+ */
+public final class NoiseRegion {
+
+	private final PerlinNoise noise;
+	private final float originX;
+	private final float originY;
+	private final float stepX;
+	private final float stepY;
+	private final int width;
+	private final int height;
+
+	/**
+	 * @param noise the noise parameters.
+	 * @param originX x of the first sample.
+	 * @param originY y of the first sample.
+	 * @param stepX distance between samples in x.
+	 * @param stepY distance between samples in y.
+	 * @param width the number of samples in x.
+	 * @param height the number of samples in y.
+	 */
+	public NoiseRegion(PerlinNoise noise, float originX, float originY, float stepX, float stepY, int width,
+			int height) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Region size must be positive, was " + width + "x" + height);
+		}
+		this.noise = noise;
+		this.originX = originX;
+		this.originY = originY;
+		this.stepX = stepX;
+		this.stepY = stepY;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * @param regions the regions of a batch.
+	 * @return the number of samples of all regions together.
+	 */
+	public static long getSampleCount(NoiseRegion... regions) {
+		long rc = 0;
+		for (NoiseRegion region : regions) {
+			rc += region.getSampleCount();
+		}
+		return rc;
+	}
+
+	public long getSampleCount() {
+		return (long)width * height;
+	}
+
+	public PerlinNoise getNoise() {
+		return noise;
+	}
+
+	public float getOriginX() {
+		return originX;
+	}
+
+	public float getOriginY() {
+		return originY;
+	}
+
+	public float getStepX() {
+		return stepX;
+	}
+
+	public float getStepY() {
+		return stepY;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+}
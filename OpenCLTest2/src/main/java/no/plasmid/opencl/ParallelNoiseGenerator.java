@@ -0,0 +1,199 @@
+package no.plasmid.opencl;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * CPU counterpart of {@link CLPerlinNoise}, calculating regions of a {@link PerlinNoise} on all cores. The
+ * rows of a region are split in bands across the workers of a ForkJoinPool, and each band is calculated with
+ * {@link BlockNoiseEvaluator}, so the heights are the same as getHeight. Bands write straight into array
+ * outputs. For direct buffers, each band is bulk copied into the buffer once it is done.
+ *
+ * The layout is the same as the regions of {@link CLPerlinNoise}: width x height samples at
+ * x = originX + stepX * i and y = originY + stepY * j, stored row by row at j * width + i.
+ */
+public class ParallelNoiseGenerator {
+
+	//Fewest rows per band, so the lattice of a band is shared by enough samples
+	private static final int MIN_BAND_ROWS = 16;
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Create a generator using all available processors.
+	 */
+	public ParallelNoiseGenerator() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param parallelism the number of worker threads.
+	 */
+	public ParallelNoiseGenerator(int parallelism) {
+		pool = new ForkJoinPool(parallelism);
+	}
+
+	/**
+	 * Calculate the heights of a region into an array.
+	 * @param noise the noise.
+	 * @param originX x of the first sample.
+	 * @param originY y of the first sample.
+	 * @param stepX distance between samples in x.
+	 * @param stepY distance between samples in y.
+	 * @param width the number of samples in x.
+	 * @param height the number of samples in y.
+	 * @param out the array for the heights.
+	 * @param offset index of the first height in out.
+	 */
+	public void generate(PerlinNoise noise, float originX, float originY, float stepX, float stepY, int width,
+			int height, float[] out, int offset) {
+		checkRegion(width, height, out.length - (long)offset);
+		if (offset < 0) {
+			throw new IllegalArgumentException("Offset must not be negative, was " + offset);
+		}
+		pool.invoke(new BandTask(noise, originX, originY, stepX, stepY, width, 0, 0, height, bandRows(height), out,
+				offset, null));
+	}
+
+	/**
+	 * Calculate the heights of a region into a buffer. The heights are written from the position of out, and
+	 * the position is not changed.
+	 * @param noise the noise.
+	 * @param originX x of the first sample.
+	 * @param originY y of the first sample.
+	 * @param stepX distance between samples in x.
+	 * @param stepY distance between samples in y.
+	 * @param width the number of samples in x.
+	 * @param height the number of samples in y.
+	 * @param out the buffer for the heights, heap or direct.
+	 */
+	public void generate(PerlinNoise noise, float originX, float originY, float stepX, float stepY, int width,
+			int height, FloatBuffer out) {
+		//Checked against the buffer, the backing array may go on past its limit
+		checkRegion(width, height, out.remaining());
+		if (out.hasArray()) {
+			generate(noise, originX, originY, stepX, stepY, width, height, out.array(),
+					out.arrayOffset() + out.position());
+			return;
+		}
+		pool.invoke(new BandTask(noise, originX, originY, stepX, stepY, width, 0, 0, height, bandRows(height), null, 0,
+				out));
+	}
+
+	/**
+	 * Calculate rows firstRow to firstRow + rows - 1 of a region into a buffer, for calculating a region in
+	 * bands. Row j is at y = originY + stepY * (firstRow + j), like in the whole region, so the bands have the
+	 * same heights as the whole region. The heights are written from the position of out, and the position
+	 * is not changed.
+	 * @param noise the noise.
+	 * @param originX x of the first sample of the region.
+	 * @param originY y of the first sample of the region.
+	 * @param stepX distance between samples in x.
+	 * @param stepY distance between samples in y.
+	 * @param width the number of samples in x.
+	 * @param firstRow the index of the first row of the band in the region.
+	 * @param rows the number of rows in the band.
+	 * @param out the buffer for the heights, heap or direct.
+	 */
+	public void generateRows(PerlinNoise noise, float originX, float originY, float stepX, float stepY, int width,
+			int firstRow, int rows, FloatBuffer out) {
+		checkRegion(width, rows, out.remaining());
+		if (out.hasArray()) {
+			pool.invoke(new BandTask(noise, originX, originY, stepX, stepY, width, firstRow, 0, rows, bandRows(rows),
+					out.array(), out.arrayOffset() + out.position(), null));
+		} else {
+			pool.invoke(new BandTask(noise, originX, originY, stepX, stepY, width, firstRow, 0, rows, bandRows(rows),
+					null, 0, out));
+		}
+	}
+
+	private static void checkRegion(int width, int height, long room) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Region size must be positive, was " + width + "x" + height);
+		}
+		if (room < (long)width * height) {
+			throw new IllegalArgumentException("Region has " + (long)width * height + " samples, output has room for "
+					+ room);
+		}
+	}
+
+	//A few bands per worker, so workers finishing early can steal
+	private int bandRows(int height) {
+		return Math.max(MIN_BAND_ROWS, height / (pool.getParallelism() * 4));
+	}
+
+	/**
+	 * Stop the worker threads.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private static class BandTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final PerlinNoise noise;
+		private final float originX;
+		private final float originY;
+		private final float stepX;
+		private final float stepY;
+		private final int width;
+		//Row of the region where row 0 of the output is
+		private final int firstRow;
+		private final int startRow;
+		private final int endRow;
+		private final int bandRows;
+		//Either an array with the offset of row 0, or a buffer
+		private final float[] array;
+		private final int offset;
+		private final FloatBuffer buffer;
+
+		BandTask(PerlinNoise noise, float originX, float originY, float stepX, float stepY, int width, int firstRow,
+				int startRow, int endRow, int bandRows, float[] array, int offset, FloatBuffer buffer) {
+			this.noise = noise;
+			this.originX = originX;
+			this.originY = originY;
+			this.stepX = stepX;
+			this.stepY = stepY;
+			this.width = width;
+			this.firstRow = firstRow;
+			this.startRow = startRow;
+			this.endRow = endRow;
+			this.bandRows = bandRows;
+			this.array = array;
+			this.offset = offset;
+			this.buffer = buffer;
+		}
+
+		@Override
+		protected void compute() {
+			if (endRow - startRow > bandRows) {
+				int middle = (startRow + endRow) >>> 1;
+				invokeAll(new BandTask(noise, originX, originY, stepX, stepY, width, firstRow, startRow, middle, bandRows,
+						array, offset, buffer),
+						new BandTask(noise, originX, originY, stepX, stepY, width, firstRow, middle, endRow, bandRows,
+								array, offset, buffer));
+				return;
+			}
+
+			//The same y as in the whole region, originY + stepY * (firstRow + startRow + j)
+			int rows = endRow - startRow;
+			if (null != array) {
+				BlockNoiseEvaluator.evaluate(noise, originX, originY, stepX, stepY, width, rows, firstRow + startRow,
+						array, offset + startRow * width);
+			} else {
+				float[] band = new float[rows * width];
+				BlockNoiseEvaluator.evaluate(noise, originX, originY, stepX, stepY, width, rows, firstRow + startRow,
+						band, 0);
+				//Own view, the position of the shared buffer is not touched
+				FloatBuffer view = buffer.duplicate();
+				view.position(buffer.position() + startRow * width);
+				view.put(band);
+			}
+		}
+
+	}
+
+}
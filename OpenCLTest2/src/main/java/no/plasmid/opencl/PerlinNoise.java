@@ -31,6 +31,25 @@ public class PerlinNoise {
 		return amplitude * total(x, y);
 	}
 	
+	/**
+	 * Calculate the heights of a batch of regions, each with its own noise parameters. The regions are packed
+	 * in out one after the other, each row by row, and each height is the same as getHeight.
+	 * @param regions the regions.
+	 * @param out the array for the heights, at least as long as all regions together.
+	 */
+	public static void getHeights(NoiseRegion[] regions, float[] out) {
+		long count = NoiseRegion.getSampleCount(regions);
+		if (out.length < count) {
+			throw new IllegalArgumentException("Batch has " + count + " samples, array has room for " + out.length);
+		}
+		int offset = 0;
+		for (NoiseRegion region : regions) {
+			BlockNoiseEvaluator.evaluate(region.getNoise(), region.getOriginX(), region.getOriginY(),
+					region.getStepX(), region.getStepY(), region.getWidth(), region.getHeight(), out, offset);
+			offset += region.getWidth() * region.getHeight();
+		}
+	}
+	
 	private float total(float x, float y)
 	{
 		//properties of one octave (changing each loop)
@@ -47,7 +66,7 @@ public class PerlinNoise {
 		return t;
 	}
 	
-	private float genValue(float x, float y) {
+	static float genValue(float x, float y) {
 		int Xint = (int)x;
 		int Yint = (int)y;
 		float Xfrac = x - Xint;
@@ -88,7 +107,7 @@ public class PerlinNoise {
 		return fin;
 	}
 
-	private float interpolate(float x, float y, float a) {
+	static float interpolate(float x, float y, float a) {
 		float negA = 1.0f - a;
 		float negASqr = negA * negA;
 		float fac1 = 3.0f * (negASqr) - 2.0f * (negASqr * negA);
@@ -98,7 +117,7 @@ public class PerlinNoise {
 		return x * fac1 + y * fac2; //add the weighted factors
 	}
 
-	private float noise(int x, int y) {
+	static float noise(int x, int y) {
 		int n = x + y * 57;
 		n = (n << 13) ^ n;
 		int t = (n * (n * n * 15731 + 789221) + 1376312589) & 0x7fffffff;
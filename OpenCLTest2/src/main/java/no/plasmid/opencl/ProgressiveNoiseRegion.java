@@ -0,0 +1,124 @@
+package no.plasmid.opencl;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A region of a {@link PerlinNoise} refined an octave at a time. The first octaves give a coarse map early,
+ * and further octaves are added to the same sum on request, without calculating the earlier octaves again.
+ * Once all octaves of the noise are added, the heights are the same as getHeight.
+ *
+ * The region is width x height samples at x = originX + stepX * i and y = originY + stepY * j, stored row
+ * by row at j * width + i. The device counterpart is {@link CLPerlinNoise#enqueueOctaves}.
+ */
+public class ProgressiveNoiseRegion {
+
+	private final PerlinNoise noise;
+	private final int width;
+	private final int height;
+	private final BlockNoiseEvaluator.Accumulator accumulator;
+	//Sum of the octaves so far, without the amplitude
+	private final float[] sum;
+
+	/**
+	 * Create a region without any octaves.
+	 * @param noise the noise.
+	 * @param originX x of the first sample.
+	 * @param originY y of the first sample.
+	 * @param stepX distance between samples in x.
+	 * @param stepY distance between samples in y.
+	 * @param width the number of samples in x.
+	 * @param height the number of samples in y.
+	 */
+	public ProgressiveNoiseRegion(PerlinNoise noise, float originX, float originY, float stepX, float stepY,
+			int width, int height) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Region size must be positive, was " + width + "x" + height);
+		}
+		this.noise = noise;
+		this.width = width;
+		this.height = height;
+		accumulator = new BlockNoiseEvaluator.Accumulator(noise, originX, originY, stepX, stepY, width, height, 0);
+		sum = new float[width * height];
+	}
+
+	/**
+	 * Add the next octaves, up to the octaves of the noise.
+	 * @param count the number of octaves to add.
+	 * @return the number of octaves in the heights now.
+	 */
+	public int refine(int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Octave count must not be negative, was " + count);
+		}
+		accumulator.addOctaves(count, sum, 0);
+		return accumulator.getOctave();
+	}
+
+	/**
+	 * Add the remaining octaves.
+	 */
+	public void complete() {
+		refine(noise.octaves);
+	}
+
+	/**
+	 * @return the number of octaves in the heights.
+	 */
+	public int getOctaves() {
+		return accumulator.getOctave();
+	}
+
+	/**
+	 * @return true when all octaves of the noise are added.
+	 */
+	public boolean isComplete() {
+		return accumulator.getOctave() >= noise.octaves;
+	}
+
+	/**
+	 * Get the heights with the octaves so far.
+	 * @param out the array for the heights.
+	 * @param offset index of the first height in out.
+	 */
+	public void getHeights(float[] out, int offset) {
+		if (offset < 0 || out.length - offset < sum.length) {
+			throw new IllegalArgumentException("Region has " + sum.length + " samples, array has room for "
+					+ (out.length - offset) + " from " + offset);
+		}
+		for (int s = 0; s < sum.length; s++) {
+			out[offset + s] = noise.amplitude * sum[s];
+		}
+	}
+
+	/**
+	 * Get the heights with the octaves so far. The heights are written from the position of out, and the
+	 * position is not changed.
+	 * @param out the buffer for the heights.
+	 */
+	public void getHeights(FloatBuffer out) {
+		if (out.remaining() < sum.length) {
+			throw new IllegalArgumentException("Region has " + sum.length + " samples, buffer has room for "
+					+ out.remaining());
+		}
+		if (out.hasArray()) {
+			getHeights(out.array(), out.arrayOffset() + out.position());
+			return;
+		}
+		float[] heights = new float[sum.length];
+		getHeights(heights, 0);
+		out.duplicate().put(heights);
+	}
+
+	public PerlinNoise getNoise() {
+		return noise;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+}
@@ -80,3 +80,303 @@ kernel void getheight(const float persistence,
 	
 	answer[xid] = amplitude * t;
 }
+
+/*
+* Heights of a width x height region, launched as a 2D range. The coordinates come from the global ids,
+* x = originX + stepX * id0 and y = originY + stepY * (firstRow + id1), and the result is stored row by row.
+* firstRow is 0 for a whole region, and the index of the first row when a region is calculated in bands.
+*/
+kernel void getheight2d(const float persistence,
+			const float frequency,
+			const float amplitude,
+			const int octaves,
+			const int randomSeed,
+			const float originX,
+			const float originY,
+			const float stepX,
+			const float stepY,
+			const int width,
+			const int height,
+			global float* answer,
+			const int firstRow) {
+	
+	int xid = get_global_id(0);
+	int yid = get_global_id(1);
+	if (xid >= width || yid >= height) {
+		return;
+	}
+	float x = originX + stepX * xid;
+	float y = originY + stepY * (firstRow + yid);
+	
+	float t = 0.0f;
+	float amp = 1;
+	float freq = frequency;
+	
+	for(int k = 0; k < octaves; k++)  {
+		t += genValue(y * freq + randomSeed, x * freq + randomSeed) * amp;
+		amp *= persistence;
+		freq *= 2;
+	}
+	
+	answer[yid * width + xid] = amplitude * t;
+}
+
+/*
+* The functions below do the same float operations in the same order as PerlinNoise.java, so the heights
+* are bit for bit the same as PerlinNoise.getHeight. The functions above round differently, since they
+* calculate with double literals.
+*/
+#pragma OPENCL FP_CONTRACT OFF
+
+float lattice_noise(int x, int y) {
+	//Unsigned, to wrap around like Java ints
+	uint n = (uint)x + (uint)y * 57u;
+	n = (n << 13) ^ n;
+	int t = (int)((n * (n * n * 15731u + 789221u) + 1376312589u) & 0x7fffffffu);
+	//1.0 - t / 2^30 is exact in double, so only the rounding to float remains
+	return (float)(1073741824 - t) * 9.31322574615478515625e-10f;
+}
+
+float lattice_interpolate(float x, float y, float a) {
+	float negA = 1.0f - a;
+	float negASqr = negA * negA;
+	float fac1 = 3.0f * (negASqr) - 2.0f * (negASqr * negA);
+	float aSqr = a * a;
+	float fac2 = 3.0f * aSqr - 2.0f * (aSqr * a);
+
+	return x * fac1 + y * fac2;
+}
+
+float lattice_value(float x, float y) {
+	int Xint = (int)x;
+	int Yint = (int)y;
+	float Xfrac = x - Xint;
+	float Yfrac = y - Yint;
+
+	float n01 = lattice_noise(Xint-1, Yint-1);
+	float n02 = lattice_noise(Xint+1, Yint-1);
+	float n03 = lattice_noise(Xint-1, Yint+1);
+	float n04 = lattice_noise(Xint+1, Yint+1);
+	float n05 = lattice_noise(Xint-1, Yint);
+	float n06 = lattice_noise(Xint+1, Yint);
+	float n07 = lattice_noise(Xint, Yint-1);
+	float n08 = lattice_noise(Xint, Yint+1);
+	float n09 = lattice_noise(Xint, Yint);
+
+	float n12 = lattice_noise(Xint+2, Yint-1);
+	float n14 = lattice_noise(Xint+2, Yint+1);
+	float n16 = lattice_noise(Xint+2, Yint);
+
+	float n23 = lattice_noise(Xint-1, Yint+2);
+	float n24 = lattice_noise(Xint+1, Yint+2);
+	float n28 = lattice_noise(Xint, Yint+2);
+
+	float n34 = lattice_noise(Xint+2, Yint+2);
+
+	float x0y0 = 0.0625f*(n01+n02+n03+n04) + 0.125f*(n05+n06+n07+n08) + 0.25f*(n09);
+	float x1y0 = 0.0625f*(n07+n12+n08+n14) + 0.125f*(n09+n16+n02+n04) + 0.25f*(n06);
+	float x0y1 = 0.0625f*(n05+n06+n23+n24) + 0.125f*(n03+n04+n09+n28) + 0.25f*(n08);
+	float x1y1 = 0.0625f*(n09+n16+n28+n34) + 0.125f*(n08+n14+n06+n24) + 0.25f*(n04);
+
+	float v1 = lattice_interpolate(x0y0, x1y0, Xfrac);
+	float v2 = lattice_interpolate(x0y1, x1y1, Xfrac);
+	return lattice_interpolate(v1, v2, Yfrac);
+}
+
+/*
+* Heights of a width x height region like getheight2d, launched as a 2D range of 2D groups. For each octave
+* the group hashes the lattice under its samples into local memory once, smooths every lattice point once,
+* and interpolates its samples from the smoothed lattice. When the lattice does not fit in latticeCapacity
+* floats of local memory, the samples are calculated one by one. The global size may be padded up to whole
+* groups, the padding items only help filling the lattice. firstRow is used like in getheight2d.
+*/
+kernel void getheight_block(const float persistence,
+			const float frequency,
+			const float amplitude,
+			const int octaves,
+			const int randomSeed,
+			const float originX,
+			const float originY,
+			const float stepX,
+			const float stepY,
+			const int width,
+			const int height,
+			global float* answer,
+			local float* lattice,
+			const int latticeCapacity,
+			const int firstRow) {
+	
+	int xid = get_global_id(0);
+	int yid = get_global_id(1);
+	int lid = get_local_id(1) * get_local_size(0) + get_local_id(0);
+	int groupSize = get_local_size(0) * get_local_size(1);
+	
+	//First and last sample of the group inside the region
+	int firstX = get_group_id(0) * get_local_size(0);
+	int firstY = get_group_id(1) * get_local_size(1);
+	int lastX = min(firstX + (int)get_local_size(0), width) - 1;
+	int lastY = min(firstY + (int)get_local_size(1), height) - 1;
+	
+	float x = originX + stepX * min(xid, lastX);
+	float y = originY + stepY * (firstRow + min(yid, lastY));
+	float x0 = originX + stepX * firstX;
+	float x1 = originX + stepX * lastX;
+	float y0 = originY + stepY * (firstRow + firstY);
+	float y1 = originY + stepY * (firstRow + lastY);
+	
+	float t = 0.0f;
+	float amp = 1;
+	float freq = frequency;
+	
+	for(int k = 0; k < octaves; k++)  {
+		//Like genValue(y * freq + randomSeed, x * freq + randomSeed), a is the first lattice coordinate
+		float a = y * freq + randomSeed;
+		float b = x * freq + randomSeed;
+		//The lattice coordinates are monotonic in the ids, so the ends of the group give the range
+		int a0 = (int)(y0 * freq + randomSeed);
+		int a1 = (int)(y1 * freq + randomSeed);
+		int b0 = (int)(x0 * freq + randomSeed);
+		int b1 = (int)(x1 * freq + randomSeed);
+		int aMin = min(a0, a1);
+		int bMin = min(b0, b1);
+		//Smoothed points from min to max + 1, hashed points from min - 1 to max + 2
+		int na = max(a0, a1) - aMin + 2;
+		int nb = max(b0, b1) - bMin + 2;
+		
+		float fin;
+		if (na <= latticeCapacity && nb <= latticeCapacity
+				&& (na + 2) * (nb + 2) + na * nb <= latticeCapacity) {
+			int hb = nb + 2;
+			int hashedSize = (na + 2) * hb;
+			local float* smoothed = lattice + hashedSize;
+			for (int p = lid; p < hashedSize; p += groupSize) {
+				lattice[p] = lattice_noise(aMin - 1 + p / hb, bMin - 1 + p % hb);
+			}
+			barrier(CLK_LOCAL_MEM_FENCE);
+			for (int p = lid; p < na * nb; p += groupSize) {
+				int c = (p / nb + 1) * hb + p % nb + 1;
+				smoothed[p] = 0.0625f*(lattice[c - hb - 1] + lattice[c + hb - 1] + lattice[c - hb + 1] + lattice[c + hb + 1])
+						+ 0.125f*(lattice[c - hb] + lattice[c + hb] + lattice[c - 1] + lattice[c + 1]) + 0.25f*(lattice[c]);
+			}
+			barrier(CLK_LOCAL_MEM_FENCE);
+			
+			int aInt = (int)a;
+			int bInt = (int)b;
+			int base = (aInt - aMin) * nb + bInt - bMin;
+			float v1 = lattice_interpolate(smoothed[base], smoothed[base + nb], a - aInt);
+			float v2 = lattice_interpolate(smoothed[base + 1], smoothed[base + nb + 1], a - aInt);
+			fin = lattice_interpolate(v1, v2, b - bInt);
+			//The next octave overwrites the lattice
+			barrier(CLK_LOCAL_MEM_FENCE);
+		} else {
+			fin = lattice_value(a, b);
+		}
+		t += fin * amp;
+		amp *= persistence;
+		freq *= 2;
+	}
+	
+	if (xid < width && yid < height) {
+		answer[yid * width + xid] = amplitude * t;
+	}
+}
+
+/*
+* Heights of a batch of regions, each with its own noise parameters, launched as a 1D range over the samples
+* of all regions. Region r has the floats persistence, frequency, amplitude, originX, originY, stepX and stepY
+* at floatParams[7 * r], and the ints octaves, randomSeed, width, height and the index of its first sample
+* at intParams[5 * r]. The regions are packed in answer one after the other, each row by row.
+*/
+kernel void getheight_batch(global const float* floatParams,
+			global const int* intParams,
+			const int regions,
+			const int total,
+			global float* answer) {
+	
+	int gid = get_global_id(0);
+	if (gid >= total) {
+		return;
+	}
+	//The last region starting at or before the sample
+	int low = 0;
+	int high = regions - 1;
+	while (low < high) {
+		int middle = (low + high + 1) >> 1;
+		if (intParams[5 * middle + 4] <= gid) {
+			low = middle;
+		} else {
+			high = middle - 1;
+		}
+	}
+	global const float* f = floatParams + 7 * low;
+	global const int* n = intParams + 5 * low;
+	
+	int sample = gid - n[4];
+	int xid = sample % n[2];
+	int yid = sample / n[2];
+	float x = f[3] + f[5] * xid;
+	float y = f[4] + f[6] * yid;
+	
+	float persistence = f[0];
+	int randomSeed = n[1];
+	float t = 0.0f;
+	float amp = 1;
+	float freq = f[1];
+	
+	for(int k = 0; k < n[0]; k++)  {
+		t += lattice_value(y * freq + randomSeed, x * freq + randomSeed) * amp;
+		amp *= persistence;
+		freq *= 2;
+	}
+	
+	answer[gid] = f[2] * t;
+}
+
+/*
+* Octaves firstOctave to lastOctave - 1 of a region like getheight2d, for refining a region progressively.
+* accumulation holds the sum of the earlier octaves without the amplitude and is updated, answer gets the
+* heights with the octaves so far. With firstOctave 0 the sum is started over. Octaves past the octaves of
+* the noise are not added, and refining in several steps gives the same heights as all octaves at once.
+*/
+kernel void getheight_octaves(const float persistence,
+			const float frequency,
+			const float amplitude,
+			const int octaves,
+			const int randomSeed,
+			const float originX,
+			const float originY,
+			const float stepX,
+			const float stepY,
+			const int width,
+			const int height,
+			global float* answer,
+			global float* accumulation,
+			const int firstOctave,
+			const int lastOctave) {
+	
+	int xid = get_global_id(0);
+	int yid = get_global_id(1);
+	if (xid >= width || yid >= height) {
+		return;
+	}
+	int index = yid * width + xid;
+	float x = originX + stepX * xid;
+	float y = originY + stepY * yid;
+	
+	float t = 0 == firstOctave ? 0.0f : accumulation[index];
+	float amp = 1;
+	float freq = frequency;
+	
+	//The amplitude and frequency of the earlier octaves are repeated, to round like all octaves at once
+	int last = min(lastOctave, octaves);
+	for(int k = 0; k < last; k++)  {
+		if (k >= firstOctave) {
+			t += lattice_value(y * freq + randomSeed, x * freq + randomSeed) * amp;
+		}
+		amp *= persistence;
+		freq *= 2;
+	}
+	
+	accumulation[index] = t;
+	answer[index] = amplitude * t;
+}
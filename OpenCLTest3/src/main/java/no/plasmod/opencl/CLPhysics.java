@@ -10,13 +10,14 @@ import org.lwjgl.opencl.CL10;
 import org.lwjgl.opencl.CLKernel;
 import org.lwjgl.opencl.CLMem;
 import org.lwjgl.opencl.CLProgram;
-import org.lwjgl.opencl.OpenCLException;
-import org.lwjgl.opencl.Util;
 
 import no.plasmid.opencl.AbstractCLController;
+import no.plasmid.opencl.CLProfiler;
 
 public class CLPhysics extends AbstractCLController {
 
+	private static final String KERNEL_NAME = "physics";
+	
 	private CLProgram physicsProgram;
 	private CLKernel physicsKernel;
 	
@@ -38,17 +39,9 @@ public class CLPhysics extends AbstractCLController {
 		
 		//Initialize the program
 		String source = loadTextFile("/cl/physics.cl");
-		physicsProgram = CL10.clCreateProgramWithSource(context, source, errorCodeBuffer);
-		checkErrorCodeBuffer(errorCodeBuffer);
-		try {
-			Util.checkCLError(CL10.clBuildProgram(physicsProgram, deviceList.get(0), "", null));
-		} catch (OpenCLException e) {
-			//Check compilation error
-			System.err.println(physicsProgram.getBuildInfoString(
-					deviceList.get(0), CL10.CL_PROGRAM_BUILD_LOG));
-		}
+		physicsProgram = buildProgram(source, "");
 		//Sum has to match a kernel method name in the OpenCL source
-		physicsKernel = CL10.clCreateKernel(physicsProgram, "physics", errorCodeBuffer);
+		physicsKernel = CL10.clCreateKernel(physicsProgram, KERNEL_NAME, errorCodeBuffer);
 		checkErrorCodeBuffer(errorCodeBuffer);
 		System.out.println("OpenCL program ready");		
 		
@@ -88,8 +81,10 @@ public class CLPhysics extends AbstractCLController {
 	public void doPhysics(int particleCount, long deltaTime) {
 		currentPosBuffer.rewind();
 		currentVelBuffer.rewind();
-		CL10.clEnqueueWriteBuffer(commandQueue, currentPosMem, CL10.CL_TRUE, 0, currentPosBuffer, null, null);
-		CL10.clEnqueueWriteBuffer(commandQueue, currentVelMem, CL10.CL_TRUE, 0, currentVelBuffer, null, null);
+		CL10.clEnqueueWriteBuffer(commandQueue, currentPosMem, CL10.CL_TRUE, 0, currentPosBuffer, null, profiler.event());
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.UPLOAD);
+		CL10.clEnqueueWriteBuffer(commandQueue, currentVelMem, CL10.CL_TRUE, 0, currentVelBuffer, null, profiler.event());
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.UPLOAD);
 		CL10.clFinish(commandQueue);
 		
 		currentPosBuffer.rewind();
@@ -108,19 +103,23 @@ public class CLPhysics extends AbstractCLController {
 		//Perform calculation
 		PointerBuffer kernel1DGlobalWorkSize = BufferUtils.createPointerBuffer(1);
 		kernel1DGlobalWorkSize.put(0, Math.max(particleCount, 1));
-		CL10.clEnqueueNDRangeKernel(commandQueue, physicsKernel, 1, null, kernel1DGlobalWorkSize, null, null, null);
+		CL10.clEnqueueNDRangeKernel(commandQueue, physicsKernel, 1, null, kernel1DGlobalWorkSize, null, null, profiler.event());
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.KERNEL);
 		CL10.clFinish(commandQueue);
 		checkErrorCodeBuffer(errorCodeBuffer);
 		
 		currentPosBuffer.rewind();
 		currentVelBuffer.rewind();
 		//Download results
-		CL10.clEnqueueReadBuffer(commandQueue, nextPosMem, CL10.CL_TRUE, 0, currentPosBuffer, null, null);
-		CL10.clEnqueueReadBuffer(commandQueue, nextVelMem, CL10.CL_TRUE, 0, currentVelBuffer, null, null);
+		CL10.clEnqueueReadBuffer(commandQueue, nextPosMem, CL10.CL_TRUE, 0, currentPosBuffer, null, profiler.event());
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.READBACK);
+		CL10.clEnqueueReadBuffer(commandQueue, nextVelMem, CL10.CL_TRUE, 0, currentVelBuffer, null, profiler.event());
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.READBACK);
 		CL10.clFinish(commandQueue);
 		checkErrorCodeBuffer(errorCodeBuffer);
 		currentPosBuffer.rewind();
 		currentVelBuffer.rewind();
+		profiler.collect();
 	}
 	
 	public void cleanupCLPhysics() {
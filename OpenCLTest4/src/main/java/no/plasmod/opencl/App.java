@@ -1,8 +1,10 @@
 package no.plasmod.opencl;
 
 import java.io.FileNotFoundException;
+import java.util.Arrays;
 
 import org.lwjgl.LWJGLException;
+import org.lwjgl.input.Keyboard;
 import org.lwjgl.opengl.Display;
 import org.lwjgl.opengl.DisplayMode;
 import org.lwjgl.opengl.PixelFormat;
@@ -12,23 +14,40 @@ import no.plasmid.opencl.AbstractLWJGLApp;
 public class App extends AbstractLWJGLApp {
 
 	private static boolean useOpenCL = true;
+	//Keep the simulation state on the device, and only download positions for rendering
+	private static boolean deviceResident = true;
+	//Only test collisions between particles in neighbouring grid cells
+	private static boolean useGrid = true;
+	//Stage positions in local memory when running all pairs on the device
+	private static boolean useTiled = true;
+	//Gravity solver for the CPU physics, press B to switch while running
+	private static NormalPhysics.GravitySolver gravitySolver = NormalPhysics.GravitySolver.BARNES_HUT;
+	//Run the CPU physics on all cores
+	private static boolean parallelCPU = true;
 	
 	private static int particleCount = 4000;
 	
 	private static int boxWidth = 1800;
 	private static int boxHeight = 1000;
 	
-	private Particle[] particles;
+	private ParticleStore particles;
 	
 	private static CLPhysics clPhysics;
 	private static NormalPhysics normalPhysics;
 	
 	public static void main(String[] args) throws LWJGLException, FileNotFoundException {
+		if (args.length > 0 && "--headless".equals(args[0])) {
+			//Benchmark without a window, see HeadlessRunner for the arguments
+			HeadlessRunner.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
 		App app = new App();
   	app.loadNatives(SupportedPlatform.getPlatformForOS());
 
   	clPhysics = new CLPhysics();
-  	normalPhysics = new NormalPhysics();
+  	normalPhysics = parallelCPU ? new ParallelPhysics() : new NormalPhysics();
+  	normalPhysics.setUseGrid(useGrid);
+  	normalPhysics.setGravitySolver(gravitySolver);
   	
   	//Init OpenGL
   	app.initializeOpenGL();
@@ -39,6 +58,9 @@ public class App extends AbstractLWJGLApp {
   	//Init OpenCL
   	if (useOpenCL) {
   		clPhysics.initializeCLPhysics(app.particles);
+  		clPhysics.setDeviceResident(deviceResident);
+  		clPhysics.setUseGrid(useGrid);
+  		clPhysics.setUseTiled(useTiled);
   	}
   	
   	//Loop and run simulation until window is closed
@@ -62,6 +84,7 @@ public class App extends AbstractLWJGLApp {
 			//Run the physics simulation
 	  	if (useOpenCL) {
 	  		clPhysics.doPhysics(particleCount, deltaTime);
+	  		clPhysics.requestSnapshot();
 				//Render
 				Renderer.render(clPhysics.getCurrentPosBuffer(), particleCount);
 	  	} else {
@@ -72,6 +95,7 @@ public class App extends AbstractLWJGLApp {
 			
 			//Update the display
 			Display.update();
+			handleInput();
 			
 			endTime = System.currentTimeMillis();
 			deltaTime = endTime - startTime;
@@ -79,11 +103,25 @@ public class App extends AbstractLWJGLApp {
 		}
 	}
 	
-	private Particle[] prepareData() {
-		Particle[] rc = new Particle[particleCount];
+	private void handleInput() {
+		while (Keyboard.next()) {
+			if (Keyboard.getEventKeyState() && Keyboard.getEventKey() == Keyboard.KEY_B) {
+				//Switch between all pairs and Barnes-Hut gravity
+				if (normalPhysics.getGravitySolver() == NormalPhysics.GravitySolver.BARNES_HUT) {
+					normalPhysics.setGravitySolver(NormalPhysics.GravitySolver.ALL_PAIRS);
+				} else {
+					normalPhysics.setGravitySolver(NormalPhysics.GravitySolver.BARNES_HUT);
+				}
+				System.out.println("Gravity solver: " + normalPhysics.getGravitySolver());
+			}
+		}
+	}
+	
+	private ParticleStore prepareData() {
+		ParticleStore rc = new ParticleStore(particleCount);
 		
 		for (int i = 0; i < particleCount; i++) {
-			rc[i] = createRandomizedParticle();
+			randomizeParticle(rc, i);
 		}
 		
 		checkNoCollisions(rc);
@@ -91,41 +129,32 @@ public class App extends AbstractLWJGLApp {
 		return rc;
 	}
 	
-	private void checkNoCollisions(Particle[] rc) {
+	private void checkNoCollisions(ParticleStore rc) {
 		boolean collisions = false;
 		do {
 			collisions = false;
-			for (int i = 0; i < rc.length - 1; i++) {
-				Particle particle = rc[i];
-				for (int j = i; j < rc.length - 1; j++) {
-					if (calculateRange(particle.getPosition(), rc[j].getPosition()) < 10.0f) {
+			for (int i = 0; i < rc.getCount() - 1; i++) {
+				for (int j = i; j < rc.getCount() - 1; j++) {
+					if (calculateRange(rc.getX(i), rc.getY(i), rc.getX(j), rc.getY(j)) < 10.0f) {
 						collisions = true;
-						rc[i] = createRandomizedParticle();
+						randomizeParticle(rc, i);
 					}
 				}
 			}
 		} while (!collisions);
 	}
 
-	private float calculateRange(float[] pos, float[] otherPos) {
-		float deltaX = otherPos[0] - pos[0];
-		float deltaY = otherPos[1] - pos[1];
+	private float calculateRange(float posX, float posY, float otherPosX, float otherPosY) {
+		float deltaX = otherPosX - posX;
+		float deltaY = otherPosY - posY;
 		return (float)(Math.sqrt((deltaX * deltaX) + (deltaY * deltaY))); 
 	}
 
 
-	private Particle createRandomizedParticle() {
-		Particle rc = new Particle();
-		
-		float[] pos = rc.getPosition();
-		pos[0] = (float)Math.random() * boxWidth;
-		pos[1] = (float)Math.random() * boxHeight;
+	private void randomizeParticle(ParticleStore rc, int particle) {
+		rc.setPosition(particle, (float)Math.random() * boxWidth, (float)Math.random() * boxHeight);
 		
-		float[] vel = rc.getVelocity();
-//		vel[0] = (float)Math.random() * 150 - 75;
-//		vel[1] = (float)Math.random() * 150 - 75;
-		
-		return rc;
+//		rc.setVelocity(particle, (float)Math.random() * 150 - 75, (float)Math.random() * 150 - 75);
 	}
 	
 	private void initializeOpenGL() {
@@ -0,0 +1,245 @@
+package no.plasmod.opencl;
+
+import java.util.Arrays;
+
+/**
+ * Barnes-Hut quadtree for approximating gravity. A group of particles far enough away is treated as one
+ * particle at its centre of mass, which brings the cost of a step from O(n^2) down to O(n log n).
+ *
+ * The tree is stored in flat arrays indexed by node, so rebuilding it every step allocates nothing once
+ * the arrays have grown large enough. The four children of a node are stored next to each other, and
+ * always after their parent, so the centres of mass can be calculated in one backwards pass.
+ */
+public class BarnesHutTree {
+
+	private static final int EMPTY = -1;
+	private static final int MULTIPLE = -2;
+	//Deepest level of the tree, particles reaching it share a leaf, so particles at the same position do not
+	//subdivide without end
+	private static final int MAX_DEPTH = 32;
+
+	private final float gravity;
+	private float theta;
+
+	private int nodeCount;
+	private int[] firstChild = new int[0];
+	private int[] body = new int[0];
+	private float[] centerX = new float[0];
+	private float[] centerY = new float[0];
+	private float[] halfSize = new float[0];
+	//Mass and mass weighted position sums, doubles since they sum over up to millions of particles
+	private double[] mass = new double[0];
+	private double[] massX = new double[0];
+	private double[] massY = new double[0];
+	private float[] comX = new float[0];
+	private float[] comY = new float[0];
+
+	private final int[] stack = createStack();
+
+	/**
+	 * @param gravity the gravitational constant.
+	 * @param theta the opening angle. A node is approximated when its size divided by the distance is
+	 * less than theta, 0 gives the exact all pairs result.
+	 */
+	public BarnesHutTree(float gravity, float theta) {
+		this.gravity = gravity;
+		this.theta = theta;
+	}
+
+	public float getTheta() {
+		return theta;
+	}
+
+	public void setTheta(float theta) {
+		this.theta = theta;
+	}
+
+	/**
+	 * Build the tree from the current particle positions.
+	 * @param particles the particles.
+	 */
+	public void build(ParticleStore particles) {
+		int count = particles.getCount();
+		ensureCapacity(count * 2 + 1);
+
+		//Square root node covering all particles
+		float minX = Float.MAX_VALUE;
+		float minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE;
+		float maxY = -Float.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			minX = Math.min(minX, particles.getX(i));
+			minY = Math.min(minY, particles.getY(i));
+			maxX = Math.max(maxX, particles.getX(i));
+			maxY = Math.max(maxY, particles.getY(i));
+		}
+		nodeCount = 0;
+		float size = Math.max(Math.max(maxX - minX, maxY - minY), 1.0f);
+		createNode((minX + maxX) / 2, (minY + maxY) / 2, size / 2 * 1.0001f);
+
+		for (int i = 0; i < count; i++) {
+			insert(i, particles.getX(i), particles.getY(i), particles);
+		}
+
+		//Sum mass from the children, children always come after their parent
+		for (int node = nodeCount - 1; node >= 0; node--) {
+			int child = firstChild[node];
+			if (child != EMPTY) {
+				mass[node] = mass[child] + mass[child + 1] + mass[child + 2] + mass[child + 3];
+				massX[node] = massX[child] + massX[child + 1] + massX[child + 2] + massX[child + 3];
+				massY[node] = massY[child] + massY[child + 1] + massY[child + 2] + massY[child + 3];
+			}
+			if (mass[node] > 0) {
+				comX[node] = (float)(massX[node] / mass[node]);
+				comY[node] = (float)(massY[node] / mass[node]);
+			}
+		}
+	}
+
+	private void insert(int particle, float x, float y, ParticleStore particles) {
+		int node = 0;
+		int depth = 0;
+		while (true) {
+			if (firstChild[node] != EMPTY) {
+				node = firstChild[node] + quadrant(node, x, y);
+				depth++;
+				continue;
+			}
+			if (body[node] == EMPTY) {
+				body[node] = particle;
+				addMass(node, x, y);
+				return;
+			}
+			if (body[node] == MULTIPLE || depth >= MAX_DEPTH) {
+				body[node] = MULTIPLE;
+				addMass(node, x, y);
+				return;
+			}
+
+			//Split the leaf and move its particle down one level
+			int existing = body[node];
+			float existingX = particles.getX(existing);
+			float existingY = particles.getY(existing);
+			subdivide(node);
+			int child = firstChild[node] + quadrant(node, existingX, existingY);
+			body[child] = existing;
+			addMass(child, existingX, existingY);
+		}
+	}
+
+	private void subdivide(int node) {
+		ensureCapacity(nodeCount + 4);
+		float quarter = halfSize[node] / 2;
+		int child = nodeCount;
+		createNode(centerX[node] - quarter, centerY[node] - quarter, quarter);
+		createNode(centerX[node] + quarter, centerY[node] - quarter, quarter);
+		createNode(centerX[node] - quarter, centerY[node] + quarter, quarter);
+		createNode(centerX[node] + quarter, centerY[node] + quarter, quarter);
+		firstChild[node] = child;
+		body[node] = EMPTY;
+		mass[node] = 0;
+		massX[node] = 0;
+		massY[node] = 0;
+	}
+
+	private int quadrant(int node, float x, float y) {
+		return (x >= centerX[node] ? 1 : 0) + (y >= centerY[node] ? 2 : 0);
+	}
+
+	private void createNode(float x, float y, float half) {
+		int node = nodeCount++;
+		firstChild[node] = EMPTY;
+		body[node] = EMPTY;
+		centerX[node] = x;
+		centerY[node] = y;
+		halfSize[node] = half;
+		mass[node] = 0;
+		massX[node] = 0;
+		massY[node] = 0;
+	}
+
+	private void addMass(int node, float x, float y) {
+		mass[node] += 1;
+		massX[node] += x;
+		massY[node] += y;
+	}
+
+	/**
+	 * Add the velocity change from gravity to one particle, using the same units as NormalPhysics.
+	 * Particles closer than 2.0 exert no gravity, they collide instead.
+	 * @param particles the particles, the velocity of the particle is updated.
+	 * @param particle the index of the particle.
+	 * @param deltaTime the time step in milliseconds.
+	 */
+	public void applyGravity(ParticleStore particles, int particle, long deltaTime) {
+		applyGravity(particles, particle, deltaTime, stack);
+	}
+
+	/**
+	 * Same as {@link #applyGravity(ParticleStore, int, long)}, with a caller owned traversal stack so
+	 * several threads can walk the tree at the same time, as long as they update different particles.
+	 * @param particles the particles, the velocity of the particle is updated.
+	 * @param particle the index of the particle.
+	 * @param deltaTime the time step in milliseconds.
+	 * @param stack traversal stack from {@link #createStack()}.
+	 */
+	public void applyGravity(ParticleStore particles, int particle, long deltaTime, int[] stack) {
+		float posX = particles.getX(particle);
+		float posY = particles.getY(particle);
+		float velX = 0;
+		float velY = 0;
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (mass[node] == 0 || body[node] == particle) {
+				continue;
+			}
+			float deltaX = comX[node] - posX;
+			float deltaY = comY[node] - posY;
+			float range = (float)Math.sqrt(deltaX * deltaX + deltaY * deltaY);
+
+			boolean leaf = firstChild[node] == EMPTY;
+			if (leaf || (range >= 2.0f && halfSize[node] * 2 < theta * range)) {
+				if (range >= 2.0f) {
+					float gForce = gravity * (float)mass[node] / (range * range);
+					velX += (deltaX / range) * gForce / 1000;
+					velY += (deltaY / range) * gForce / 1000;
+				}
+			} else {
+				int child = firstChild[node];
+				stack[top++] = child;
+				stack[top++] = child + 1;
+				stack[top++] = child + 2;
+				stack[top++] = child + 3;
+			}
+		}
+		particles.setVelocity(particle, particles.getVelX(particle) + velX * deltaTime,
+				particles.getVelY(particle) + velY * deltaTime);
+	}
+
+	/**
+	 * @return a traversal stack for {@link #applyGravity(ParticleStore, int, long, int[])}.
+	 */
+	public int[] createStack() {
+		return new int[MAX_DEPTH * 3 + 4];
+	}
+
+	private void ensureCapacity(int nodes) {
+		if (nodes <= firstChild.length) {
+			return;
+		}
+		int capacity = Math.max(nodes, firstChild.length * 2);
+		firstChild = Arrays.copyOf(firstChild, capacity);
+		body = Arrays.copyOf(body, capacity);
+		centerX = Arrays.copyOf(centerX, capacity);
+		centerY = Arrays.copyOf(centerY, capacity);
+		halfSize = Arrays.copyOf(halfSize, capacity);
+		mass = Arrays.copyOf(mass, capacity);
+		massX = Arrays.copyOf(massX, capacity);
+		massY = Arrays.copyOf(massY, capacity);
+		comX = Arrays.copyOf(comX, capacity);
+		comY = Arrays.copyOf(comY, capacity);
+	}
+
+}
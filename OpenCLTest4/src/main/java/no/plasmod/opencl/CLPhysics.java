@@ -2,142 +2,411 @@ package no.plasmod.opencl;
 
 import java.io.FileNotFoundException;
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.lwjgl.BufferUtils;
 import org.lwjgl.LWJGLException;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.opencl.CL10;
+import org.lwjgl.opencl.CLEvent;
 import org.lwjgl.opencl.CLKernel;
 import org.lwjgl.opencl.CLMem;
 import org.lwjgl.opencl.CLProgram;
-import org.lwjgl.opencl.OpenCLException;
-import org.lwjgl.opencl.Util;
 
 import no.plasmid.opencl.AbstractCLController;
+import no.plasmid.opencl.BufferLease;
+import no.plasmid.opencl.CLProfiler;
 
 public class CLPhysics extends AbstractCLController {
 
+	private static final String KERNEL_NAME = "physics";
+	
 	private CLProgram physicsProgram;
 	private CLKernel physicsKernel;
 	
-	//Buffers to hold data for host program
+	//Buffers to hold data for host program, these are the buffers of the particle store
 	private FloatBuffer currentPosBuffer;
 	private FloatBuffer currentVelBuffer;
-	private FloatBuffer nextPosBuffer;
-	private FloatBuffer nextVelBuffer;
 	
 	//Memory locations to hold data on the graphics card
 	private CLMem currentPosMem = null;
 	private CLMem currentVelMem = null;
 	private CLMem nextPosMem = null;
 	private CLMem nextVelMem = null;
+	//Pool leases of all device buffers, current and next are swapped so they are released from here
+	private final List<BufferLease<CLMem>> memLeases = new ArrayList<BufferLease<CLMem>>();
+	
+	private PointerBuffer kernel1DGlobalWorkSize;
+	
+	//Device resident mode keeps the state on the device and swaps current and next between steps
+	private boolean deviceResident = false;
+	private boolean hostStateChanged = false;
+	private PointerBuffer snapshotEventBuffer;
+	private CLEvent snapshotEvent = null;
+	
+	//Spatial hash grid broadphase for collisions, see SpatialHashGrid
+	private boolean useGrid = false;
+	private int tableSize;
+	private int scanGroupSize;
+	private CLKernel physicsGridKernel;
+	private CLKernel clearCellsKernel;
+	private CLKernel hashParticlesKernel;
+	private CLKernel scanCellsKernel;
+	private CLKernel scatterParticlesKernel;
+	private CLMem particleCellMem = null;
+	private CLMem particleRankMem = null;
+	private CLMem cellCountMem = null;
+	private CLMem cellStartMem = null;
+	private CLMem sortedIndexMem = null;
+	private PointerBuffer scanWorkSize;
 	
-	public void initializeCLPhysics(Particle[] particles) throws LWJGLException, FileNotFoundException {
+	//Tiled all pairs kernel staging positions in local memory, one tile per work group
+	private boolean useTiled = false;
+	private int tileSize;
+	private CLKernel physicsTiledKernel;
+	private PointerBuffer tileWorkSize;
+	
+	public void initializeCLPhysics(ParticleStore particles) throws LWJGLException, FileNotFoundException {
 		//Initialize OpenCL
 		initializeOpenCL();
 		
 		//Initialize the program
 		String source = loadTextFile("/cl/physics.cl");
-		physicsProgram = CL10.clCreateProgramWithSource(context, source, errorCodeBuffer);
-		checkErrorCodeBuffer(errorCodeBuffer);
-		try {
-			Util.checkCLError(CL10.clBuildProgram(physicsProgram, deviceList.get(0), "", null));
-		} catch (OpenCLException e) {
-			//Check compilation error
-			System.err.println(physicsProgram.getBuildInfoString(
-					deviceList.get(0), CL10.CL_PROGRAM_BUILD_LOG));
-		}
+		physicsProgram = buildProgram(source, "");
 		//Sum has to match a kernel method name in the OpenCL source
-		physicsKernel = CL10.clCreateKernel(physicsProgram, "physics", errorCodeBuffer);
+		physicsKernel = CL10.clCreateKernel(physicsProgram, KERNEL_NAME, errorCodeBuffer);
 		checkErrorCodeBuffer(errorCodeBuffer);
+		physicsTiledKernel = createKernel("physicsTiled");
+		physicsGridKernel = createKernel("physicsGrid");
+		clearCellsKernel = createKernel("clearCells");
+		hashParticlesKernel = createKernel("hashParticles");
+		scanCellsKernel = createKernel("scanCells");
+		scatterParticlesKernel = createKernel("scatterParticles");
 		System.out.println("OpenCL program ready");		
 		
 		//Initialize the data
 		//We need four buffers. Two for positions (prev-next) and two for velocities (prev-next). Each value is two floats (two dimensions)
-		currentPosBuffer = BufferUtils.createFloatBuffer(particles.length * 2);
-		currentVelBuffer = BufferUtils.createFloatBuffer(particles.length * 2);
-		nextPosBuffer = BufferUtils.createFloatBuffer(particles.length * 2);
-		nextVelBuffer = BufferUtils.createFloatBuffer(particles.length * 2);
-		
-		//Fill in data to the buffers
-		for (Particle particle : particles) {
-			currentPosBuffer.put(particle.getPosition());
-			currentVelBuffer.put(particle.getVelocity());
-		}
+		//The store already has the layout of the kernels, so the current state is read and written in place
+		int particleCount = particles.getCount();
+		currentPosBuffer = particles.getPositionBuffer();
+		currentVelBuffer = particles.getVelocityBuffer();
+		
+		//Allocate memory from the pool and copy data, pooled buffers can not be created from host memory
+		currentPosMem = acquireMem(particleCount * 2 * 4);
+		CL10.clEnqueueWriteBuffer(commandQueue, currentPosMem, CL10.CL_TRUE, 0, currentPosBuffer, null, null);
+		currentVelMem = acquireMem(particleCount * 2 * 4);
+		CL10.clEnqueueWriteBuffer(commandQueue, currentVelMem, CL10.CL_TRUE, 0, currentVelBuffer, null, null);
 		currentPosBuffer.rewind();
 		currentVelBuffer.rewind();
-		
-		//Allocate memory and copy data
-		currentPosMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_WRITE | CL10.CL_MEM_COPY_HOST_PTR, currentPosBuffer, errorCodeBuffer);
-		checkErrorCodeBuffer(errorCodeBuffer);
-//		CL10.clEnqueueWriteBuffer(commandQueue, currentPosMem, CL10.CL_TRUE, 0, currentPosBuffer, null, null);
-		currentVelMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_WRITE | CL10.CL_MEM_COPY_HOST_PTR, currentVelBuffer, errorCodeBuffer);
-		checkErrorCodeBuffer(errorCodeBuffer);
-//		CL10.clEnqueueWriteBuffer(commandQueue, currentVelMem, CL10.CL_TRUE, 0, currentVelBuffer, null, null);
-		nextPosMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_WRITE | CL10.CL_MEM_COPY_HOST_PTR,  nextPosBuffer, errorCodeBuffer);
-//		CL10.clEnqueueWriteBuffer(commandQueue, nextPosMem, CL10.CL_TRUE, 0, nextPosBuffer, null, null);
-		checkErrorCodeBuffer(errorCodeBuffer);
-		nextVelMem = CL10.clCreateBuffer(context, CL10.CL_MEM_READ_WRITE | CL10.CL_MEM_COPY_HOST_PTR, nextVelBuffer, errorCodeBuffer);
-//		CL10.clEnqueueWriteBuffer(commandQueue, nextVelMem, CL10.CL_TRUE, 0, nextVelBuffer, null, null);
+		//The next state is always written by the kernel before it is read
+		nextPosMem = acquireMem(particleCount * 2 * 4);
+		nextVelMem = acquireMem(particleCount * 2 * 4);
 		CL10.clFinish(commandQueue);
-		checkErrorCodeBuffer(errorCodeBuffer);
+		
+		kernel1DGlobalWorkSize = BufferUtils.createPointerBuffer(1);
+		snapshotEventBuffer = BufferUtils.createPointerBuffer(1);
+		
+		//Grid buffers
+		tableSize = SpatialHashGrid.tableSizeFor(particleCount);
+		particleCellMem = acquireMem(particleCount * 4);
+		particleRankMem = acquireMem(particleCount * 4);
+		sortedIndexMem = acquireMem(particleCount * 4);
+		cellCountMem = acquireMem(tableSize * 4);
+		cellStartMem = acquireMem(tableSize * 4);
+		//The scan runs as one work group, use the largest power of two the device allows
+		scanGroupSize = getGroupSize(scanCellsKernel);
+		scanWorkSize = BufferUtils.createPointerBuffer(1);
+		scanWorkSize.put(0, scanGroupSize);
+		
+		//Tiled kernel
+		tileSize = getGroupSize(physicsTiledKernel);
+		tileWorkSize = BufferUtils.createPointerBuffer(1);
+		tileWorkSize.put(0, tileSize);
 		
 		System.out.println("Data ready and copied to OpenCL");		
 	}
 	
+	/**
+	 * Switch between host mode, where the state is uploaded and downloaded every step, and device resident
+	 * mode, where the state stays on the device and positions are only downloaded by requestSnapshot().
+	 * @param deviceResident true to keep the state on the device.
+	 */
+	public void setDeviceResident(boolean deviceResident) {
+		if (deviceResident == this.deviceResident) {
+			return;
+		}
+		if (deviceResident) {
+			//The host buffers hold the latest state, upload it before the next step
+			hostStateChanged = true;
+		} else {
+			//Bring the host buffers up to date, later steps upload from them
+			waitForSnapshot();
+			currentPosBuffer.rewind();
+			currentVelBuffer.rewind();
+			CL10.clEnqueueReadBuffer(commandQueue, currentPosMem, CL10.CL_TRUE, 0, currentPosBuffer, null, null);
+			CL10.clEnqueueReadBuffer(commandQueue, currentVelMem, CL10.CL_TRUE, 0, currentVelBuffer, null, null);
+			currentPosBuffer.rewind();
+			currentVelBuffer.rewind();
+		}
+		this.deviceResident = deviceResident;
+	}
+	
+	public boolean isDeviceResident() {
+		return deviceResident;
+	}
+	
 	public void doPhysics(int particleCount, long deltaTime) {
-		currentPosBuffer.rewind();
-		currentVelBuffer.rewind();
-		CL10.clEnqueueWriteBuffer(commandQueue, currentPosMem, CL10.CL_TRUE, 0, currentPosBuffer, null, null);
-		CL10.clEnqueueWriteBuffer(commandQueue, currentVelMem, CL10.CL_TRUE, 0, currentVelBuffer, null, null);
-		CL10.clFinish(commandQueue);
+		if (deviceResident) {
+			doPhysicsDeviceResident(particleCount, deltaTime);
+			return;
+		}
 		
 		currentPosBuffer.rewind();
 		currentVelBuffer.rewind();
-		//Set which buffers to use for this calculation
-		physicsKernel.setArg(0, currentPosMem);
-		physicsKernel.setArg(1, currentVelMem);
-		physicsKernel.setArg(2, nextPosMem);
-		physicsKernel.setArg(3, nextVelMem);
-		physicsKernel.setArg(4, particleCount);
-		physicsKernel.setArg(5, deltaTime);
-		checkErrorCodeBuffer(errorCodeBuffer);
+		CL10.clEnqueueWriteBuffer(commandQueue, currentPosMem, CL10.CL_TRUE, 0, currentPosBuffer, null, profiler.event());
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.UPLOAD);
+		CL10.clEnqueueWriteBuffer(commandQueue, currentVelMem, CL10.CL_TRUE, 0, currentVelBuffer, null, profiler.event());
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.UPLOAD);
+		CL10.clFinish(commandQueue);
 		
 		currentPosBuffer.rewind();
 		currentVelBuffer.rewind();
 		//Perform calculation
-		PointerBuffer kernel1DGlobalWorkSize = BufferUtils.createPointerBuffer(1);
-		kernel1DGlobalWorkSize.put(0, Math.max(particleCount, 1));
-		CL10.clEnqueueNDRangeKernel(commandQueue, physicsKernel, 1, null, kernel1DGlobalWorkSize, null, null, null);
+		enqueueStep(particleCount, deltaTime);
 		checkErrorCodeBuffer(errorCodeBuffer);
 		
 		currentPosBuffer.rewind();
 		currentVelBuffer.rewind();
 		//Download results
-		CL10.clEnqueueReadBuffer(commandQueue, nextPosMem, CL10.CL_TRUE, 0, currentPosBuffer, null, null);
-		CL10.clEnqueueReadBuffer(commandQueue, nextVelMem, CL10.CL_TRUE, 0, currentVelBuffer, null, null);
+		CL10.clEnqueueReadBuffer(commandQueue, nextPosMem, CL10.CL_TRUE, 0, currentPosBuffer, null, profiler.event());
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.READBACK);
+		CL10.clEnqueueReadBuffer(commandQueue, nextVelMem, CL10.CL_TRUE, 0, currentVelBuffer, null, profiler.event());
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.READBACK);
 		CL10.clFinish(commandQueue);
 		checkErrorCodeBuffer(errorCodeBuffer);
 		currentPosBuffer.rewind();
 		currentVelBuffer.rewind();
+		profiler.collect();
 	}
 	
-	public void cleanupCLPhysics() {
-		//Clean up the data
-		if (null != nextVelMem) {
-			CL10.clReleaseMemObject(nextVelMem);
+	private void doPhysicsDeviceResident(int particleCount, long deltaTime) {
+		//The host buffer is the target of the last snapshot, so it can not be uploaded before that is done
+		waitForSnapshot();
+		if (hostStateChanged) {
+			currentPosBuffer.rewind();
+			currentVelBuffer.rewind();
+			CL10.clEnqueueWriteBuffer(commandQueue, currentPosMem, CL10.CL_FALSE, 0, currentPosBuffer, null, profiler.event());
+			profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.UPLOAD);
+			CL10.clEnqueueWriteBuffer(commandQueue, currentVelMem, CL10.CL_FALSE, 0, currentVelBuffer, null, profiler.event());
+			profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.UPLOAD);
+			hostStateChanged = false;
+		}
+		
+		enqueueStep(particleCount, deltaTime);
+		CL10.clFlush(commandQueue);
+		
+		//The next state becomes the current state of the next step
+		CLMem temp = currentPosMem;
+		currentPosMem = nextPosMem;
+		nextPosMem = temp;
+		temp = currentVelMem;
+		currentVelMem = nextVelMem;
+		nextVelMem = temp;
+	}
+	
+	/**
+	 * Enqueue the kernels calculating the next state from the current state.
+	 */
+	private void enqueueStep(int particleCount, long deltaTime) {
+		if (useGrid) {
+			enqueueGridStep(particleCount, deltaTime);
+			return;
+		}
+		if (useTiled) {
+			enqueueTiledStep(particleCount, deltaTime);
+			return;
+		}
+		
+		//Set which buffers to use for this calculation
+		physicsKernel.setArg(0, currentPosMem);
+		physicsKernel.setArg(1, currentVelMem);
+		physicsKernel.setArg(2, nextPosMem);
+		physicsKernel.setArg(3, nextVelMem);
+		physicsKernel.setArg(4, particleCount);
+		physicsKernel.setArg(5, deltaTime);
+		kernel1DGlobalWorkSize.put(0, Math.max(particleCount, 1));
+		CL10.clEnqueueNDRangeKernel(commandQueue, physicsKernel, 1, null, kernel1DGlobalWorkSize, null, null, profiler.event());
+		profiler.record(commandQueue, KERNEL_NAME, CLProfiler.Category.KERNEL);
+	}
+	
+	private void enqueueTiledStep(int particleCount, long deltaTime) {
+		physicsTiledKernel.setArg(0, currentPosMem);
+		physicsTiledKernel.setArg(1, currentVelMem);
+		physicsTiledKernel.setArg(2, nextPosMem);
+		physicsTiledKernel.setArg(3, nextVelMem);
+		physicsTiledKernel.setArg(4, particleCount);
+		physicsTiledKernel.setArg(5, deltaTime);
+		//One float2 per work item
+		physicsTiledKernel.setArgSize(6, tileSize * 8);
+		//The global size has to be a multiple of the work group size
+		int groups = Math.max((particleCount + tileSize - 1) / tileSize, 1);
+		kernel1DGlobalWorkSize.put(0, groups * tileSize);
+		CL10.clEnqueueNDRangeKernel(commandQueue, physicsTiledKernel, 1, null, kernel1DGlobalWorkSize, tileWorkSize, null, profiler.event());
+		profiler.record(commandQueue, "physicsTiled", CLProfiler.Category.KERNEL);
+	}
+	
+	private void enqueueGridStep(int particleCount, long deltaTime) {
+		//Counting sort the particles by cell
+		clearCellsKernel.setArg(0, cellCountMem);
+		clearCellsKernel.setArg(1, tableSize);
+		enqueueKernel(clearCellsKernel, "clearCells", tableSize);
+		
+		hashParticlesKernel.setArg(0, currentPosMem);
+		hashParticlesKernel.setArg(1, particleCellMem);
+		hashParticlesKernel.setArg(2, particleRankMem);
+		hashParticlesKernel.setArg(3, cellCountMem);
+		hashParticlesKernel.setArg(4, particleCount);
+		hashParticlesKernel.setArg(5, tableSize - 1);
+		enqueueKernel(hashParticlesKernel, "hashParticles", particleCount);
+		
+		scanCellsKernel.setArg(0, cellCountMem);
+		scanCellsKernel.setArg(1, cellStartMem);
+		scanCellsKernel.setArg(2, tableSize);
+		scanCellsKernel.setArgSize(3, scanGroupSize * 4);
+		CL10.clEnqueueNDRangeKernel(commandQueue, scanCellsKernel, 1, null, scanWorkSize, scanWorkSize, null, profiler.event());
+		profiler.record(commandQueue, "scanCells", CLProfiler.Category.KERNEL);
+		
+		scatterParticlesKernel.setArg(0, particleCellMem);
+		scatterParticlesKernel.setArg(1, particleRankMem);
+		scatterParticlesKernel.setArg(2, cellStartMem);
+		scatterParticlesKernel.setArg(3, sortedIndexMem);
+		scatterParticlesKernel.setArg(4, particleCount);
+		enqueueKernel(scatterParticlesKernel, "scatterParticles", particleCount);
+		
+		physicsGridKernel.setArg(0, currentPosMem);
+		physicsGridKernel.setArg(1, currentVelMem);
+		physicsGridKernel.setArg(2, nextPosMem);
+		physicsGridKernel.setArg(3, nextVelMem);
+		physicsGridKernel.setArg(4, particleCount);
+		physicsGridKernel.setArg(5, deltaTime);
+		physicsGridKernel.setArg(6, cellStartMem);
+		physicsGridKernel.setArg(7, cellCountMem);
+		physicsGridKernel.setArg(8, sortedIndexMem);
+		physicsGridKernel.setArg(9, tableSize - 1);
+		enqueueKernel(physicsGridKernel, "physicsGrid", particleCount);
+	}
+	
+	private void enqueueKernel(CLKernel kernel, String name, int globalWorkSize) {
+		kernel1DGlobalWorkSize.put(0, Math.max(globalWorkSize, 1));
+		CL10.clEnqueueNDRangeKernel(commandQueue, kernel, 1, null, kernel1DGlobalWorkSize, null, null, profiler.event());
+		profiler.record(commandQueue, name, CLProfiler.Category.KERNEL);
+	}
+	
+	/**
+	 * Get the largest power of two work group size the device allows for the kernel, at most 256.
+	 */
+	private int getGroupSize(CLKernel kernel) {
+		long maxGroupSize = kernel.getWorkGroupInfoSize(deviceList.get(0), CL10.CL_KERNEL_WORK_GROUP_SIZE);
+		int rc = 1;
+		while (rc * 2 <= Math.min(maxGroupSize, 256)) {
+			rc *= 2;
 		}
-		if (null != nextPosMem) {
-			CL10.clReleaseMemObject(nextPosMem);
+		return rc;
+	}
+	
+	private CLMem acquireMem(long size) {
+		BufferLease<CLMem> lease = bufferPool.acquire(size, CL10.CL_MEM_READ_WRITE);
+		memLeases.add(lease);
+		return lease.get();
+	}
+	
+	private CLKernel createKernel(String name) {
+		CLKernel rc = CL10.clCreateKernel(physicsProgram, name, errorCodeBuffer);
+		checkErrorCodeBuffer(errorCodeBuffer);
+		return rc;
+	}
+	
+	/**
+	 * Use the spatial hash grid to find collisions. Can be changed between steps.
+	 * @param useGrid true to only test collisions between particles in neighbouring cells.
+	 */
+	public void setUseGrid(boolean useGrid) {
+		this.useGrid = useGrid;
+	}
+	
+	public boolean isUseGrid() {
+		return useGrid;
+	}
+	
+	/**
+	 * Use the tiled all pairs kernel, which reads the other particles through local memory. Can be changed
+	 * between steps. The grid kernel is used instead when the grid is enabled.
+	 * @param useTiled true to use the tiled kernel.
+	 */
+	public void setUseTiled(boolean useTiled) {
+		this.useTiled = useTiled;
+	}
+	
+	public boolean isUseTiled() {
+		return useTiled;
+	}
+	
+	/**
+	 * Start downloading the current positions in device resident mode. The download runs in the background
+	 * until getCurrentPosBuffer() is called. Does nothing in host mode, where positions are downloaded
+	 * every step.
+	 */
+	public void requestSnapshot() {
+		if (!deviceResident || null != snapshotEvent) {
+			return;
 		}
-		if (null != currentVelMem) {
-			CL10.clReleaseMemObject(currentVelMem);
+		currentPosBuffer.rewind();
+		snapshotEventBuffer.put(0, 0L);
+		CL10.clEnqueueReadBuffer(commandQueue, currentPosMem, CL10.CL_FALSE, 0, currentPosBuffer, null, snapshotEventBuffer);
+		snapshotEvent = commandQueue.getCLEvent(snapshotEventBuffer.get(0));
+		profiler.record(KERNEL_NAME, CLProfiler.Category.READBACK, snapshotEvent);
+		CL10.clFlush(commandQueue);
+	}
+	
+	private void waitForSnapshot() {
+		if (null == snapshotEvent) {
+			return;
 		}
-		if (null != currentPosMem) {
-			CL10.clReleaseMemObject(currentPosMem);
+		CL10.clWaitForEvents(snapshotEvent);
+		CL10.clReleaseEvent(snapshotEvent);
+		snapshotEvent = null;
+		currentPosBuffer.rewind();
+		profiler.collect();
+	}
+	
+	/**
+	 * Wait until all enqueued steps are done. In device resident mode doPhysics() returns as soon as the
+	 * step is enqueued, so this is needed to time single steps.
+	 */
+	public void finish() {
+		CL10.clFinish(commandQueue);
+		profiler.collect();
+	}
+	
+	public void cleanupCLPhysics() {
+		//Make sure nothing is still writing to the host buffers
+		waitForSnapshot();
+		CL10.clFinish(commandQueue);
+		
+		//Clean up the data, the buffers go back to the pool
+		for (BufferLease<CLMem> lease : memLeases) {
+			lease.release();
 		}
+		memLeases.clear();
 		
 		//Clean up the program
+		for (CLKernel kernel : new CLKernel[]{physicsTiledKernel, physicsGridKernel, clearCellsKernel, hashParticlesKernel,
+				scanCellsKernel, scatterParticlesKernel}) {
+			if (null != kernel) {
+				CL10.clReleaseKernel(kernel);
+			}
+		}
 		if (null != physicsKernel) {
 			CL10.clReleaseKernel(physicsKernel);
 		}
@@ -149,7 +418,13 @@ public class CLPhysics extends AbstractCLController {
 		cleanupOpenCL();
 	}
 
+	/**
+	 * Get the current positions. In device resident mode these are the positions from the last
+	 * requestSnapshot(), waiting for the download to finish if needed.
+	 * @return the position buffer, two floats per particle.
+	 */
 	public FloatBuffer getCurrentPosBuffer() {
+		waitForSnapshot();
 		return currentPosBuffer;
 	}
 	
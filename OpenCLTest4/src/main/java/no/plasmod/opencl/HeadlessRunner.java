@@ -0,0 +1,196 @@
+package no.plasmod.opencl;
+
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.lwjgl.LWJGLException;
+
+import no.plasmid.opencl.AbstractLWJGLApp;
+
+/**
+ * Runs the simulation for a fixed number of fixed size steps without opening a window, and reports the
+ * throughput. Arguments are key=value pairs, all optional:
+ *
+ * engine=cl|normal|parallel, particles=4000, steps=100, warmup=10, deltaTime=16, seed=1,
+ * grid=false, tiled=false, resident=true, solver=ALL_PAIRS|BARNES_HUT, threads=(all cores).
+ *
+ * Pair interactions per second counts the n(n-1)/2 pairs a direct all pairs step covers, so the solvers
+ * and engines are compared on the same amount of work.
+ */
+public class HeadlessRunner extends AbstractLWJGLApp {
+
+	//The box size is fixed in physics.cl
+	private static final int BOX_WIDTH = 1800;
+	private static final int BOX_HEIGHT = 1000;
+
+	private String engine = "cl";
+	private int particleCount = 4000;
+	private int steps = 100;
+	private int warmup = 10;
+	private long deltaTime = 16;
+	private long seed = 1;
+	private boolean useGrid = false;
+	private boolean useTiled = false;
+	private boolean deviceResident = true;
+	private NormalPhysics.GravitySolver gravitySolver = NormalPhysics.GravitySolver.ALL_PAIRS;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	public static void main(String[] args) throws LWJGLException, FileNotFoundException {
+		HeadlessRunner runner = new HeadlessRunner();
+		runner.parseArguments(args);
+		runner.run();
+	}
+
+	private void parseArguments(String[] args) {
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (split < 0) {
+				throw new IllegalArgumentException("Expected key=value, got " + arg);
+			}
+			String key = arg.substring(0, split);
+			String value = arg.substring(split + 1);
+			switch (key) {
+			case "engine":
+				engine = value;
+				break;
+			case "particles":
+				particleCount = Integer.parseInt(value);
+				break;
+			case "steps":
+				steps = Integer.parseInt(value);
+				break;
+			case "warmup":
+				warmup = Integer.parseInt(value);
+				break;
+			case "deltaTime":
+				deltaTime = Long.parseLong(value);
+				break;
+			case "seed":
+				seed = Long.parseLong(value);
+				break;
+			case "grid":
+				useGrid = Boolean.parseBoolean(value);
+				break;
+			case "tiled":
+				useTiled = Boolean.parseBoolean(value);
+				break;
+			case "resident":
+				deviceResident = Boolean.parseBoolean(value);
+				break;
+			case "solver":
+				gravitySolver = NormalPhysics.GravitySolver.valueOf(value);
+				break;
+			case "threads":
+				threads = Integer.parseInt(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown argument " + key);
+			}
+		}
+		if (particleCount < 1 || steps < 1 || warmup < 0) {
+			throw new IllegalArgumentException("Need at least one particle and one step");
+		}
+	}
+
+	private void run() throws LWJGLException, FileNotFoundException {
+		ParticleStore particles = prepareData();
+		long[] stepTimes = new long[steps];
+
+		switch (engine) {
+		case "cl":
+			loadNatives(SupportedPlatform.getPlatformForOS());
+			CLPhysics clPhysics = new CLPhysics();
+			clPhysics.initializeCLPhysics(particles);
+			clPhysics.setDeviceResident(deviceResident);
+			clPhysics.setUseGrid(useGrid);
+			clPhysics.setUseTiled(useTiled);
+			try {
+				for (int i = 0; i < warmup + steps; i++) {
+					long startTime = System.nanoTime();
+					clPhysics.doPhysics(particleCount, deltaTime);
+					clPhysics.finish();
+					if (i >= warmup) {
+						stepTimes[i - warmup] = System.nanoTime() - startTime;
+					}
+				}
+			} finally {
+				clPhysics.cleanupCLPhysics();
+			}
+			break;
+		case "normal":
+		case "parallel":
+			ParallelPhysics parallelPhysics = null;
+			NormalPhysics normalPhysics;
+			if ("parallel".equals(engine)) {
+				parallelPhysics = new ParallelPhysics(threads);
+				normalPhysics = parallelPhysics;
+			} else {
+				normalPhysics = new NormalPhysics();
+			}
+			normalPhysics.setUseGrid(useGrid);
+			normalPhysics.setGravitySolver(gravitySolver);
+			try {
+				for (int i = 0; i < warmup + steps; i++) {
+					long startTime = System.nanoTime();
+					normalPhysics.doPhysics(particles, BOX_WIDTH, BOX_HEIGHT, deltaTime);
+					if (i >= warmup) {
+						stepTimes[i - warmup] = System.nanoTime() - startTime;
+					}
+				}
+			} finally {
+				if (null != parallelPhysics) {
+					parallelPhysics.shutdown();
+				}
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown engine " + engine);
+		}
+
+		printReport(stepTimes);
+	}
+
+	private ParticleStore prepareData() {
+		//Seeded, so runs with the same arguments simulate the same particles
+		Random random = new Random(seed);
+		ParticleStore rc = new ParticleStore(particleCount);
+		for (int i = 0; i < particleCount; i++) {
+			rc.setPosition(i, random.nextFloat() * BOX_WIDTH, random.nextFloat() * BOX_HEIGHT);
+		}
+		return rc;
+	}
+
+	private void printReport(long[] stepTimes) {
+		long total = 0;
+		for (long stepTime : stepTimes) {
+			total += stepTime;
+		}
+		long[] sorted = Arrays.copyOf(stepTimes, stepTimes.length);
+		Arrays.sort(sorted);
+
+		double seconds = total / 1000000000.0;
+		double pairs = (double)particleCount * (particleCount - 1) / 2 * steps;
+		System.out.println(String.format("engine=%s particles=%d steps=%d deltaTime=%d grid=%b tiled=%b resident=%b solver=%s threads=%d",
+				engine, particleCount, steps, deltaTime, useGrid, useTiled, deviceResident, gravitySolver, threads));
+		System.out.println(String.format("steps/s %.2f", steps / seconds));
+		System.out.println(String.format("pair interactions/s %.4g", pairs / seconds));
+		System.out.println(String.format("step latency ms: min %.3f p50 %.3f p90 %.3f p99 %.3f max %.3f",
+				sorted[0] / 1000000.0, percentile(sorted, 50) / 1000000.0, percentile(sorted, 90) / 1000000.0,
+				percentile(sorted, 99) / 1000000.0, sorted[sorted.length - 1] / 1000000.0));
+	}
+
+	/**
+	 * Nearest rank percentile.
+	 */
+	private long percentile(long[] sorted, int percent) {
+		int rank = (int)Math.ceil(percent / 100.0 * sorted.length);
+		return sorted[Math.max(rank - 1, 0)];
+	}
+
+	@Override
+	protected String getCodeSourcePathString() {
+		return HeadlessRunner.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+	}
+
+}
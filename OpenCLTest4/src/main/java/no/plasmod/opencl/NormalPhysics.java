@@ -2,87 +2,252 @@ package no.plasmod.opencl;
 
 public class NormalPhysics {
 
-	private static final float G = 66.74f;
-	
-	public void doPhysics(Particle[] particles, int boxWidth, int boxHeight, long deltaTime) {
+	protected static final float G = 66.74f;
+
+	/**
+	 * How gravity is calculated. BARNES_HUT always finds collisions with the grid, since testing all pairs
+	 * for collisions would keep the step O(n^2).
+	 */
+	public enum GravitySolver {
+		ALL_PAIRS, BARNES_HUT;
+	}
+
+	//Use the spatial hash grid to find collisions instead of testing all pairs
+	private boolean useGrid = false;
+	private final SpatialHashGrid grid = new SpatialHashGrid();
+	private final int[] neighbourCells = new int[9];
+
+	private GravitySolver gravitySolver = GravitySolver.ALL_PAIRS;
+	private final BarnesHutTree tree = new BarnesHutTree(G, 0.5f);
+
+	public void setUseGrid(boolean useGrid) {
+		this.useGrid = useGrid;
+	}
+
+	public boolean isUseGrid() {
+		return useGrid;
+	}
+
+	/**
+	 * @return true when collisions are found with the grid, when selected or with Barnes-Hut gravity.
+	 */
+	protected boolean isGridCollisions() {
+		return useGrid || gravitySolver == GravitySolver.BARNES_HUT;
+	}
+
+	/**
+	 * Select how gravity is calculated. Can be changed between steps.
+	 * @param gravitySolver all pairs, or the Barnes-Hut approximation.
+	 */
+	public void setGravitySolver(GravitySolver gravitySolver) {
+		this.gravitySolver = gravitySolver;
+	}
+
+	public GravitySolver getGravitySolver() {
+		return gravitySolver;
+	}
+
+	/**
+	 * @param theta the Barnes-Hut opening angle, smaller is more accurate and slower.
+	 */
+	public void setTheta(float theta) {
+		tree.setTheta(theta);
+	}
+
+	public void doPhysics(ParticleStore particles, int boxWidth, int boxHeight, long deltaTime) {
+		if (useGrid || gravitySolver != GravitySolver.ALL_PAIRS) {
+			doPhysicsSplit(particles, boxWidth, boxHeight, deltaTime);
+			return;
+		}
+		
+		int count = particles.getCount();
 		//Update all particle directions
-		for (int i = 0; i < particles.length - 1; i++) {
-			Particle particle = particles[i];
-			float[] pos = particle.getPosition();
-			float[] vel = particle.getVelocity();
+		for (int i = 0; i < count - 1; i++) {
 			//Check for collisions against the walls
-			if (pos[0] <= 0) {
-				//Hit left side
-				vel[0] = -vel[0];
-				pos[0] = 0;
-			}
-			if (pos[0] >= boxWidth) {
-				//Hit right side
-				vel[0] = -vel[0];
-				pos[0] = boxWidth;
-			}
-			if (pos[1] <= 0) {
-				//Hit the floor
-				vel[1] = -vel[1];
-				pos[1] = 0;
-			}
-			if (pos[1] >= boxHeight) {
-				//Hit the ceiling
-				vel[1] = -vel[1];
-				pos[1] = boxHeight;
-			}
+			checkWalls(particles, i, boxWidth, boxHeight);
+			float posX = particles.getX(i);
+			float posY = particles.getY(i);
+			//Only this iteration changes the velocity of particle i, keep it in locals until the end
+			float velX = particles.getVelX(i);
+			float velY = particles.getVelY(i);
 			
 			//Check for collisions and gravity interactions against other particles
-			for (int j = i + 1; j < particles.length; j++) {
-				Particle otherParticle = particles[j];
-				float[] otherVel = otherParticle.getVelocity();
-				float[] otherPos = otherParticle.getPosition();
+			for (int j = i + 1; j < count; j++) {
+				float otherPosX = particles.getX(j);
+				float otherPosY = particles.getY(j);
+				float otherVelX = particles.getVelX(j);
+				float otherVelY = particles.getVelY(j);
 				
-				float range = calculateRange(pos, otherParticle.getPosition());
+				float range = calculateRange(posX, posY, otherPosX, otherPosY);
 				if (range >= 2.0) {
 					//Calculate gravity between the two particles, and apply it
 					float gForce = G * (1 / (range * range));
-					float[] unitVector = new float[]{(otherPos[0] - pos[0]) / range, (otherPos[1] - pos[1]) / range};
-					vel[0] += (unitVector[0] * gForce / 1000) * deltaTime;
-					vel[1] += (unitVector[1] * gForce / 1000) * deltaTime;
+					velX += (((otherPosX - posX) / range) * gForce / 1000) * deltaTime;
+					velY += (((otherPosY - posY) / range) * gForce / 1000) * deltaTime;
 					
-					unitVector = new float[]{(pos[0] - otherPos[0]) / range, (pos[1] - otherPos[1]) / range};
-					otherVel[0] += (unitVector[0] * gForce / 1000) * deltaTime;
-					otherVel[1] += (unitVector[1] * gForce / 1000) * deltaTime;
+					otherVelX += (((posX - otherPosX) / range) * gForce / 1000) * deltaTime;
+					otherVelY += (((posY - otherPosY) / range) * gForce / 1000) * deltaTime;
+					particles.setVelocity(j, otherVelX, otherVelY);
+				} else if (range < 2.0f) {
+					//Collision occurred
+					particles.setVelocity(j, velX, velY);
+					velX = otherVelX;
+					velY = otherVelY;
+				}
+			}
+			particles.setVelocity(i, velX, velY);
+		}
+		
+		updatePositions(particles, deltaTime);
+	}
+
+	/**
+	 * Same simulation as doPhysics(), but with gravity and collisions in separate passes, so each can use
+	 * the selected solver and broadphase.
+	 */
+	private void doPhysicsSplit(ParticleStore particles, int boxWidth, int boxHeight, long deltaTime) {
+		//Check for collisions against the walls
+		for (int i = 0; i < particles.getCount(); i++) {
+			checkWalls(particles, i, boxWidth, boxHeight);
+		}
+		
+		if (gravitySolver == GravitySolver.BARNES_HUT) {
+			applyGravityBarnesHut(particles, deltaTime);
+		} else {
+			applyGravityAllPairs(particles, deltaTime);
+		}
+		
+		if (isGridCollisions()) {
+			applyCollisionsGrid(particles);
+		} else {
+			applyCollisionsAllPairs(particles);
+		}
+		
+		updatePositions(particles, deltaTime);
+	}
+
+	private void applyGravityBarnesHut(ParticleStore particles, long deltaTime) {
+		//Forces only depend on positions, so velocities can be updated while walking the tree
+		tree.build(particles);
+		for (int i = 0; i < particles.getCount(); i++) {
+			tree.applyGravity(particles, i, deltaTime);
+		}
+	}
+
+	private void applyGravityAllPairs(ParticleStore particles, long deltaTime) {
+		int count = particles.getCount();
+		for (int i = 0; i < count - 1; i++) {
+			float posX = particles.getX(i);
+			float posY = particles.getY(i);
+			float velX = particles.getVelX(i);
+			float velY = particles.getVelY(i);
+			for (int j = i + 1; j < count; j++) {
+				float otherPosX = particles.getX(j);
+				float otherPosY = particles.getY(j);
+				
+				float range = calculateRange(posX, posY, otherPosX, otherPosY);
+				if (range >= 2.0) {
+					float gForce = G * (1 / (range * range));
+					float deltaVelX = (((otherPosX - posX) / range) * gForce / 1000) * deltaTime;
+					float deltaVelY = (((otherPosY - posY) / range) * gForce / 1000) * deltaTime;
+					velX += deltaVelX;
+					velY += deltaVelY;
+					particles.setVelocity(j, particles.getVelX(j) - deltaVelX, particles.getVelY(j) - deltaVelY);
 				}
+			}
+			particles.setVelocity(i, velX, velY);
+		}
+	}
+
+	private void applyCollisionsAllPairs(ParticleStore particles) {
+		int count = particles.getCount();
+		for (int i = 0; i < count - 1; i++) {
+			float posX = particles.getX(i);
+			float posY = particles.getY(i);
+			for (int j = i + 1; j < count; j++) {
+				if (calculateRange(posX, posY, particles.getX(j), particles.getY(j)) < 2.0f) {
+					swapVelocities(particles, i, j);
+				}
+			}
+		}
+	}
 
-				if (!otherParticle.equals(particle)) {
-					if (range < 2.0f) {
-						//Collision occurred
-						float[] temp = new float[]{vel[0], vel[1]};
-						
-						vel[0] = otherVel[0];
-						vel[1] = otherVel[1];
-						otherVel[0] = temp[0];
-						otherVel[1] = temp[1];
+	private void applyCollisionsGrid(ParticleStore particles) {
+		grid.build(particles);
+		for (int i = 0; i < particles.getCount(); i++) {
+			float posX = particles.getX(i);
+			float posY = particles.getY(i);
+			int cellCount = grid.findNeighbourCells(posX, posY, neighbourCells);
+			for (int c = 0; c < cellCount; c++) {
+				int end = grid.getCellEnd(neighbourCells[c]);
+				for (int k = grid.getCellStart(neighbourCells[c]); k < end; k++) {
+					int j = grid.getParticle(k);
+					//Every pair once, like the all pairs loop
+					if (j <= i) {
+						continue;
+					}
+					if (calculateRange(posX, posY, particles.getX(j), particles.getY(j)) < 2.0f) {
+						swapVelocities(particles, i, j);
 					}
 				}
-			}			
+			}
 		}
-		
+	}
+
+	private void swapVelocities(ParticleStore particles, int particle, int otherParticle) {
+		//Collision occurred
+		float tempX = particles.getVelX(particle);
+		float tempY = particles.getVelY(particle);
+		particles.setVelocity(particle, particles.getVelX(otherParticle), particles.getVelY(otherParticle));
+		particles.setVelocity(otherParticle, tempX, tempY);
+	}
+
+	protected void checkWalls(ParticleStore particles, int particle, int boxWidth, int boxHeight) {
+		float posX = particles.getX(particle);
+		float posY = particles.getY(particle);
+		float velX = particles.getVelX(particle);
+		float velY = particles.getVelY(particle);
+		if (posX <= 0) {
+			//Hit left side
+			velX = -velX;
+			posX = 0;
+		}
+		if (posX >= boxWidth) {
+			//Hit right side
+			velX = -velX;
+			posX = boxWidth;
+		}
+		if (posY <= 0) {
+			//Hit the floor
+			velY = -velY;
+			posY = 0;
+		}
+		if (posY >= boxHeight) {
+			//Hit the ceiling
+			velY = -velY;
+			posY = boxHeight;
+		}
+		particles.setPosition(particle, posX, posY);
+		particles.setVelocity(particle, velX, velY);
+	}
+
+	private void updatePositions(ParticleStore particles, long deltaTime) {
 		//Update all particle positions
-		for (Particle particle : particles) {
-			float[] pos = particle.getPosition();
-			float[] vel = particle.getVelocity();
+		for (int i = 0; i < particles.getCount(); i++) {
 			//Brake a little
-			vel[0] = vel[0] * (1.0f - (0.00001f * deltaTime));
-			vel[1] = vel[1] * (1.0f - (0.00001f * deltaTime));
-
+			float velX = particles.getVelX(i) * (1.0f - (0.00001f * deltaTime));
+			float velY = particles.getVelY(i) * (1.0f - (0.00001f * deltaTime));
+			particles.setVelocity(i, velX, velY);
+			
 			//Update position
-			pos[0] = pos[0] + ((vel[0] / 1000) * deltaTime);
-			pos[1] = pos[1] + ((vel[1] / 1000) * deltaTime);
+			particles.setPosition(i, particles.getX(i) + ((velX / 1000) * deltaTime), particles.getY(i) + ((velY / 1000) * deltaTime));
 		}
 	}
-	
-	private float calculateRange(float[] pos, float[] otherPos) {
-		float deltaX = otherPos[0] - pos[0];
-		float deltaY = otherPos[1] - pos[1];
-		return (float)(Math.sqrt((deltaX * deltaX) + (deltaY * deltaY))); 
+
+	protected float calculateRange(float posX, float posY, float otherPosX, float otherPosY) {
+		float deltaX = otherPosX - posX;
+		float deltaY = otherPosY - posY;
+		return (float)(Math.sqrt((deltaX * deltaX) + (deltaY * deltaY)));
 	}
-	
+
 }
@@ -0,0 +1,221 @@
+package no.plasmod.opencl;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Multicore version of NormalPhysics. The serial code updates both particles of a pair, so two threads
+ * would write the same velocity. Here every particle gathers the effect of all other particles onto
+ * itself instead, like the physics kernel does, so each particle is only written by the thread owning
+ * it. The step runs as a sequence of passes over blocks of particles on a ForkJoinPool:
+ *
+ * walls, gravity, collisions into a second velocity array, and braking and moving.
+ *
+ * Gravity matches the serial path up to floating point summation order. A colliding particle takes the
+ * velocity its partner had before the collision pass, which is the same as the serial swap as long as a
+ * particle collides with at most one other particle in a step.
+ */
+public class ParallelPhysics extends NormalPhysics {
+
+	private enum Pass {
+		WALLS, GRAVITY, COLLISIONS, UPDATE;
+	}
+
+	private final ForkJoinPool pool;
+	private final SpatialHashGrid grid = new SpatialHashGrid();
+	private final BarnesHutTree tree = new BarnesHutTree(G, 0.5f);
+	//Velocities after collisions, two floats per particle
+	private float[] nextVel = new float[0];
+
+	/**
+	 * Create an engine using all available processors.
+	 */
+	public ParallelPhysics() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param parallelism the number of worker threads.
+	 */
+	public ParallelPhysics(int parallelism) {
+		pool = new ForkJoinPool(parallelism);
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	@Override
+	public void setTheta(float theta) {
+		super.setTheta(theta);
+		tree.setTheta(theta);
+	}
+
+	@Override
+	public void doPhysics(ParticleStore particles, int boxWidth, int boxHeight, long deltaTime) {
+		int count = particles.getCount();
+		if (nextVel.length < count * 2) {
+			nextVel = new float[count * 2];
+		}
+		//Split in a few blocks per worker, so workers finishing early can steal
+		int blockSize = Math.max(64, count / (pool.getParallelism() * 8));
+
+		runPass(Pass.WALLS, particles, boxWidth, boxHeight, deltaTime, blockSize);
+
+		//The tree and grid are built from the positions after the walls, which stay the same until UPDATE
+		if (getGravitySolver() == GravitySolver.BARNES_HUT) {
+			tree.build(particles);
+		}
+		if (isGridCollisions()) {
+			grid.build(particles);
+		}
+
+		runPass(Pass.GRAVITY, particles, boxWidth, boxHeight, deltaTime, blockSize);
+		runPass(Pass.COLLISIONS, particles, boxWidth, boxHeight, deltaTime, blockSize);
+		runPass(Pass.UPDATE, particles, boxWidth, boxHeight, deltaTime, blockSize);
+	}
+
+	/**
+	 * Stop the worker threads. The engine can not be used afterwards.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private void runPass(Pass pass, ParticleStore particles, int boxWidth, int boxHeight, long deltaTime, int blockSize) {
+		pool.invoke(new PassTask(pass, particles, boxWidth, boxHeight, deltaTime, blockSize, 0, particles.getCount()));
+	}
+
+	private void applyGravityAllPairs(ParticleStore particles, int particle, long deltaTime) {
+		float posX = particles.getX(particle);
+		float posY = particles.getY(particle);
+		float velX = particles.getVelX(particle);
+		float velY = particles.getVelY(particle);
+		for (int j = 0; j < particles.getCount(); j++) {
+			if (j == particle) {
+				continue;
+			}
+			float otherPosX = particles.getX(j);
+			float otherPosY = particles.getY(j);
+			float range = calculateRange(posX, posY, otherPosX, otherPosY);
+			if (range >= 2.0) {
+				float gForce = G * (1 / (range * range));
+				velX += (((otherPosX - posX) / range) * gForce / 1000) * deltaTime;
+				velY += (((otherPosY - posY) / range) * gForce / 1000) * deltaTime;
+			}
+		}
+		particles.setVelocity(particle, velX, velY);
+	}
+
+	private void applyCollisions(ParticleStore particles, int particle, int[] neighbourCells) {
+		float posX = particles.getX(particle);
+		float posY = particles.getY(particle);
+		float velX = particles.getVelX(particle);
+		float velY = particles.getVelY(particle);
+		if (isGridCollisions()) {
+			int cellCount = grid.findNeighbourCells(posX, posY, neighbourCells);
+			for (int c = 0; c < cellCount; c++) {
+				int end = grid.getCellEnd(neighbourCells[c]);
+				for (int k = grid.getCellStart(neighbourCells[c]); k < end; k++) {
+					int j = grid.getParticle(k);
+					if (j != particle && calculateRange(posX, posY, particles.getX(j), particles.getY(j)) < 2.0f) {
+						velX = particles.getVelX(j);
+						velY = particles.getVelY(j);
+					}
+				}
+			}
+		} else {
+			for (int j = 0; j < particles.getCount(); j++) {
+				if (j != particle && calculateRange(posX, posY, particles.getX(j), particles.getY(j)) < 2.0f) {
+					velX = particles.getVelX(j);
+					velY = particles.getVelY(j);
+				}
+			}
+		}
+		nextVel[particle * 2] = velX;
+		nextVel[particle * 2 + 1] = velY;
+	}
+
+	private void updatePosition(ParticleStore particles, int particle, long deltaTime) {
+		//Brake a little
+		float velX = nextVel[particle * 2] * (1.0f - (0.00001f * deltaTime));
+		float velY = nextVel[particle * 2 + 1] * (1.0f - (0.00001f * deltaTime));
+		particles.setVelocity(particle, velX, velY);
+
+		//Update position
+		particles.setPosition(particle, particles.getX(particle) + ((velX / 1000) * deltaTime),
+				particles.getY(particle) + ((velY / 1000) * deltaTime));
+	}
+
+	/**
+	 * Runs one pass over a range of particles, splitting it in halves until it is one block.
+	 */
+	private class PassTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Pass pass;
+		private final ParticleStore particles;
+		private final int boxWidth;
+		private final int boxHeight;
+		private final long deltaTime;
+		private final int blockSize;
+		private final int start;
+		private final int end;
+
+		PassTask(Pass pass, ParticleStore particles, int boxWidth, int boxHeight, long deltaTime, int blockSize,
+				int start, int end) {
+			this.pass = pass;
+			this.particles = particles;
+			this.boxWidth = boxWidth;
+			this.boxHeight = boxHeight;
+			this.deltaTime = deltaTime;
+			this.blockSize = blockSize;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > blockSize) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new PassTask(pass, particles, boxWidth, boxHeight, deltaTime, blockSize, start, middle),
+						new PassTask(pass, particles, boxWidth, boxHeight, deltaTime, blockSize, middle, end));
+				return;
+			}
+
+			switch (pass) {
+			case WALLS:
+				for (int i = start; i < end; i++) {
+					checkWalls(particles, i, boxWidth, boxHeight);
+				}
+				break;
+			case GRAVITY:
+				if (getGravitySolver() == GravitySolver.BARNES_HUT) {
+					int[] stack = tree.createStack();
+					for (int i = start; i < end; i++) {
+						tree.applyGravity(particles, i, deltaTime, stack);
+					}
+				} else {
+					for (int i = start; i < end; i++) {
+						applyGravityAllPairs(particles, i, deltaTime);
+					}
+				}
+				break;
+			case COLLISIONS:
+				int[] neighbourCells = new int[9];
+				for (int i = start; i < end; i++) {
+					applyCollisions(particles, i, neighbourCells);
+				}
+				break;
+			case UPDATE:
+				for (int i = start; i < end; i++) {
+					updatePosition(particles, i, deltaTime);
+				}
+				break;
+			}
+		}
+
+	}
+
+}
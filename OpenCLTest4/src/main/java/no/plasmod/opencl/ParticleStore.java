@@ -0,0 +1,79 @@
+package no.plasmod.opencl;
+
+import java.nio.FloatBuffer;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Positions and velocities of all particles, stored as two floats (x, y) per particle in direct buffers.
+ * The layout is the one the physics kernels use, so CLPhysics uploads and downloads straight from the
+ * store, and no objects are created per particle.
+ */
+public class ParticleStore {
+
+	private final int count;
+	private final FloatBuffer position;
+	private final FloatBuffer velocity;
+
+	/**
+	 * Create a store with all particles at rest in origo.
+	 * @param count the number of particles.
+	 */
+	public ParticleStore(int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Negative particle count " + count);
+		}
+		this.count = count;
+		position = BufferUtils.createFloatBuffer(count * 2);
+		velocity = BufferUtils.createFloatBuffer(count * 2);
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public float getX(int particle) {
+		return position.get(particle * 2);
+	}
+
+	public float getY(int particle) {
+		return position.get(particle * 2 + 1);
+	}
+
+	public void setPosition(int particle, float x, float y) {
+		position.put(particle * 2, x);
+		position.put(particle * 2 + 1, y);
+	}
+
+	public float getVelX(int particle) {
+		return velocity.get(particle * 2);
+	}
+
+	public float getVelY(int particle) {
+		return velocity.get(particle * 2 + 1);
+	}
+
+	public void setVelocity(int particle, float velX, float velY) {
+		velocity.put(particle * 2, velX);
+		velocity.put(particle * 2 + 1, velY);
+	}
+
+	/**
+	 * Get the position buffer, rewound. Reading and writing it changes the store.
+	 * @return the positions, two floats per particle.
+	 */
+	public FloatBuffer getPositionBuffer() {
+		position.rewind();
+		return position;
+	}
+
+	/**
+	 * Get the velocity buffer, rewound. Reading and writing it changes the store.
+	 * @return the velocities, two floats per particle.
+	 */
+	public FloatBuffer getVelocityBuffer() {
+		velocity.rewind();
+		return velocity;
+	}
+
+}
@@ -31,14 +31,13 @@ public class Renderer {
 //		checkGL();
 	}
 	
-	public static void render(Particle[] particles) {
+	public static void render(ParticleStore particles) {
 		GL11.glClear(GL11.GL_COLOR_BUFFER_BIT);
 		
 		GL11.glBegin(GL11.GL_POINTS);
 		{
-			for (Particle particle : particles) {
-				float[] position = particle.getPosition();
-				GL11.glVertex2f(position[0], position[1]);
+			for (int i = 0; i < particles.getCount(); i++) {
+				GL11.glVertex2f(particles.getX(i), particles.getY(i));
 			}
 		}
 		GL11.glEnd();
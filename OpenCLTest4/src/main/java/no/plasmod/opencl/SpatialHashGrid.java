@@ -0,0 +1,134 @@
+package no.plasmod.opencl;
+
+import java.util.Arrays;
+
+/**
+ * Broadphase for particle collisions. Space is divided in square cells as large as the collision range,
+ * so a particle can only collide with particles in its own cell or the eight cells around it. Cells are
+ * hashed into a table sized from the particle count instead of the box, so building the grid is linear
+ * in the particle count and particles outside the box need no special handling.
+ *
+ * The particles are counting sorted by cell every build. The same hash is used by the grid kernels in
+ * physics.cl.
+ */
+public class SpatialHashGrid {
+
+	/**
+	 * Cell size, equal to the collision range.
+	 */
+	public static final float CELL_SIZE = 2.0f;
+
+	private int tableMask = -1;
+	//Start of each cell in sortedIndex, the cell ends where the next one starts
+	private int[] cellStart;
+	private int[] cellCursor;
+	private int[] particleCell;
+	private int[] sortedIndex;
+
+	/**
+	 * Sort the particles into cells.
+	 * @param particles the particles, positions are read from these.
+	 */
+	public void build(ParticleStore particles) {
+		int count = particles.getCount();
+		ensureCapacity(count);
+
+		//Count particles per cell
+		Arrays.fill(cellStart, 0);
+		for (int i = 0; i < count; i++) {
+			int cell = hash(cellCoordinate(particles.getX(i)), cellCoordinate(particles.getY(i)), tableMask);
+			particleCell[i] = cell;
+			cellStart[cell + 1]++;
+		}
+		//Turn counts into start offsets
+		for (int cell = 0; cell <= tableMask; cell++) {
+			cellStart[cell + 1] += cellStart[cell];
+		}
+		//Scatter particle indexes to their cells
+		System.arraycopy(cellStart, 0, cellCursor, 0, tableMask + 1);
+		for (int i = 0; i < count; i++) {
+			sortedIndex[cellCursor[particleCell[i]]++] = i;
+		}
+	}
+
+	/**
+	 * Find the cells a particle at the given position can collide with. Neighbouring cells that hash to
+	 * the same table entry are only returned once, so no pair is visited twice.
+	 * @param x the x position.
+	 * @param y the y position.
+	 * @param cells array of at least 9 entries to receive the cells.
+	 * @return the number of cells found.
+	 */
+	public int findNeighbourCells(float x, float y, int[] cells) {
+		int cellX = cellCoordinate(x);
+		int cellY = cellCoordinate(y);
+		int count = 0;
+		for (int dy = -1; dy <= 1; dy++) {
+			for (int dx = -1; dx <= 1; dx++) {
+				int cell = hash(cellX + dx, cellY + dy, tableMask);
+				boolean found = false;
+				for (int k = 0; k < count; k++) {
+					if (cells[k] == cell) {
+						found = true;
+						break;
+					}
+				}
+				if (!found) {
+					cells[count++] = cell;
+				}
+			}
+		}
+		return count;
+	}
+
+	public int getCellStart(int cell) {
+		return cellStart[cell];
+	}
+
+	public int getCellEnd(int cell) {
+		return cellStart[cell + 1];
+	}
+
+	/**
+	 * @param sortedPosition position in the cell sorted order.
+	 * @return the index of the particle.
+	 */
+	public int getParticle(int sortedPosition) {
+		return sortedIndex[sortedPosition];
+	}
+
+	private void ensureCapacity(int particleCount) {
+		int tableSize = tableSizeFor(particleCount);
+		if (tableSize - 1 != tableMask) {
+			tableMask = tableSize - 1;
+			cellStart = new int[tableSize + 1];
+			cellCursor = new int[tableSize];
+		}
+		if (null == particleCell || particleCell.length != particleCount) {
+			particleCell = new int[particleCount];
+			sortedIndex = new int[particleCount];
+		}
+	}
+
+	/**
+	 * Get the hash table size for a particle count, the smallest power of two at least twice the count.
+	 * @param particleCount the number of particles.
+	 * @return the table size.
+	 */
+	public static int tableSizeFor(int particleCount) {
+		int rc = 1;
+		while (rc < particleCount * 2) {
+			rc <<= 1;
+		}
+		return rc;
+	}
+
+	public static int cellCoordinate(float value) {
+		return (int)Math.floor(value / CELL_SIZE);
+	}
+
+	public static int hash(int cellX, int cellY, int tableMask) {
+		return ((cellX * 73856093) ^ (cellY * 19349663)) & tableMask;
+	}
+
+}
@@ -5,6 +5,41 @@ float calculateRange(float* pos, float* otherPos) {
 	return sqrt((deltaX * deltaX) + (deltaY * deltaY));
 }
 
+/*
+* Check for collisions on the wall, brake and move the particle
+*/
+void finishStep(global const float* inPos, global const float* inVel,
+		global float* outPos, global float* outVel, unsigned int index, const long deltaTime) {
+	if (inPos[index] <= 0) {
+		//Hit left side
+		outVel[index] = -inVel[index];
+		outPos[index] = 0;
+	}
+	if (inPos[index] >= 1800) {
+		//Hit right side
+		outVel[index] = -inVel[index];
+		outPos[index] = 1800;
+	}
+	if (inPos[index + 1] <= 0) {
+		//Hit the floor
+		outVel[index + 1] = -inVel[index + 1];
+		outPos[index + 1] = 0;
+	}
+	if (inPos[index + 1] >= 1000) {
+		//Hit the ceiling
+		outVel[index + 1] = -inVel[index + 1];
+		outPos[index + 1] = 1000;
+	}
+
+
+	//Brake a little
+	outVel[index] = outVel[index] * (1.0f - (0.00001 * deltaTime));
+	outVel[index + 1] = outVel[index + 1] * (1.0f - (0.00001 * deltaTime));
+	
+	outPos[index] = inPos[index] + ((outVel[index] / 1000) * deltaTime);
+	outPos[index + 1] = inPos[index + 1] + ((outVel[index + 1] / 1000) * deltaTime);
+}
+
 kernel void physics(global const float* inPos, global const float* inVel,
 		global float* outPos, global float* outVel, const int particleCount, const long deltaTime) {
 	unsigned int xid = get_global_id(0);
@@ -37,36 +72,218 @@ kernel void physics(global const float* inPos, global const float* inVel,
 		}
 	}
 	
-	/*
-	* Check for collisions on the wall
-	*/
+	finishStep(inPos, inVel, outPos, outVel, index, deltaTime);
+}
+
+/*
+* Same as physics, but the positions of the other particles are read one tile at a time. Each work item of
+* the group loads one position of the tile into local memory, so every position is read once per group
+* from global memory instead of once per work item. The global size is padded to a multiple of the group
+* size, the padding work items only help loading tiles.
+*/
+kernel void physicsTiled(global const float* inPos, global const float* inVel,
+		global float* outPos, global float* outVel, const int particleCount, const long deltaTime, local float2* tile) {
+	unsigned int xid = get_global_id(0);
+	unsigned int lid = get_local_id(0);
+	unsigned int tileSize = get_local_size(0);
+	global const float2* inPos2 = (global const float2*)inPos;
+	global const float2* inVel2 = (global const float2*)inVel;
+	bool active = xid < particleCount;
+
+	float2 pos = active ? inPos2[xid] : (float2)(0.0f, 0.0f);
+	float2 vel = active ? inVel2[xid] : (float2)(0.0f, 0.0f);
+
+	for (unsigned int tileStart = 0; tileStart < particleCount; tileStart += tileSize) {
+		unsigned int loadIndex = tileStart + lid;
+		tile[lid] = loadIndex < particleCount ? inPos2[loadIndex] : (float2)(0.0f, 0.0f);
+		barrier(CLK_LOCAL_MEM_FENCE);
+
+		unsigned int tileEnd = min(tileSize, particleCount - tileStart);
+		for (unsigned int j = 0; j < tileEnd; j++) {
+			unsigned int other = tileStart + j;
+			if (other != xid) {
+				float2 otherPos = tile[j];
+				float deltaX = otherPos.x - pos.x;
+				float deltaY = otherPos.y - pos.y;
+				float range = sqrt((deltaX * deltaX) + (deltaY * deltaY));
+				if (range >= 2.0) {
+					//Calculate the gravity between this particle and the other one
+					float gForce = 66.74 * (1 / (range * range));
+					vel.x = vel.x + (((deltaX / range) * gForce / 1000) * deltaTime);
+					vel.y = vel.y + (((deltaY / range) * gForce / 1000) * deltaTime);
+				}
+				if (range < 2.0) {
+					//Collision occurred
+					vel = inVel2[other];
+				}
+			}
+		}
+		//The tile is overwritten in the next iteration
+		barrier(CLK_LOCAL_MEM_FENCE);
+	}
+
+	if (!active) {
+		return;
+	}
+	unsigned index = xid * 2;
+	outVel[index] = vel.x;
+	outVel[index + 1] = vel.y;
+
+	finishStep(inPos, inVel, outPos, outVel, index, deltaTime);
+}
+
+/*
+* Spatial hash grid broadphase. Cells are as large as the collision range, and are hashed into a table
+* with a power of two size, the same way as SpatialHashGrid does on the host. The particles are counting
+* sorted by cell every step: clearCells, hashParticles, scanCells and scatterParticles.
+*/
+//atom_inc of the extension, atomic_inc is only core from OpenCL 1.1
+#pragma OPENCL EXTENSION cl_khr_global_int32_base_atomics : enable
+
+#define CELL_SIZE 2.0f
+
+uint hashCell(int cellX, int cellY, uint tableMask) {
+	return (((uint)cellX * 73856093u) ^ ((uint)cellY * 19349663u)) & tableMask;
+}
+
+uint hashPosition(float x, float y, uint tableMask) {
+	return hashCell((int)floor(x / CELL_SIZE), (int)floor(y / CELL_SIZE), tableMask);
+}
+
+kernel void clearCells(global int* cellCount, const int tableSize) {
+	unsigned int xid = get_global_id(0);
+	if (xid < tableSize) {
+		cellCount[xid] = 0;
+	}
+}
+
+kernel void hashParticles(global const float* inPos, global int* particleCell, global int* particleRank,
+		global int* cellCount, const int particleCount, const uint tableMask) {
+	unsigned int xid = get_global_id(0);
+	if (xid < particleCount) {
+		uint cell = hashPosition(inPos[xid * 2], inPos[xid * 2 + 1], tableMask);
+		particleCell[xid] = cell;
+		//Rank of the particle within its cell
+		particleRank[xid] = atom_inc(&cellCount[cell]);
+	}
+}
+
+/*
+* Exclusive scan of the cell counts, run as a single work group. Each work item scans a contiguous chunk,
+* the chunk sums are scanned in local memory.
+*/
+kernel void scanCells(global const int* cellCount, global int* cellStart, const int tableSize, local int* partial) {
+	int lid = get_local_id(0);
+	int groupSize = get_local_size(0);
+	int chunk = (tableSize + groupSize - 1) / groupSize;
+	int begin = min(lid * chunk, tableSize);
+	int end = min(begin + chunk, tableSize);
 	
-	if (inPos[index] <= 0) {
-		//Hit left side
-		outVel[index] = -inVel[index];
-		outPos[index] = 0;
+	int sum = 0;
+	for (int i = begin; i < end; i++) {
+		sum += cellCount[i];
 	}
-	if (inPos[index] >= 1800) {
-		//Hit right side
-		outVel[index] = -inVel[index];
-		outPos[index] = 1800;
+	partial[lid] = sum;
+	barrier(CLK_LOCAL_MEM_FENCE);
+	
+	for (int offset = 1; offset < groupSize; offset <<= 1) {
+		int value = lid >= offset ? partial[lid - offset] : 0;
+		barrier(CLK_LOCAL_MEM_FENCE);
+		partial[lid] += value;
+		barrier(CLK_LOCAL_MEM_FENCE);
 	}
-	if (inPos[index + 1] <= 0) {
-		//Hit the floor
-		outVel[index + 1] = -inVel[index + 1];
-		outPos[index + 1] = 0;
+	
+	int running = lid > 0 ? partial[lid - 1] : 0;
+	for (int i = begin; i < end; i++) {
+		cellStart[i] = running;
+		running += cellCount[i];
 	}
-	if (inPos[index + 1] >= 1000) {
-		//Hit the ceiling
-		outVel[index + 1] = -inVel[index + 1];
-		outPos[index + 1] = 1000;
+}
+
+kernel void scatterParticles(global const int* particleCell, global const int* particleRank,
+		global const int* cellStart, global int* sortedIndex, const int particleCount) {
+	unsigned int xid = get_global_id(0);
+	if (xid < particleCount) {
+		sortedIndex[cellStart[particleCell[xid]] + particleRank[xid]] = xid;
 	}
+}
 
+/*
+* Same as physics, but collisions are only tested against particles in the neighbouring cells. Like in
+* physics, a collision resets the velocity to the velocity of the other particle, the collider with the
+* highest index wins, and gravity from the particles after it is still added. Gravity only acts at a range
+* of 2 or more and collisions below it, so the collider is found first and the velocity is reset when the
+* gravity loop reaches it, which gives the same velocity as physics.
+*/
+kernel void physicsGrid(global const float* inPos, global const float* inVel,
+		global float* outPos, global float* outVel, const int particleCount, const long deltaTime,
+		global const int* cellStart, global const int* cellCount, global const int* sortedIndex, const uint tableMask) {
+	unsigned int xid = get_global_id(0);
+	if (xid >= particleCount) {
+		return;
+	}
+	unsigned index = xid * 2;
 
-	//Brake a little
-	outVel[index] = outVel[index] * (1.0f - (0.00001 * deltaTime));
-	outVel[index + 1] = outVel[index + 1] * (1.0f - (0.00001 * deltaTime));
-	
-	outPos[index] = inPos[index] + ((outVel[index] / 1000) * deltaTime);
-	outPos[index + 1] = inPos[index + 1] + ((outVel[index + 1] / 1000) * deltaTime);
-}
\ No newline at end of file
+	/*
+	* Highest colliding particle in the neighbouring cells
+	*/
+	float pos[2] = {inPos[index], inPos[index + 1]};
+	int cellX = (int)floor(pos[0] / CELL_SIZE);
+	int cellY = (int)floor(pos[1] / CELL_SIZE);
+	uint visited[9];
+	int visitedCount = 0;
+	int collider = -1;
+	for (int dy = -1; dy <= 1; dy++) {
+		for (int dx = -1; dx <= 1; dx++) {
+			uint cell = hashCell(cellX + dx, cellY + dy, tableMask);
+			//Neighbours hashing to the same cell are only visited once
+			bool seen = false;
+			for (int k = 0; k < visitedCount; k++) {
+				seen = seen || visited[k] == cell;
+			}
+			if (seen) {
+				continue;
+			}
+			visited[visitedCount++] = cell;
+			
+			int start = cellStart[cell];
+			int end = start + cellCount[cell];
+			for (int k = start; k < end; k++) {
+				int other = sortedIndex[k];
+				unsigned int otherIndex = other * 2;
+				if (otherIndex != index && other > collider) {
+					float otherPos[2] = {inPos[otherIndex], inPos[otherIndex + 1]};
+					if (calculateRange(pos, otherPos) < 2.0) {
+						collider = other;
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	* Gravity from all other particles, in the same order as physics
+	*/
+	outVel[index] = inVel[index];
+	outVel[index + 1] = inVel[index + 1];
+	for (unsigned int otherIndex = 0; otherIndex < particleCount * 2; otherIndex = otherIndex + 2) {
+		if (otherIndex != index) {
+			float otherPos[2] = {inPos[otherIndex], inPos[otherIndex + 1]};
+
+			float range = calculateRange(pos, otherPos);
+			if (range >= 2.0) {
+				float gForce = 66.74 * (1 / (range * range));
+				float unitVector[] = {(otherPos[0] - pos[0]) / range, (otherPos[1] - pos[1]) / range};
+				outVel[index] = outVel[index] + ((unitVector[0] * gForce / 1000) * deltaTime);
+				outVel[index + 1] = outVel[index + 1] + ((unitVector[1] * gForce / 1000) * deltaTime);
+			}
+			if (collider >= 0 && otherIndex == collider * 2) {
+				//Collision occurred
+				outVel[index] = inVel[otherIndex];
+				outVel[index + 1] = inVel[otherIndex + 1];
+			}
+		}
+	}
+
+	finishStep(inPos, inVel, outPos, outVel, index, deltaTime);
+}